@@ -92,31 +92,29 @@ CREATE TABLE IF NOT EXISTS `step` (
   `employee_id` BIGINT NULL COMMENT 'Этот сотрудник работал на этом шаге с клиентом',
   `before_step_id` BIGINT NULL COMMENT 'Этот клиент впереди',
   `after_step_id` BIGINT NULL COMMENT 'Этот клиент за ним',
-  `stand_time` DATETIME NULL COMMENT 'Клиент начал ожидать вызова',
+  `stand_time` DATETIME NOT NULL COMMENT 'Клиент начал ожидать вызова. Ключ секционирования',
   `start_time` DATETIME NULL COMMENT 'Начали работать с клиентом',
   `finish_time` DATETIME NULL COMMENT 'Закончили работать с клиентом',
   `waiting` BIGINT NOT NULL DEFAULT 0 COMMENT 'Время ожидания клиента на шаге в милисекундах',
   `working` BIGINT NOT NULL DEFAULT 0 COMMENT 'Время работы с клиентом в милисекундах',
   `start_state` INT NULL COMMENT 'Шаг начался этим состоянием',
   `finish_state` INT NULL COMMENT 'Шаг завершился этим состоянием',
-  PRIMARY KEY (`id`),
-  CONSTRAINT `fk_step_before_step_id`
-    FOREIGN KEY (`before_step_id`)
-    REFERENCES `step` (`id`)
-    ON DELETE SET NULL
-    ON UPDATE CASCADE,
-  CONSTRAINT `fk_step_after_step_id`
-    FOREIGN KEY (`after_step_id`)
-    REFERENCES `step` (`id`)
-    ON DELETE SET NULL
-    ON UPDATE CASCADE)
+  PRIMARY KEY (`id`, `stand_time`))
 ENGINE = InnoDB
-COMMENT = 'Таблица отомарных обработак клиента';
+COMMENT = 'Таблица отомарных обработак клиента'
+-- Секции по месяцам создает наперед PartitionManagerEJB, старые месяцы удаляются DROP PARTITION.
+-- Секционированная таблица не может иметь внешних ключей, ссылки шагов друг на друга держит приложение.
+PARTITION BY RANGE COLUMNS(`stand_time`) (
+  PARTITION `pmax` VALUES LESS THAN (MAXVALUE));
 
 CREATE INDEX `idx_step_before_step_id` ON `step` (`before_step_id` ASC);
 
 CREATE INDEX `idx_step_after_step_id` ON `step` (`after_step_id` ASC);
 
+CREATE INDEX `idx_step_branch_stand` ON `step` (`branch_id` ASC, `stand_time` ASC);
+
+CREATE INDEX `idx_step_branch_customer` ON `step` (`branch_id` ASC, `customer_id` ASC, `stand_time` ASC);
+
 
 -- -----------------------------------------------------
 -- Table `customer`
@@ -130,32 +128,24 @@ CREATE TABLE IF NOT EXISTS `customer` (
   `employee_id` BIGINT NULL COMMENT 'юзер к которому попал кастомер',
   `number` INT NULL COMMENT 'Номер клиента',
   `service_prefix` VARCHAR(45) NULL COMMENT 'Префикс услуги в номере клиента',
-  `visit_time` DATETIME NOT NULL COMMENT 'Время прихода клиента',
+  `visit_time` DATETIME NOT NULL COMMENT 'Время прихода клиента. Ключ секционирования',
   `customer_id` BIGINT NOT NULL,
   `before_customer_id` BIGINT NULL,
   `after_customer_id` BIGINT NULL,
   `first_step_id` BIGINT NULL COMMENT 'Первый шаг в обработке',
+  `current_step_id` BIGINT NULL COMMENT 'Текущий (последний) шаг в обработке',
+  `steps_count` INT NOT NULL DEFAULT 0 COMMENT 'Количество шагов в обработке',
+  `waiting_sum` BIGINT NOT NULL DEFAULT 0 COMMENT 'Суммарное время ожидания на всех шагах в милисекундах',
+  `working_sum` BIGINT NOT NULL DEFAULT 0 COMMENT 'Суммарное время работы за все шаги в милисекундах',
   `waiting` BIGINT NOT NULL DEFAULT 0 COMMENT 'Среднее время ожидания на всех шагах в милисекундах',
   `working` BIGINT NOT NULL DEFAULT 0 COMMENT 'Среднее время работы за все шаги в милисекундах',
   `present_state` INT NULL COMMENT 'Текущее состояние: набор констант',
-  PRIMARY KEY (`id`),
-  CONSTRAINT `fk_customer_before_customer_id`
-    FOREIGN KEY (`before_customer_id`)
-    REFERENCES `customer` (`id`)
-    ON DELETE SET NULL
-    ON UPDATE CASCADE,
-  CONSTRAINT `fk_customer_after_customer_id`
-    FOREIGN KEY (`after_customer_id`)
-    REFERENCES `customer` (`id`)
-    ON DELETE SET NULL
-    ON UPDATE CASCADE,
-  CONSTRAINT `fk_customer_first_step_id`
-    FOREIGN KEY (`first_step_id`)
-    REFERENCES `step` (`id`)
-    ON DELETE SET NULL
-    ON UPDATE CASCADE)
+  PRIMARY KEY (`id`, `visit_time`))
 ENGINE = InnoDB
-COMMENT = 'Все клиенты';
+COMMENT = 'Все клиенты'
+-- Секции по месяцам как у step, внешних ключей нет по той же причине.
+PARTITION BY RANGE COLUMNS(`visit_time`) (
+  PARTITION `pmax` VALUES LESS THAN (MAXVALUE));
 
 CREATE INDEX `idx_customer_before_customer_id` ON `customer` (`before_customer_id` ASC);
 
@@ -163,6 +153,65 @@ CREATE INDEX `idx_customer_after_customer_id` ON `customer` (`after_customer_id`
 
 CREATE INDEX `idx_customer_first_step_id` ON `customer` (`first_step_id` ASC);
 
+CREATE INDEX `idx_customer_current_step_id` ON `customer` (`current_step_id` ASC);
+
+CREATE INDEX `idx_customer_branch_customer` ON `customer` (`branch_id` ASC, `customer_id` ASC, `visit_time` ASC);
+
+CREATE INDEX `idx_customer_branch_visit` ON `customer` (`branch_id` ASC, `visit_time` ASC);
+
+
+-- -----------------------------------------------------
+-- Table `step_daily`
+-- -----------------------------------------------------
+DROP TABLE IF EXISTS `step_daily` ;
+
+CREATE TABLE IF NOT EXISTS `step_daily` (
+  `branch_id` BIGINT NOT NULL,
+  `service_id` BIGINT NOT NULL COMMENT '0 - без услуги',
+  `employee_id` BIGINT NOT NULL COMMENT '0 - без сотрудника',
+  `stat_day` DATE NOT NULL COMMENT 'День постановки в очередь',
+  `served` INT NOT NULL DEFAULT 0 COMMENT 'Обслужено',
+  `removed` INT NOT NULL DEFAULT 0 COMMENT 'Удалено по неявке',
+  `wait_sum` BIGINT NOT NULL DEFAULT 0 COMMENT 'Суммарное ожидание в милисекундах',
+  `work_sum` BIGINT NOT NULL DEFAULT 0 COMMENT 'Суммарная работа в милисекундах',
+  `wait_max` BIGINT NOT NULL DEFAULT 0 COMMENT 'Наибольшее ожидание в милисекундах',
+  `work_max` BIGINT NOT NULL DEFAULT 0 COMMENT 'Наибольшая работа в милисекундах',
+  PRIMARY KEY (`branch_id`, `stat_day`, `service_id`, `employee_id`))
+ENGINE = InnoDB
+COMMENT = 'Дневные итоги завершенных шагов. Ведутся приемом событий в той же транзакции, ночью сверяются со step';
+
+CREATE INDEX `idx_step_daily_day` ON `step_daily` (`stat_day` ASC);
+
+
+-- -----------------------------------------------------
+-- Table `customer_event`
+-- -----------------------------------------------------
+DROP TABLE IF EXISTS `customer_event` ;
+
+CREATE TABLE IF NOT EXISTS `customer_event` (
+  `id` BIGINT NOT NULL AUTO_INCREMENT,
+  `branch_id` BIGINT NOT NULL,
+  `event_type` INT NOT NULL COMMENT 'Вид события: 0-статус, 1-вставка в очередь, 2-удаление из очереди, 3-наименование услуги, 4-имя сотрудника',
+  `service_id` BIGINT NULL,
+  `employee_id` BIGINT NULL,
+  `customer_id` BIGINT NULL,
+  `status` INT NULL COMMENT 'Новое состояние клиента',
+  `number` INT NULL,
+  `prefix` VARCHAR(45) NULL,
+  `before_customer_id` BIGINT NULL,
+  `after_customer_id` BIGINT NULL,
+  `name` VARCHAR(500) NULL,
+  `seq` BIGINT NULL COMMENT 'Номер события в филиале от плагина',
+  `event_time` DATETIME(3) NULL COMMENT 'Когда событие произошло, по часам сервера',
+  `received` DATETIME(3) NOT NULL COMMENT 'Когда событие принято сервером',
+  PRIMARY KEY (`id`))
+ENGINE = InnoDB
+COMMENT = 'Журнал событий от филиалов, только вставка. customer и step - его проекции.';
+
+CREATE INDEX `idx_customer_event_branch` ON `customer_event` (`branch_id` ASC, `id` ASC);
+
+CREATE INDEX `idx_customer_event_branch_customer` ON `customer_event` (`branch_id` ASC, `event_type` ASC, `customer_id` ASC);
+
 
 -- -----------------------------------------------------
 -- Table `pager_data`
@@ -256,6 +305,34 @@ ENGINE = InnoDB;
 CREATE UNIQUE INDEX `token_UNIQUE` ON `auth` (`token_auth` ASC);
 
 
+-- -----------------------------------------------------
+-- Table `journal_applied`
+-- -----------------------------------------------------
+DROP TABLE IF EXISTS `journal_applied` ;
+
+CREATE TABLE IF NOT EXISTS `journal_applied` (
+  `id` BIGINT NOT NULL COMMENT 'Номер записи файлового журнала событий',
+  PRIMARY KEY (`id`))
+ENGINE = InnoDB
+COMMENT = 'Записи журнала событий, уже записанные в БД, чтобы не применить их повторно при проигрывании';
+
+-- -----------------------------------------------------
+-- Table `schema_version`
+-- -----------------------------------------------------
+DROP TABLE IF EXISTS `schema_version` ;
+
+CREATE TABLE IF NOT EXISTS `schema_version` (
+  `version` INT NOT NULL COMMENT 'Номер примененной миграции из db/migration',
+  `script` VARCHAR(255) NOT NULL,
+  `applied` DATETIME NOT NULL,
+  PRIMARY KEY (`version`))
+ENGINE = InnoDB
+COMMENT = 'Примененные миграции схемы, их применяет SchemaMigrator при старте';
+
+-- Этот скрипт уже содержит все миграции по V8 включительно
+INSERT INTO `schema_version` (`version`, `script`, `applied`) VALUES (8, 'qsky.sql', NOW());
+
+
 SET SQL_MODE=@OLD_SQL_MODE;
 SET FOREIGN_KEY_CHECKS=@OLD_FOREIGN_KEY_CHECKS;
 SET UNIQUE_CHECKS=@OLD_UNIQUE_CHECKS;
@@ -0,0 +1,334 @@
+/*
+ *  Copyright (C) 2010 {Apertum}Projects. web: www.apertum.ru email: info@apertum.ru
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ru.apertum.qsky.api;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+
+/**
+ * Одно событие от плагина филиала. Соответствует одному вызову {@link ICustomerEvents}.
+ * Неизменяемое, чтобы его можно было спокойно передавать между потоками обработки.
+ *
+ * @author Evgeniy Egorov
+ */
+public class CustomerEvent implements Serializable {
+
+    /**
+     * Вид события, по сути имя метода {@link ICustomerEvents}.
+     */
+    public enum Type {
+        STATUS,
+        INSERT,
+        REMOVE,
+        SERVICE_NAME,
+        USER_NAME
+    }
+
+    private final Type type;
+    private final Long branchId;
+    private final Long serviceId;
+    private final Long employeeId;
+    private final Long customerId;
+    private final Integer status;
+    private final Integer number;
+    private final String prefix;
+    private final Long beforeCustId;
+    private final Long afterCustId;
+    private final String name;
+    private final Long seq;
+    private final Long eventTime;
+    private final long received;
+    private final long journalId;
+
+    private CustomerEvent(Type type, Long branchId, Long serviceId, Long employeeId, Long customerId, Integer status, Integer number, String prefix,
+                          Long beforeCustId, Long afterCustId, String name) {
+        this(type, branchId, serviceId, employeeId, customerId, status, number, prefix, beforeCustId, afterCustId, name, null, null, System.currentTimeMillis(), 0);
+    }
+
+    private CustomerEvent(Type type, Long branchId, Long serviceId, Long employeeId, Long customerId, Integer status, Integer number, String prefix,
+                          Long beforeCustId, Long afterCustId, String name, Long seq, Long eventTime, long received, long journalId) {
+        this.type = type;
+        this.branchId = branchId;
+        this.serviceId = serviceId;
+        this.employeeId = employeeId;
+        this.customerId = customerId;
+        this.status = status;
+        this.number = number;
+        this.prefix = prefix;
+        this.beforeCustId = beforeCustId;
+        this.afterCustId = afterCustId;
+        this.name = name;
+        this.seq = seq;
+        this.eventTime = eventTime;
+        this.received = received;
+        this.journalId = journalId;
+    }
+
+    public static CustomerEvent status(Long branchId, Long serviceId, Long employeeId, Long customerId, Integer status, Integer number, String prefix) {
+        return new CustomerEvent(Type.STATUS, branchId, serviceId, employeeId, customerId, status, number, prefix, null, null, null);
+    }
+
+    public static CustomerEvent insert(Long branchId, Long serviceId, Long customerId, Long beforeCustId, Long afterCustId) {
+        return new CustomerEvent(Type.INSERT, branchId, serviceId, null, customerId, null, null, null, beforeCustId, afterCustId, null);
+    }
+
+    public static CustomerEvent remove(Long branchId, Long serviceId, Long customerId) {
+        return new CustomerEvent(Type.REMOVE, branchId, serviceId, null, customerId, null, null, null, null, null, null);
+    }
+
+    public static CustomerEvent serviceName(Long branchId, Long serviceId, String name) {
+        return new CustomerEvent(Type.SERVICE_NAME, branchId, serviceId, null, null, null, null, null, null, null, name);
+    }
+
+    public static CustomerEvent userName(Long branchId, Long employeeId, String name) {
+        return new CustomerEvent(Type.USER_NAME, branchId, null, employeeId, null, null, null, null, null, null, name);
+    }
+
+    /**
+     * Восстановить событие со всеми полями, например из таблицы customer_event.
+     */
+    public static CustomerEvent restore(Type type, Long branchId, Long serviceId, Long employeeId, Long customerId, Integer status, Integer number, String prefix,
+                                        Long beforeCustId, Long afterCustId, String name, Long seq, Long eventTime, long received) {
+        return new CustomerEvent(type, branchId, serviceId, employeeId, customerId, status, number, prefix, beforeCustId, afterCustId, name, seq, eventTime, received, 0);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public Long getBranchId() {
+        return branchId;
+    }
+
+    public Long getServiceId() {
+        return serviceId;
+    }
+
+    public Long getEmployeeId() {
+        return employeeId;
+    }
+
+    public Long getCustomerId() {
+        return customerId;
+    }
+
+    public Integer getStatus() {
+        return status;
+    }
+
+    public Integer getNumber() {
+        return number;
+    }
+
+    public String getPrefix() {
+        return prefix;
+    }
+
+    public Long getBeforeCustId() {
+        return beforeCustId;
+    }
+
+    public Long getAfterCustId() {
+        return afterCustId;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Ключ идемпотентности от филиала: номер события, уникальный в пределах филиала. Повтор с тем же номером
+     * при переотправке плагином отбрасывается. null если плагин номера не присылает.
+     *
+     * @return номер события или null.
+     */
+    public Long getSeq() {
+        return seq;
+    }
+
+    /**
+     * То же событие, но с номером от филиала.
+     *
+     * @param seq номер события, может быть null.
+     * @return копия события.
+     */
+    public CustomerEvent withSeq(Long seq) {
+        return new CustomerEvent(type, branchId, serviceId, employeeId, customerId, status, number, prefix, beforeCustId, afterCustId, name, seq, eventTime, received, journalId);
+    }
+
+    /**
+     * Когда событие произошло в филиале. Пока событие не принято сервером - по часам филиала,
+     * после приема - приведенное к часам сервера с учетом расхождения часов филиала.
+     *
+     * @return мс или null, если филиал время не прислал.
+     */
+    public Long getEventTime() {
+        return eventTime;
+    }
+
+    /**
+     * То же событие, но со временем, когда оно произошло.
+     *
+     * @param eventTime мс, может быть null.
+     * @return копия события.
+     */
+    public CustomerEvent withEventTime(Long eventTime) {
+        return new CustomerEvent(type, branchId, serviceId, employeeId, customerId, status, number, prefix, beforeCustId, afterCustId, name, seq, eventTime, received, journalId);
+    }
+
+    /**
+     * Когда событие принято сервером.
+     *
+     * @return мс.
+     */
+    public long getReceived() {
+        return received;
+    }
+
+    /**
+     * Время, которое пишется в шаги: когда событие произошло, а если филиал его не прислал - когда принято.
+     * Не время обработки, т.к. обработка идет с задержкой пачками, а бывает и повтором из журнала.
+     *
+     * @return мс.
+     */
+    public long getTime() {
+        return eventTime == null ? received : eventTime;
+    }
+
+    /**
+     * Номер записи в журнале событий. 0 если событие не журналировалось.
+     *
+     * @return номер записи.
+     */
+    public long getJournalId() {
+        return journalId;
+    }
+
+    /**
+     * То же событие, но с номером записи в журнале.
+     *
+     * @param journalId номер записи.
+     * @return копия события.
+     */
+    public CustomerEvent withJournalId(long journalId) {
+        return new CustomerEvent(type, branchId, serviceId, employeeId, customerId, status, number, prefix, beforeCustId, afterCustId, name, seq, eventTime, received, journalId);
+    }
+
+    /**
+     * Ключ, по которому события должны обрабатываться строго по порядку.
+     * Для клиента это сам клиент, для справочников - запись справочника.
+     *
+     * @return идентификатор внутри филиала.
+     */
+    public Long getOrderKey() {
+        switch (type) {
+            case SERVICE_NAME:
+                return serviceId;
+            case USER_NAME:
+                return employeeId;
+            default:
+                return customerId;
+        }
+    }
+
+    //*******************************************************************************************************
+    // Двоичный формат для журнала. Поля только дописываются в конец с повышением версии.
+
+    private static final int FORMAT_VERSION = 3;
+
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeByte(FORMAT_VERSION);
+        out.writeByte(type.ordinal());
+        writeLong(out, branchId);
+        writeLong(out, serviceId);
+        writeLong(out, employeeId);
+        writeLong(out, customerId);
+        writeInt(out, status);
+        writeInt(out, number);
+        writeString(out, prefix);
+        writeLong(out, beforeCustId);
+        writeLong(out, afterCustId);
+        writeString(out, name);
+        out.writeLong(received);
+        // версия 2
+        writeLong(out, seq);
+        // версия 3
+        writeLong(out, eventTime);
+    }
+
+    public static CustomerEvent readFrom(DataInput in, long journalId) throws IOException {
+        final int version = in.readByte();
+        if (version < 1 || version > FORMAT_VERSION) {
+            throw new IOException("Unknown event format version " + version);
+        }
+        final Type type = Type.values()[in.readByte()];
+        final Long branchId = readLong(in);
+        final Long serviceId = readLong(in);
+        final Long employeeId = readLong(in);
+        final Long customerId = readLong(in);
+        final Integer status = readInt(in);
+        final Integer number = readInt(in);
+        final String prefix = readString(in);
+        final Long beforeCustId = readLong(in);
+        final Long afterCustId = readLong(in);
+        final String name = readString(in);
+        final long received = in.readLong();
+        final Long seq = version >= 2 ? readLong(in) : null;
+        final Long eventTime = version >= 3 ? readLong(in) : null;
+        return new CustomerEvent(type, branchId, serviceId, employeeId, customerId, status, number, prefix, beforeCustId, afterCustId, name, seq, eventTime, received, journalId);
+    }
+
+    private static void writeLong(DataOutput out, Long value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeLong(value);
+        }
+    }
+
+    private static void writeInt(DataOutput out, Integer value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeInt(value);
+        }
+    }
+
+    private static void writeString(DataOutput out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static Long readLong(DataInput in) throws IOException {
+        return in.readBoolean() ? in.readLong() : null;
+    }
+
+    private static Integer readInt(DataInput in) throws IOException {
+        return in.readBoolean() ? in.readInt() : null;
+    }
+
+    private static String readString(DataInput in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    @Override
+    public String toString() {
+        return type + " " + branchId + "  ser-" + serviceId + "  usr-" + employeeId + "  cust-" + customerId + "  #" + status + (seq == null ? "" : "  seq-" + seq);
+    }
+}
@@ -17,6 +17,7 @@
 package ru.apertum.qsky.api;
 
 import javax.ejb.Local;
+import java.util.List;
 
 /**
  * @author egorov
@@ -32,7 +33,31 @@ public interface ICustomerEvents {
 
     Integer ping(String version);
 
+    /**
+     * ping с временем филиала, по нему учится расхождение часов филиала с сервером для времени событий.
+     *
+     * @param branchId филиал.
+     * @param time     время по часам филиала, мс.
+     */
+    Integer ping(String version, Long branchId, Long time);
+
     void sendServiceName(Long branchId, Long serviceId, String name);
 
     void sendUserName(Long branchId, Long employeeId, String name);
+
+    /**
+     * Пачка событий за один вызов. События одного клиента применяются в порядке следования в списке.
+     *
+     * @param events события любых видов вперемешку.
+     * @return сколько событий с начала списка принято. Остальные отвергнуты при перегрузке, их надо прислать позже еще раз.
+     * Повторы и неизмененные наименования считаются принятыми.
+     */
+    int sendEvents(List<CustomerEvent> events);
+
+    /**
+     * Живая ситуация в филиале по принятым событиям, без запроса к БД.
+     *
+     * @param branchId филиал.
+     */
+    SituationSnapshot getSituation(Long branchId);
 }
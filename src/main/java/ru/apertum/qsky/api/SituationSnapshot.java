@@ -0,0 +1,91 @@
+/*
+ *  Copyright (C) 2010 {Apertum}Projects. web: www.apertum.ru email: info@apertum.ru
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ru.apertum.qsky.api;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Снимок живой ситуации в филиале на момент запроса, см. {@link ICustomerEvents#getSituation}.
+ * Неизменяемый, его можно отдавать в потоки интерфейса.
+ *
+ * @author Evgeniy Egorov
+ */
+public final class SituationSnapshot implements Serializable {
+
+    /**
+     * Пустой филиал, по нему еще ничего не принято.
+     */
+    public static final SituationSnapshot EMPTY = new SituationSnapshot(Collections.emptyMap(), 0, 0, 0, 0);
+
+    private final Map<Long, Integer> waitingByService;
+    private final int waiting;
+    private final long maxWaiting;
+    private final long waitSum;
+    private final int averaged;
+
+    /**
+     * @param waitingByService услуга -> сколько клиентов к ней ждет.
+     * @param waiting          сколько клиентов ждет всего.
+     * @param maxWaiting       ожидание самого давно ждущего клиента, мс.
+     * @param waitSum          сумма ожиданий сегодняшних клиентов, мс.
+     * @param averaged         по скольким клиентам считать среднее.
+     */
+    public SituationSnapshot(Map<Long, Integer> waitingByService, int waiting, long maxWaiting, long waitSum, int averaged) {
+        this.waitingByService = Collections.unmodifiableMap(waitingByService);
+        this.waiting = waiting;
+        this.maxWaiting = maxWaiting;
+        this.waitSum = waitSum;
+        this.averaged = averaged;
+    }
+
+    /**
+     * @return услуга -> сколько клиентов к ней ждет.
+     */
+    public Map<Long, Integer> getWaitingByService() {
+        return waitingByService;
+    }
+
+    /**
+     * @return сколько клиентов ждет всего.
+     */
+    public int getWaiting() {
+        return waiting;
+    }
+
+    /**
+     * @return ожидание самого давно ждущего клиента, мс.
+     */
+    public long getMaxWaiting() {
+        return maxWaiting;
+    }
+
+    /**
+     * @return сумма ожиданий сегодняшних клиентов, мс.
+     */
+    public long getWaitSum() {
+        return waitSum;
+    }
+
+    /**
+     * @return среднее ожидание сегодняшних клиентов, мс.
+     */
+    public long getAverageWaiting() {
+        return averaged == 0 ? 0 : waitSum / averaged;
+    }
+}
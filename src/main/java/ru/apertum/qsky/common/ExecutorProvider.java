@@ -0,0 +1,57 @@
+/*
+ *  Copyright (C) 2010 {Apertum}Projects. web: www.apertum.ru email: info@apertum.ru
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ru.apertum.qsky.common;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Откуда брать потоки для приема событий и отчетов. Реализации ищутся через {@link java.util.ServiceLoader},
+ * какую взять - задает -DQSKY_EXECUTOR, см. {@link ExecutorProviders}.
+ * Работа в этих потоках почти все время ждет JDBC, поэтому на JDK 21+ выгоднее виртуальные потоки.
+ *
+ * @author Evgeniy Egorov
+ */
+public interface ExecutorProvider {
+
+    /**
+     * @return имя для выбора через QSKY_EXECUTOR, например platform.
+     */
+    String getName();
+
+    /**
+     * @return можно ли использовать в этой JVM.
+     */
+    boolean isAvailable();
+
+    /**
+     * Потоки для долгоживущих задач, например полос приема событий.
+     *
+     * @param name префикс имени потоков.
+     * @return фабрика потоков.
+     */
+    ThreadFactory newThreadFactory(String name);
+
+    /**
+     * Исполнитель для коротких блокирующих задач, например пересчета отчетов.
+     *
+     * @param name        префикс имени потоков.
+     * @param parallelism сколько задач выполнять одновременно, соблюдают все реализации.
+     * @return исполнитель, закрывает его вызывающий.
+     */
+    ExecutorService newExecutor(String name, int parallelism);
+}
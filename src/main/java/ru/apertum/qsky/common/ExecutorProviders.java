@@ -0,0 +1,69 @@
+/*
+ *  Copyright (C) 2010 {Apertum}Projects. web: www.apertum.ru email: info@apertum.ru
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ru.apertum.qsky.common;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ServiceLoader;
+
+/**
+ * Выбор {@link ExecutorProvider} по -DQSKY_EXECUTOR:
+ * <ul>
+ * <li>auto (по умолчанию) - виртуальные потоки, если JVM их умеет, иначе потоки платформы;</li>
+ * <li>platform, virtual или имя своей реализации из META-INF/services.</li>
+ * </ul>
+ * Если заказанная реализация не найдена или недоступна, берутся потоки платформы.
+ *
+ * @author Evgeniy Egorov
+ */
+public final class ExecutorProviders {
+
+    private static final Logger log = LogManager.getLogger(ExecutorProviders.class);
+
+    private ExecutorProviders() {
+    }
+
+    public static ExecutorProvider get() {
+        return Holder.PROVIDER;
+    }
+
+    private static final class Holder {
+
+        private static final ExecutorProvider PROVIDER = choose(System.getProperty("QSKY_EXECUTOR", "auto").trim());
+    }
+
+    private static ExecutorProvider choose(String name) {
+        final String wanted = "auto".equalsIgnoreCase(name) ? VirtualExecutorProvider.NAME : name;
+        for (ExecutorProvider provider : ServiceLoader.load(ExecutorProvider.class, ExecutorProvider.class.getClassLoader())) {
+            if (provider.getName().equalsIgnoreCase(wanted)) {
+                if (provider.isAvailable()) {
+                    log.info("Executor provider \"{}\" is used.", provider.getName());
+                    return provider;
+                }
+                if (!"auto".equalsIgnoreCase(name)) {
+                    log.warn("Executor provider \"{}\" is not available in this JVM.", provider.getName());
+                }
+            }
+        }
+        if (!"auto".equalsIgnoreCase(name) && !PlatformExecutorProvider.NAME.equalsIgnoreCase(name)) {
+            log.warn("Executor provider \"{}\" was not found, platform threads are used.", name);
+        }
+        log.info("Executor provider \"{}\" is used.", PlatformExecutorProvider.NAME);
+        return new PlatformExecutorProvider();
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ *  Copyright (C) 2010 {Apertum}Projects. web: www.apertum.ru email: info@apertum.ru
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ru.apertum.qsky.common;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Версионные миграции схемы. Скрипты лежат в ресурсах {@link #LOCATION}, их порядок задан списком migrations.list,
+ * номер версии - число после V в имени скрипта. Примененные версии записываются в таблицу schema_version,
+ * при старте применяются только более новые.
+ * <p>
+ * База без schema_version считается исходной схемой qsky.sql до миграций, либо версией baseline, если она задана.
+ * DDL в MySQL не транзакционный, поэтому версия записывается после каждого скрипта: упавший скрипт надо доделать
+ * руками и перезапустить сервер, уже примененные повторно не выполнятся.
+ *
+ * @author Evgeniy Egorov
+ */
+public class SchemaMigrator {
+
+    private static final Logger log = LogManager.getLogger(SchemaMigrator.class);
+
+    public static final String LOCATION = "db/migration/";
+
+    /**
+     * Один скрипт миграции.
+     */
+    public static final class Migration {
+
+        private final int version;
+        private final String script;
+
+        private Migration(int version, String script) {
+            this.version = version;
+            this.script = script;
+        }
+
+        public int getVersion() {
+            return version;
+        }
+
+        public String getScript() {
+            return script;
+        }
+
+        /**
+         * @return SQL-операторы скрипта по порядку.
+         */
+        public List<String> getStatements() {
+            return statements(read(LOCATION + script));
+        }
+    }
+
+    private final List<Migration> migrations;
+
+    public SchemaMigrator() {
+        final List<Migration> list = new ArrayList<>();
+        for (String line : read(LOCATION + "migrations.list").split("\n")) {
+            final String script = line.trim();
+            if (script.isEmpty() || script.startsWith("#")) {
+                continue;
+            }
+            if (!script.matches("V\\d+__.+\\.sql")) {
+                throw new ServerException("Bad migration script name \"" + script + "\".");
+            }
+            final int version = Integer.parseInt(script.substring(1, script.indexOf("__")));
+            if (!list.isEmpty() && list.get(list.size() - 1).getVersion() >= version) {
+                throw new ServerException("Migration " + script + " is out of order.");
+            }
+            list.add(new Migration(version, script));
+        }
+        migrations = Collections.unmodifiableList(list);
+    }
+
+    public List<Migration> getMigrations() {
+        return migrations;
+    }
+
+    /**
+     * Применить недостающие миграции.
+     *
+     * @param con      соединение с БД.
+     * @param baseline какой версией считать базу без schema_version. 0 - исходная схема до миграций.
+     * @return сколько миграций применено.
+     */
+    public int migrate(Connection con, int baseline) throws SQLException {
+        final int current = currentVersion(con, baseline);
+        int version = current;
+        int applied = 0;
+        for (Migration migration : migrations) {
+            if (migration.getVersion() <= current) {
+                continue;
+            }
+            log.info("Apply schema migration {}.", migration.getScript());
+            try (Statement st = con.createStatement()) {
+                for (String sql : migration.getStatements()) {
+                    st.execute(sql);
+                }
+            }
+            markApplied(con, migration.getVersion(), migration.getScript());
+            version = migration.getVersion();
+            applied++;
+        }
+        log.info("Schema version {}, {} migrations applied.", version, applied);
+        return applied;
+    }
+
+    private int currentVersion(Connection con, int baseline) throws SQLException {
+        try (Statement st = con.createStatement()) {
+            st.execute("create table if not exists schema_version (version int not null, script varchar(255) not null, "
+                    + "applied datetime not null, primary key (version))");
+            try (ResultSet rs = st.executeQuery("select count(*), max(version) from schema_version")) {
+                rs.next();
+                if (rs.getLong(1) > 0) {
+                    return rs.getInt(2);
+                }
+            }
+        }
+        if (baseline > 0) {
+            log.info("No schema version recorded, baseline {} is taken.", baseline);
+            markApplied(con, baseline, "baseline");
+        }
+        return baseline;
+    }
+
+    private static void markApplied(Connection con, int version, String script) throws SQLException {
+        try (PreparedStatement ps = con.prepareStatement("insert into schema_version (version, script, applied) values (?, ?, ?)")) {
+            ps.setInt(1, version);
+            ps.setString(2, script);
+            ps.setTimestamp(3, new Timestamp(System.currentTimeMillis()));
+            ps.executeUpdate();
+        }
+        if (!con.getAutoCommit()) {
+            con.commit();
+        }
+    }
+
+    /**
+     * Разбить скрипт на операторы: строки-комментарии "--" выкидываются, операторы разделены ";" в конце строки.
+     */
+    static List<String> statements(String script) {
+        final List<String> res = new ArrayList<>();
+        final StringBuilder sb = new StringBuilder();
+        for (String line : script.split("\n")) {
+            final String trimmed = line.trim();
+            if (trimmed.isEmpty() || trimmed.startsWith("--")) {
+                continue;
+            }
+            if (trimmed.endsWith(";")) {
+                sb.append(trimmed, 0, trimmed.length() - 1);
+                res.add(sb.toString().trim());
+                sb.setLength(0);
+            } else {
+                sb.append(trimmed).append('\n');
+            }
+        }
+        if (sb.toString().trim().length() > 0) {
+            res.add(sb.toString().trim());
+        }
+        return res;
+    }
+
+    private static String read(String resource) {
+        final InputStream in = SchemaMigrator.class.getClassLoader().getResourceAsStream(resource);
+        if (in == null) {
+            throw new ServerException("Resource " + resource + " not found.");
+        }
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            final StringBuilder sb = new StringBuilder();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                sb.append(line).append('\n');
+            }
+            return sb.toString();
+        } catch (IOException ex) {
+            throw new ServerException("Resource " + resource + " not read.", ex);
+        }
+    }
+}
@@ -30,4 +30,27 @@ public class Uses {
         return gc.getTime();
     }
 
+    /**
+     * Числовая настройка из системных свойств, например -DQSKY_INGEST_LANES=16
+     *
+     * @param name имя свойства.
+     * @param def  значение, если свойство не задано или кривое.
+     * @return значение настройки.
+     */
+    public static int getProperty(String name, int def) {
+        try {
+            return Integer.parseInt(System.getProperty(name, Integer.toString(def)).trim());
+        } catch (NumberFormatException ex) {
+            return def;
+        }
+    }
+
+    public static long getProperty(String name, long def) {
+        try {
+            return Long.parseLong(System.getProperty(name, Long.toString(def)).trim());
+        } catch (NumberFormatException ex) {
+            return def;
+        }
+    }
+
 }
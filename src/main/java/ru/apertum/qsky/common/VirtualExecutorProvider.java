@@ -0,0 +1,86 @@
+/*
+ *  Copyright (C) 2010 {Apertum}Projects. web: www.apertum.ru email: info@apertum.ru
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ru.apertum.qsky.common;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Виртуальные потоки, JDK 21+. Пока задача ждет JDBC, поток-носитель свободен,
+ * поэтому количество полос можно поднимать без настройки пулов.
+ * Проект собирается под Java 8, поэтому API виртуальных потоков вызывается через reflection.
+ * <p>
+ * Захват монитора (synchronized) внутри JDBC-драйвера на JDK 21-23 прикалывает виртуальный поток к носителю,
+ * выигрыш тогда меньше, но работает все так же правильно.
+ *
+ * @author Evgeniy Egorov
+ */
+public class VirtualExecutorProvider implements ExecutorProvider {
+
+    public static final String NAME = "virtual";
+
+    private static final Method OF_VIRTUAL;
+
+    static {
+        Method ofVirtual = null;
+        try {
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+        } catch (NoSuchMethodException ex) {
+            // JVM старше 21
+        }
+        OF_VIRTUAL = ofVirtual;
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * Thread.ofVirtual().name(name + "-", 0).factory()
+     */
+    @Override
+    public ThreadFactory newThreadFactory(String name) {
+        if (!isAvailable()) {
+            throw new ServerException("Virtual threads are not supported by this JVM.");
+        }
+        try {
+            final Object builder = OF_VIRTUAL.invoke(null);
+            final Class<?> builderClass = OF_VIRTUAL.getReturnType();
+            final Object named = builderClass.getMethod("name", String.class, long.class).invoke(builder, name + "-", 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(named);
+        } catch (ReflectiveOperationException ex) {
+            throw new ServerException("Virtual thread factory was not created.", ex);
+        }
+    }
+
+    /**
+     * Пул фиксированного размера на виртуальных потоках. Параллельность ограничиваем здесь, а не пулом соединений:
+     * задачи сверх него ждали бы соединение и отнимали его у приема событий.
+     */
+    @Override
+    public ExecutorService newExecutor(String name, int parallelism) {
+        return Executors.newFixedThreadPool(Math.max(1, parallelism), newThreadFactory(name));
+    }
+}
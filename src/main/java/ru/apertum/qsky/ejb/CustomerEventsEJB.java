@@ -18,30 +18,67 @@ package ru.apertum.qsky.ejb;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.hibernate.FetchMode;
 import org.hibernate.Session;
-import org.hibernate.Transaction;
 import org.hibernate.criterion.CriteriaSpecification;
-import org.hibernate.criterion.DetachedCriteria;
+import org.hibernate.criterion.Order;
 import org.hibernate.criterion.Property;
+import org.hibernate.exception.JDBCConnectionException;
+import org.hibernate.query.Query;
+import ru.apertum.qsky.api.CustomerEvent;
 import ru.apertum.qsky.api.ICustomerEvents;
+import ru.apertum.qsky.api.SituationSnapshot;
 import ru.apertum.qsky.common.CustomerState;
+import ru.apertum.qsky.common.ExecutorProviders;
 import ru.apertum.qsky.common.ServerProps;
+import ru.apertum.qsky.common.Uses;
+import ru.apertum.qsky.ingest.BranchSituation;
+import ru.apertum.qsky.ingest.ClockSkew;
+import ru.apertum.qsky.ingest.EventDeduplicator;
+import ru.apertum.qsky.ingest.EventDispatcher;
+import ru.apertum.qsky.ingest.EventJournal;
+import ru.apertum.qsky.ingest.EventLog;
+import ru.apertum.qsky.ingest.JournalMarks;
+import ru.apertum.qsky.ingest.IngestStats;
+import ru.apertum.qsky.ingest.NameIndex;
+import ru.apertum.qsky.ingest.ProjectionRebuilder;
+import ru.apertum.qsky.ingest.ResequenceBuffer;
+import ru.apertum.qsky.ingest.ServiceQueues;
+import ru.apertum.qsky.ingest.StepDaily;
+import ru.apertum.qsky.ingest.VisitCache;
 import ru.apertum.qsky.model.Branch;
 import ru.apertum.qsky.model.Customer;
 import ru.apertum.qsky.model.Employee;
 import ru.apertum.qsky.model.Service;
 import ru.apertum.qsky.model.Step;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
 import javax.ejb.EJB;
 import javax.ejb.Singleton;
+import java.io.File;
+import java.sql.PreparedStatement;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.Types;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * @author egorov
  */
 @Singleton(mappedName = "ejb/qskyapi/customer_events", name = "qskyapi/CustomerEventsEJB")
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
 public class CustomerEventsEJB implements ICustomerEvents {
 
     private Logger log = LogManager.getLogger(CustomerEventsEJB.class);
@@ -49,10 +86,578 @@ public class CustomerEventsEJB implements ICustomerEvents {
     @EJB(mappedName = "ejb/qskyapi/hibernate_session_factory")
     private IHibernateEJBLocal hib;
 
+    /**
+     * События одного клиента идут строго по порядку, разные клиенты и филиалы - параллельно.
+     */
+    private volatile EventDispatcher dispatcher;
+    /**
+     * Принятое событие сначала попадает в журнал, поэтому падение сервера или БД его не теряет. null если журнал выключен.
+     */
+    private EventJournal journal;
+    /**
+     * Отметки применения чистятся, когда контрольная точка журнала ушла вперед хотя бы на столько записей.
+     */
+    private static final long MARKS_PRUNE_STEP = 10000;
+    /**
+     * До какой контрольной точки отметки уже почищены.
+     */
+    private volatile long marksPruned;
+    /**
+     * Незавершенные визиты, чтобы не искать клиента в БД на каждое событие.
+     */
+    private VisitCache visits;
+    /**
+     * Повторно присланные плагином события отбрасываются до журнала и БД.
+     */
+    private EventDeduplicator dedup;
+    /**
+     * События клиентов, пришедшие раньше постановки клиента в очередь.
+     */
+    private ResequenceBuffer resequencer;
+    private IngestStats stats;
+    /**
+     * Наименования услуг и сотрудников, чтобы не писать неизмененные.
+     */
+    private NameIndex names;
+    /**
+     * Живые очереди к услугам, порядок в БД пишется снимком.
+     */
+    private ServiceQueues queues;
+    /**
+     * Писать ли каждое примененное событие в customer_event.
+     */
+    private boolean eventLog;
+    private ProjectionRebuilder rebuilder;
+    /**
+     * Расхождение часов филиалов для времени событий.
+     */
+    private ClockSkew clocks;
+    /**
+     * Насколько раньше события может быть приход клиента, мс. Граница поиска визита в БД.
+     */
+    private long visitLookback;
+    /**
+     * Живая ситуация в филиалах для дашборда.
+     */
+    private final BranchSituation situation = new BranchSituation();
+
+    @PostConstruct
+    private void startDispatcher() {
+        if (!"false".equalsIgnoreCase(System.getProperty("QSKY_JOURNAL"))) {
+            journal = new EventJournal(new File(System.getProperty("QSKY_JOURNAL_DIR", "journal")),
+                    Uses.getProperty("QSKY_JOURNAL_SEGMENT_SIZE", 64 * 1024 * 1024),
+                    Uses.getProperty("QSKY_JOURNAL_FORCE_PERIOD", 100L));
+        }
+        dedup = new EventDeduplicator(Uses.getProperty("QSKY_DEDUP_WINDOW", 600000L),
+                Uses.getProperty("QSKY_DEDUP_FINGERPRINT_WINDOW", 0L),
+                Uses.getProperty("QSKY_DEDUP_MAX_KEYS", 20000));
+        resequencer = new ResequenceBuffer(Uses.getProperty("QSKY_RESEQUENCE_TIMEOUT", 3000L),
+                Uses.getProperty("QSKY_RESEQUENCE_MAX_EVENTS", 10000));
+        visitLookback = Uses.getProperty("QSKY_VISIT_LOOKBACK", 2 * 86400000L);
+        clocks = new ClockSkew(Uses.getProperty("QSKY_CLOCK_SKEW_MAX", 3600000L), Uses.getProperty("QSKY_EVENT_TIME_MAX_LAG", 86400000L));
+        names = new NameIndex();
+        loadNames();
+        queues = new ServiceQueues(Uses.getProperty("QSKY_QUEUE_SNAPSHOT_PERIOD", 1000L),
+                Uses.getProperty("QSKY_QUEUE_TOMBSTONE_TTL", 600000L), this::saveQueues);
+        loadQueues();
+        loadSituation(null);
+        visits = new VisitCache(Uses.getProperty("QSKY_VISIT_CACHE_SIZE", 100000));
+        eventLog = !"false".equalsIgnoreCase(System.getProperty("QSKY_EVENT_LOG"));
+        dispatcher = new EventDispatcher("qsky-ingest", ExecutorProviders.get().newThreadFactory("qsky-ingest"),
+                Uses.getProperty("QSKY_INGEST_LANES", Runtime.getRuntime().availableProcessors() * 2),
+                Uses.getProperty("QSKY_INGEST_BATCH_SIZE", 100),
+                Uses.getProperty("QSKY_INGEST_BATCH_WINDOW", 5L),
+                Uses.getProperty("QSKY_INGEST_QUEUE_CAPACITY", 100000),
+                Uses.getProperty("QSKY_INGEST_BRANCH_QUOTA", 0),
+                EventDispatcher.OverloadPolicy.valueOf(System.getProperty("QSKY_INGEST_OVERLOAD_POLICY", "BLOCK").toUpperCase()),
+                Uses.getProperty("QSKY_INGEST_BLOCK_TIMEOUT", 2000L),
+                new File(System.getProperty("QSKY_INGEST_SPILL_DIR", "spill")),
+                this::applyBatch);
+        rebuilder = new ProjectionRebuilder(this::eventLogBranches, this::rebuildBranch, Uses.getProperty("QSKY_REBUILD_PARALLELISM", 4));
+        stats = new IngestStats(dispatcher, journal, dedup, resequencer, visits, rebuilder);
+        stats.register();
+        // потоки полос стартуют, когда все, что трогает обработчик пачки, уже создано и присвоено
+        // при журнале недообработанное прошлого запуска проигрывает он, файлы слива были бы повтором
+        dispatcher.start(journal == null);
+        if (journal != null) {
+            // то, что не успели записать в прошлый раз, идет раньше новых событий и не теряется при переполнении
+            try {
+                for (CustomerEvent event : unapplied(journal.replay())) {
+                    // наименование из журнала новее того, что в БД
+                    names.offer(event);
+                    dispatcher.put(event);
+                }
+            } catch (InterruptedException ex) {
+                log.warn("Journal replay was interrupted. The rest will be replayed on next start.");
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @PreDestroy
+    private void stopDispatcher() {
+        stats.unregister();
+        dispatcher.shutdown(Uses.getProperty("QSKY_INGEST_SHUTDOWN_TIMEOUT", 30000L));
+        queues.close();
+        if (journal != null) {
+            journal.close();
+        }
+    }
+
+    /**
+     * Отсеять из проигрываемого журнала события, которые успели записаться в БД до падения, но не были отмечены в журнале.
+     * Проигрывание не идет через отсев повторов, поэтому без этого они создали бы шаги второй раз.
+     *
+     * @param replayed события после контрольной точки журнала.
+     * @return события, которых в БД еще нет.
+     */
+    private List<CustomerEvent> unapplied(List<CustomerEvent> replayed) {
+        final Session ses = hib.openSession();
+        try {
+            ses.beginTransaction();
+            final Set<Long> marks = ses.doReturningWork(con -> JournalMarks.applied(con, journal.getCheckpoint()));
+            ses.doWork(JournalMarks::clear);
+            ses.getTransaction().commit();
+            final ArrayList<CustomerEvent> res = new ArrayList<>(replayed.size());
+            final ArrayList<CustomerEvent> done = new ArrayList<>();
+            for (CustomerEvent event : replayed) {
+                (marks.contains(event.getJournalId()) ? done : res).add(event);
+            }
+            journal.applied(done);
+            log.info("Journal replay: {} events are already in DB and skipped.", done.size());
+            return res;
+        } catch (RuntimeException ex) {
+            log.warn("Applied journal records were not read, all unapplied events are replayed. {}", ex.toString());
+            if (ses.getTransaction().isActive()) {
+                ses.getTransaction().rollback();
+            }
+            return replayed;
+        } finally {
+            ses.close();
+        }
+    }
+
+    /**
+     * Прогрев индекса наименований тем, что уже есть в БД.
+     */
+    private void loadNames() {
+        final Session ses = hib.openSession();
+        try {
+            for (Service service : (List<Service>) ses.createCriteria(Service.class).list()) {
+                names.loadService(service.getBranchId(), service.getServiceId(), service.getName());
+            }
+            for (Employee employee : (List<Employee>) ses.createCriteria(Employee.class).list()) {
+                names.loadEmployee(employee.getBranchId(), employee.getEmployeeId(), employee.getName());
+            }
+            log.info("Name index is loaded: {} names.", names.size());
+        } catch (RuntimeException ex) {
+            log.warn("Name index was not loaded, names will be written as they come. {}", ex.toString());
+        } finally {
+            ses.close();
+        }
+    }
+
+    /**
+     * Принять событие в обработку. Событие, уже записанное в журнал, при перегрузке не отвергается,
+     * а сливается на диск полосы: оно будет применено после того, что уже стоит в очереди.
+     *
+     * @return false если событие отвергнуто при перегрузке и не сохранено, его надо прислать еще раз.
+     * Повтор и неизмененное наименование считаются принятыми.
+     */
+    private boolean accept(CustomerEvent source) {
+        final CustomerEvent event = clocks.toServerTime(source);
+        if (!names.offer(event)) {
+            log.debug("Name is not changed: {}", event);
+            return true;
+        }
+        if (dedup.isDuplicate(event)) {
+            log.info("Duplicate event dropped: {}", event);
+            return true;
+        }
+        final CustomerEvent journaled = journal == null ? event : journal.append(event);
+        if (dispatcher.submit(journaled, journal != null)) {
+            return true;
+        }
+        if (journal != null) {
+            // слить на диск не вышло, но событие в журнале и не отмечено примененным: его проиграет следующий старт
+            log.error("Ingest queue is full and event was not spilled. It stays in journal until restart: {}", event);
+            return true;
+        }
+        log.warn("Ingest queue is full, event rejected: {}", event);
+        dedup.forget(event);
+        names.forget(Collections.singletonList(event));
+        return false;
+    }
+
     @Override
-    public synchronized void changeCustomerStatus(Long branchId, Long serviceId, Long employeeId, Long customerId, Integer status, Integer number, String prefix) {
+    public void changeCustomerStatus(Long branchId, Long serviceId, Long employeeId, Long customerId, Integer status, Integer number, String prefix) {
         log.info(branchId + "  ser-" + serviceId + "  usr-" + employeeId + "  cust-" + customerId + "  #" + status + "  №" + prefix + number);
+        accept(CustomerEvent.status(branchId, serviceId, employeeId, customerId, status, number, prefix));
+    }
+
+    @Override
+    public void insertCustomer(Long branchId, Long serviceId, Long customerId, Long beforeCustId, Long afterCustId) {
+        accept(CustomerEvent.insert(branchId, serviceId, customerId, beforeCustId, afterCustId));
+    }
+
+    @Override
+    public void removeCustomer(Long branchId, Long serviceId, Long customerId) {
+        accept(CustomerEvent.remove(branchId, serviceId, customerId));
+    }
+
+    @Override
+    public void sendServiceName(Long branchId, Long serviceId, String name) {
+        accept(CustomerEvent.serviceName(branchId, serviceId, name));
+    }
+
+    @Override
+    public void sendUserName(Long branchId, Long employeeId, String name) {
+        accept(CustomerEvent.userName(branchId, employeeId, name));
+    }
+
+    @Override
+    public int sendEvents(List<CustomerEvent> events) {
+        log.debug("Batch of {} events received.", events.size());
+        int res = 0;
+        for (CustomerEvent event : events) {
+            if (!accept(event)) {
+                // дальше не принимаем, чтобы плагин мог прислать остаток пачки по порядку
+                log.warn("Ingest is overloaded. {} of {} events are not accepted.", events.size() - res, events.size());
+                break;
+            }
+            res++;
+        }
+        return res;
+    }
+
+    @Override
+    public SituationSnapshot getSituation(Long branchId) {
+        return situation.getSnapshot(branchId);
+    }
+
+    /**
+     * Запись пачки событий одной транзакцией в потоке полосы.
+     * Сначала дописываются просроченные придержанные события этой полосы, их уже не придерживаем.
+     *
+     * @param events события в порядке поступления. Пустая пачка - тик простоя полосы.
+     */
+    private void applyBatch(List<CustomerEvent> events) {
+        if (events.isEmpty() && resequencer.size() == 0) {
+            return;
+        }
+        final List<CustomerEvent> expired = resequencer.expired(System.currentTimeMillis(), dispatcher::isOwnLane);
+        if (!expired.isEmpty()) {
+            log.warn("{} events have not got STATE_WAIT of their customers in time. Apply them as is.", expired.size());
+            applyBatch(expired, false);
+        }
+        if (!events.isEmpty()) {
+            applyBatch(events, true);
+        }
+    }
+
+    /**
+     * Если пачка не записалась, то события пишутся по одному, чтобы одно кривое событие не потянуло за собой остальные.
+     * Если не записалось из-за недоступной БД, то полоса ждет БД, а события остаются в журнале.
+     *
+     * @param events  события в порядке поступления.
+     * @param mayPark можно ли придержать событие клиента, которого еще нет.
+     */
+    private void applyBatch(List<CustomerEvent> events, boolean mayPark) {
+        try {
+            if (events.size() > 1) {
+                try {
+                    applied(writeUntilDbIsBack(events, mayPark));
+                    return;
+                } catch (RuntimeException ex) {
+                    if (isDbUnavailable(ex)) {
+                        log.warn("DB is unavailable on shutdown. {} events are left in journal.", events.size());
+                        return;
+                    }
+                    log.error("Batch of " + events.size() + " events failed. Apply them one by one.", ex);
+                }
+            }
+            for (CustomerEvent event : events) {
+                final List<CustomerEvent> one = Collections.singletonList(event);
+                try {
+                    applied(writeUntilDbIsBack(one, mayPark));
+                } catch (RuntimeException ex) {
+                    if (isDbUnavailable(ex)) {
+                        log.warn("DB is unavailable on shutdown. Events from {} are left in journal.", event);
+                        return;
+                    }
+                    // повтор не поможет, событие выкидываем, чтобы не проигрывать его вечно
+                    log.error("Event was not applied: " + event, ex);
+                    applied(one);
+                }
+            }
+        } catch (InterruptedException ex) {
+            log.warn("Writing of {} events was interrupted. They are left in journal.", events.size());
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Пока БД недоступна и сервер работает, повторять запись с нарастающей паузой.
+     * Полоса при этом стоит, порядок событий не нарушается, а новые события копятся в журнале, очереди и файлах слива.
+     */
+    private List<CustomerEvent> writeUntilDbIsBack(List<CustomerEvent> events, boolean mayPark) throws InterruptedException {
+        long pause = 500;
+        while (true) {
+            try {
+                return write(events, mayPark);
+            } catch (RuntimeException ex) {
+                if (!isDbUnavailable(ex) || !dispatcher.isRunning()) {
+                    throw ex;
+                }
+                log.warn("DB is unavailable. {} events wait {} ms. {}", events.size(), pause, ex.toString());
+                Thread.sleep(pause);
+                pause = Math.min(pause * 2, 30000);
+            }
+        }
+    }
+
+    /**
+     * Одна транзакция.
+     *
+     * @return записанные события: пачка без придержанных плюс отпущенные ранее придержанные.
+     */
+    private List<CustomerEvent> write(List<CustomerEvent> events, boolean mayPark) {
+        final ArrayList<CustomerEvent> done = new ArrayList<>(events.size());
+        final ArrayList<CustomerEvent> released = new ArrayList<>(0);
+        final ArrayList<Runnable> changes = new ArrayList<>(events.size());
+        final IngestSession ses = hib.openIngestSession();
+        try {
+            ses.beginTransaction();
+            for (CustomerEvent event : events) {
+                if (mayPark && park(ses, event)) {
+                    continue;
+                }
+                if (event.getType() == CustomerEvent.Type.STATUS && !isWait(event)) {
+                    // буфер полон и событие не придержано, ранее придержанные события клиента идут перед ним
+                    for (CustomerEvent early : resequencer.release(event.getBranchId(), event.getCustomerId())) {
+                        apply(ses, early);
+                        done.add(early);
+                        released.add(early);
+                        changes.add(situationChange(early));
+                    }
+                }
+                apply(ses, event);
+                done.add(event);
+                changes.add(situationChange(event));
+                if (isWait(event)) {
+                    // клиент появился, его ранние события идут следом в той же транзакции
+                    for (CustomerEvent early : resequencer.release(event.getBranchId(), event.getCustomerId())) {
+                        apply(ses, early);
+                        done.add(early);
+                        released.add(early);
+                        changes.add(situationChange(early));
+                    }
+                }
+            }
+            ses.flush();
+            if (eventLog) {
+                ses.doWork(con -> EventLog.append(con, done));
+            }
+            if (journal != null) {
+                ses.doWork(con -> JournalMarks.mark(con, done));
+                final long checkpoint = journal.getCheckpoint();
+                if (checkpoint - marksPruned >= MARKS_PRUNE_STEP) {
+                    ses.doWork(con -> JournalMarks.prune(con, checkpoint));
+                    marksPruned = checkpoint;
+                }
+            }
+            ses.writeDaily();
+            ses.commit();
+            // откаченная пачка ситуацию не меняет
+            changes.forEach(Runnable::run);
+            return done;
+        } catch (RuntimeException ex) {
+            // сущности в кеше уже изменены, а в БД нет
+            visits.evictAll(events);
+            names.forget(events);
+            // при повторе придержанные будут придержаны заново, а отпущенные должны дождаться своего STATE_WAIT опять
+            resequencer.cancel(events);
+            for (CustomerEvent early : released) {
+                resequencer.restore(early, System.currentTimeMillis());
+            }
+            try {
+                ses.rollback();
+            } catch (RuntimeException e) {
+                log.warn("Rollback failed. {}", e.toString());
+            }
+            throw ex;
+        } finally {
+            ses.close();
+        }
+    }
+
+    /**
+     * Пересобрать клиентов и шаги филиала из журнала customer_event.
+     * Удаляются и строятся заново только клиенты, которые есть в журнале, более ранняя история не трогается.
+     * Из журнала применяются только смены статусов: порядок в очереди живет в памяти, а наименования не проекция.
+     *
+     * @return сколько событий применено.
+     */
+    private long rebuildBranch(Long branchId) {
+        log.info("Rebuild projections of branch {}.", branchId);
+        visits.evictBranch(branchId);
+        final IngestSession ses = hib.openIngestSession();
+        long count = 0;
+        try {
+            ses.beginTransaction();
+            ses.doWork(con -> {
+                final String logged = " where branch_id = ? and customer_id in (select customer_id from customer_event where branch_id = ? and event_type = "
+                        + CustomerEvent.Type.STATUS.ordinal() + ")";
+                for (String sql : new String[]{
+                        "update customer set first_step_id = null, current_step_id = null, before_customer_id = null, after_customer_id = null" + logged,
+                        "delete from step" + logged,
+                        "delete from customer" + logged}) {
+                    try (PreparedStatement ps = con.prepareStatement(sql)) {
+                        ps.setLong(1, branchId);
+                        ps.setLong(2, branchId);
+                        ps.executeUpdate();
+                    }
+                }
+            });
+            ses.commit();
+            long last = 0;
+            List<EventLog.Entry> chunk;
+            do {
+                final long after = last;
+                ses.beginTransaction();
+                chunk = ses.doReturningWork(con -> EventLog.read(con, branchId, after, 1000));
+                for (EventLog.Entry entry : chunk) {
+                    if (entry.getEvent().getType() == CustomerEvent.Type.STATUS) {
+                        apply(ses, entry.getEvent());
+                        count++;
+                    }
+                    last = entry.getId();
+                }
+                ses.commit();
+            } while (chunk.size() == 1000);
+            // вклад удаленных шагов остался в итогах, шаги филиала сворачиваются в итоги заново
+            ses.beginTransaction();
+            ses.doWork(con -> StepDaily.rollup(con, branchId, null, LocalDate.now().plusDays(1)));
+            ses.commit();
+            return count;
+        } catch (RuntimeException ex) {
+            ses.rollback();
+            throw ex;
+        } finally {
+            ses.close();
+            // в кеше визиты из сессии пересборки, пусть прием загрузит их заново
+            visits.evictBranch(branchId);
+            queues.touchBranch(branchId);
+            situation.clear(branchId);
+            loadSituation(branchId);
+        }
+    }
+
+    private List<Long> eventLogBranches() {
+        final Session ses = hib.openSession();
+        try {
+            return ses.doReturningWork(EventLog::branches);
+        } finally {
+            ses.close();
+        }
+    }
+
+    /**
+     * Придержать событие, если клиента еще нет или у него уже есть придержанные события.
+     * STATE_WAIT не придерживается никогда, именно он создает клиента.
+     *
+     * @return true если событие придержано и сейчас не применяется.
+     */
+    private boolean park(IngestSession ses, CustomerEvent event) {
+        if (event.getType() != CustomerEvent.Type.STATUS || event.getStatus() == null || isWait(event)) {
+            return false;
+        }
+        if (!resequencer.isWaiting(event.getBranchId(), event.getCustomerId()) && getVisit(ses, new Date(event.getTime()), event.getBranchId(), event.getCustomerId()) != null) {
+            return false;
+        }
+        if (resequencer.park(event, System.currentTimeMillis())) {
+            log.info("Customer not found yet, event is parked: {}", event);
+            return true;
+        }
+        return false;
+    }
 
+    /**
+     * Что поменять в живой ситуации, когда пачка будет зафиксирована.
+     * Клиент берется сейчас, следующее событие пачки может изменить его еще раз.
+     * Закончивший визит уже выкинут из кеша, тогда известно только его новое состояние.
+     */
+    private Runnable situationChange(CustomerEvent event) {
+        if (event.getType() != CustomerEvent.Type.STATUS) {
+            return () -> {
+            };
+        }
+        final Long branchId = event.getBranchId();
+        final Long customerId = event.getCustomerId();
+        final VisitCache.Visit visit = visits.get(branchId, customerId);
+        if (visit == null || visit.getCustomer().getVisitTime() == null) {
+            final Integer status = event.getStatus();
+            return () -> situation.close(branchId, customerId, status);
+        }
+        final Customer customer = visit.getCustomer();
+        final Long serviceId = customer.getServiceId();
+        final Integer state = customer.getState();
+        final Long waiting = customer.getWaiting();
+        final long visitTime = customer.getVisitTime().getTime();
+        return () -> situation.update(branchId, customerId, serviceId, state, waiting, visitTime);
+    }
+
+    private static boolean isWait(CustomerEvent event) {
+        return event.getType() == CustomerEvent.Type.STATUS && event.getStatus() != null && event.getStatus() == CustomerState.STATE_WAIT.ordinal();
+    }
+
+    private void applied(List<CustomerEvent> events) {
+        if (journal != null) {
+            journal.applied(events);
+        }
+    }
+
+    private static boolean isDbUnavailable(Throwable ex) {
+        for (Throwable th = ex; th != null; th = th.getCause()) {
+            if (th instanceof JDBCConnectionException
+                    || th instanceof SQLTransientConnectionException
+                    || th instanceof SQLNonTransientConnectionException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Обработка одного события. Транзакцией управляет вызывающий.
+     *
+     * @param ses   сессия пачки.
+     * @param event событие от филиала.
+     */
+    private void apply(IngestSession ses, CustomerEvent event) {
+        final Date now = new Date(event.getTime());
+        switch (event.getType()) {
+            case STATUS:
+                applyStatus(ses, now, event.getBranchId(), event.getServiceId(), event.getEmployeeId(), event.getCustomerId(), event.getStatus(), event.getNumber(), event.getPrefix());
+                break;
+            case INSERT:
+                applyInsert(event.getBranchId(), event.getServiceId(), event.getCustomerId(), event.getBeforeCustId(), event.getAfterCustId());
+                break;
+            case REMOVE:
+                applyRemove(event.getBranchId(), event.getServiceId(), event.getCustomerId());
+                break;
+            case SERVICE_NAME:
+                applyServiceName(ses, event);
+                break;
+            case USER_NAME:
+                applyUserName(ses, event);
+                break;
+            default:
+                throw new AssertionError();
+        }
+    }
+
+    private void applyStatus(IngestSession ses, Date now, Long branchId, Long serviceId, Long employeeId, Long customerId, Integer status, Integer number, String prefix) {
         if (status >= CustomerState.values().length) {
             log.warn("Status {} is strange in list {}.", status, CustomerState.values());
         } else {
@@ -61,63 +666,63 @@ public class CustomerEventsEJB implements ICustomerEvents {
             switch (cs) {
                 //0 удален по неявке
                 case STATE_DEAD:
-                    kickCustomer(branchId, serviceId, customerId, employeeId, status);
+                    kickCustomer(ses, now, branchId, serviceId, customerId, employeeId, status);
                     break;
 
                 // 1 стоит и ждет в очереди
                 case STATE_WAIT:
-                    standInService(branchId, serviceId, customerId, status, number, prefix);
+                    standInService(ses, now, branchId, serviceId, customerId, status, number, prefix);
                     break;
 
                 // 2 стоит и ждет в очереди после того, как отлежался в отложенных положенное время и автоматически отправился в прежнюю очередь с повышенным приоритетом
                 case STATE_WAIT_AFTER_POSTPONED:
-                    moveToWaitCustomerAfterPostpone(branchId, customerId, serviceId, status);
+                    moveToWaitCustomerAfterPostpone(ses, now, branchId, customerId, serviceId, status);
                     break;
 
                 // 3 Кастомер был опять поставлен в очередь т.к. услуга комплекстая и ждет с номером
                 case STATE_WAIT_COMPLEX_SERVICE:
-                    moveToWaitNextComplexService(branchId, customerId, serviceId, employeeId, status);
+                    moveToWaitNextComplexService(ses, now, branchId, customerId, serviceId, employeeId, status);
                     break;
 
                 // 4 пригласили
                 case STATE_INVITED:
-                    inviteCustomer(branchId, serviceId, customerId, status, number, prefix, employeeId);
+                    inviteCustomer(ses, now, branchId, serviceId, customerId, status, number, prefix, employeeId);
                     break;
 
                 // 5 пригласили повторно в цепочке обработки. т.е. клиент вызван к оператору не первый раз а после редиректа или отложенности
                 case STATE_INVITED_SECONDARY:
-                    inviteSecondary(branchId, customerId, serviceId, employeeId, status);
+                    inviteSecondary(ses, now, branchId, customerId, serviceId, employeeId, status);
                     break;
 
                 // 6 отправили в другую очередь, идет как бы по редиректу в верх. Стоит ждет к новой услуге.
                 case STATE_REDIRECT:
-                    redirectCustomer(branchId, customerId, employeeId, serviceId, status);
+                    redirectCustomer(ses, now, branchId, customerId, employeeId, serviceId, status);
                     break;
 
                 // 7 начали с ним работать
                 case STATE_WORK:
-                    startWorkWithCustomer(branchId, customerId, serviceId, employeeId, status);
+                    startWorkWithCustomer(ses, now, branchId, customerId, serviceId, employeeId, status);
                     break;
 
                 // 8 начали с ним работать повторно в цепочке обработки
                 case STATE_WORK_SECONDARY:
-                    startWorkSecondary(branchId, customerId, serviceId, employeeId, status);
+                    startWorkSecondary(ses, now, branchId, customerId, serviceId, employeeId, status);
                     break;
 
                 // 9 состояние когда кастомер возвращается к прежней услуге после редиректа,
                 // по редиректу в низ. Стоит ждет к старой услуге.
                 case STATE_BACK:
-                    backInService(branchId, customerId, employeeId, serviceId, status);
+                    backInService(ses, now, branchId, customerId, employeeId, serviceId, status);
                     break;
 
                 // 10 с кастомером закончили работать и он идет домой
                 case STATE_FINISH:
-                    finishWorkWithCustomer(branchId, customerId, employeeId, status);
+                    finishWorkWithCustomer(ses, now, branchId, customerId, employeeId, status);
                     break;
 
                 // 11 с кастомером закончили работать и поместили в отложенные. домой не идет, сидит ждет покуда не вызовут.
                 case STATE_POSTPONED:
-                    customerToPostponed(branchId, customerId, employeeId, status);
+                    customerToPostponed(ses, now, branchId, customerId, employeeId, status);
                     break;
 
                 default:
@@ -126,506 +731,483 @@ public class CustomerEventsEJB implements ICustomerEvents {
         }
     }
 
-    public void standInService(Long branchId, Long serviceId, Long customerId, Integer status, Integer number, String prefix) {
+    public void standInService(IngestSession ses, Date now, Long branchId, Long serviceId, Long customerId, Integer status, Integer number, String prefix) {
         log.info("Start standInService. branchId={}, serviceId={}, customerId={}, status={}, number={}, prefix={}", branchId, serviceId, customerId, status, number, prefix);
-        Transaction transaction = null;
-        try (Session ses = hib.openSession()) {
-            transaction = ses.beginTransaction();
-            Customer customer = getCustomer(ses, branchId, customerId);
-            if (customer == null) {
-                customer = new Customer(branchId, customerId);
-            }
-            if (serviceId != null && serviceId > 0) {
-                customer.setServiceId(serviceId);
-            }
-            customer.setNumber(number);
-            customer.setPrefix(prefix);
-            customer.setState(status);
-
-            final Step firstStep = new Step(branchId, customerId);
-            firstStep.setServiceId(serviceId);
-            firstStep.setStandTime(new Date());
-            firstStep.setStartState(status);
-            customer.setFirstStep(firstStep);
-
-            ses.saveOrUpdate(firstStep);
-            ses.saveOrUpdate(customer);
-            transaction.commit();
-        } catch (Exception ex) {
-            log.error("Error standInService.", ex);
-            if (transaction != null) {
-                transaction.rollback();
-            }
+        final VisitCache.Visit visit = visits.get(branchId, customerId);
+        Customer customer = visit == null ? getCustomer(ses, now, branchId, customerId) : visit.getCustomer();
+        if (customer == null) {
+            customer = new Customer(branchId, customerId);
+            customer.setVisitTime(now);
         }
+        if (serviceId != null && serviceId > 0) {
+            customer.setServiceId(serviceId);
+        }
+        customer.setNumber(number);
+        customer.setPrefix(prefix);
+        customer.setState(status);
+
+        final Step firstStep = new Step(branchId, customerId);
+        firstStep.setServiceId(serviceId);
+        firstStep.setStandTime(now);
+        firstStep.setStartState(status);
+        customer.setFirstStep(firstStep);
+        // цепочка шагов начинается заново
+        customer.setCurrentStep(firstStep);
+        customer.setStepsCount(1);
+        customer.setWaitingSum(0L);
+        customer.setWorkingSum(0L);
+
+        ses.saveOrUpdate(firstStep);
+        ses.saveOrUpdate(customer);
+        visits.put(customer, firstStep);
         log.info("Finish standInService");
     }
 
-    public void kickCustomer(Long branchId, Long serviceId, Long customerId, Long employeeId, Integer status) {
+    public void kickCustomer(IngestSession ses, Date now, Long branchId, Long serviceId, Long customerId, Long employeeId, Integer status) {
         log.info("Start kickCustomer. branchId={}, serviceId={}, customerId={},  employeeId={}, status={}", branchId, serviceId, customerId, employeeId, status);
-        final Session ses = hib.openSession();
-        try {
-            ses.beginTransaction();
-            Customer customer = getCustomer(ses, branchId, customerId);
-            if (customer == null) {
-                log.error("ERROR: Customer not found id={}; branch={}", customerId, branchId);
-                return;
-            }
-            customer.setState(status);
-
-            if (customer.getFirstStep() != null) {
-                final Step step = customer.getFirstStep().getLastStep();
-                step.setFinishState(status);
-                step.setFinishTime(new Date());
-                step.setEmployeeId(employeeId);
-                ses.saveOrUpdate(step);
-            }
-            ses.saveOrUpdate(customer);
-            ses.getTransaction().commit();
-        } catch (Exception ex) {
-            ses.getTransaction().rollback();
-            System.out.println("ex = " + ex);
-            ex.printStackTrace(System.err);
-        } finally {
-            ses.close();
+        final VisitCache.Visit visit = getVisit(ses, now, branchId, customerId);
+        if (visit == null) {
+            log.error("ERROR: Customer not found id={}; branch={}", customerId, branchId);
+            return;
         }
+        final Customer customer = visit.getCustomer();
+        customer.setState(status);
+
+        if (visit.getStep() != null) {
+            final Step step = visit.getStep();
+            ses.finishing(step);
+            step.setFinishState(status);
+            step.setFinishTime(now);
+            step.setEmployeeId(employeeId);
+            ses.saveOrUpdate(step);
+        }
+        ses.saveOrUpdate(customer);
+        visits.evict(branchId, customerId);
         log.info("Finish kickCustomer");
     }
 
-    public void inviteCustomer(Long branchId, Long serviceId, Long customerId, Integer status, Integer number, String prefix, Long employeeId) {
+    public void inviteCustomer(IngestSession ses, Date now, Long branchId, Long serviceId, Long customerId, Integer status, Integer number, String prefix, Long employeeId) {
         log.info("Start inviteCustomer. branchId={}, serviceId={}, customerId={}, status={}, number={}, prefix={}", branchId, serviceId, customerId, status, number, prefix);
-
-        Customer customer = null;
-        try (Session ses = hib.openSession()) {
-            customer = getCustomer(ses, branchId, customerId);
-            if (customer == null) {
-                // мог быть вызван по услуге-рулону.
-                log.info("ERROR: Customer not found id={}", customerId);
-                standInService(branchId, serviceId, customerId, status, number, prefix);
-                customer = getCustomer(ses, branchId, customerId);
-                if (customer == null) {
-                    log.error("ERROR: Customer not found id={}; branch={}", customerId, branchId);
-                    return;
-                }
+        VisitCache.Visit visit = getVisit(ses, now, branchId, customerId);
+        if (visit == null) {
+            // мог быть вызван по услуге-рулону.
+            log.info("ERROR: Customer not found id={}", customerId);
+            standInService(ses, now, branchId, serviceId, customerId, status, number, prefix);
+            visit = getVisit(ses, now, branchId, customerId);
+            if (visit == null) {
+                log.error("ERROR: Customer not found id={}; branch={}", customerId, branchId);
+                return;
             }
         }
+        final Customer customer = visit.getCustomer();
+        customer.setState(status);
+        customer.setEmployeeId(employeeId);
 
-
-        Transaction transaction = null;
-        try (Session ses = hib.openSession()) {
-            transaction = ses.beginTransaction();
-            customer.setState(status);
-            customer.setEmployeeId(employeeId);
-
-            ses.saveOrUpdate(customer);
-            ses.getTransaction().commit();
-        } catch (Exception ex) {
-            log.error("Error invite.", ex);
-            transaction.rollback();
-        }
+        ses.saveOrUpdate(customer);
         log.info("Finish inviteCustomer");
     }
 
-    public void inviteSecondary(Long branchId, Long customerId, Long serviceId, Long employeeId, Integer status) {
+    public void inviteSecondary(IngestSession ses, Date now, Long branchId, Long customerId, Long serviceId, Long employeeId, Integer status) {
         log.info("Start inviteSecondary. branchId={}, customerId={},  serviceId={}, employeeId={}, status={}", branchId, customerId, serviceId, employeeId, status);
-        final Session ses = hib.openSession();
-        try {
-            ses.beginTransaction();
-            Customer customer = getCustomer(ses, branchId, customerId);
-            if (customer == null) {
-                log.error("ERROR: Customer not found id={}; branch={}", customerId, branchId);
-                return;
-            }
-            customer.setState(status);
-            customer.setEmployeeId(employeeId);
-            ses.saveOrUpdate(customer);
-            ses.getTransaction().commit();
-        } catch (Exception ex) {
-            ses.getTransaction().rollback();
-            log.error("Error Invite secondary.", ex);
-        } finally {
-            ses.close();
+        final VisitCache.Visit visit = getVisit(ses, now, branchId, customerId);
+        if (visit == null) {
+            log.error("ERROR: Customer not found id={}; branch={}", customerId, branchId);
+            return;
         }
+        final Customer customer = visit.getCustomer();
+        customer.setState(status);
+        customer.setEmployeeId(employeeId);
+        ses.saveOrUpdate(customer);
         log.info("Finish inviteSecondary");
     }
 
-    public void startWorkWithCustomer(Long branchId, Long customerId, Long serviceId, Long employeeId, Integer status) {
+    public void startWorkWithCustomer(IngestSession ses, Date now, Long branchId, Long customerId, Long serviceId, Long employeeId, Integer status) {
         log.info("Start startWorkWithCustomer. branchId={}, customerId={},  serviceId={}, employeeId={}, status={}", branchId, customerId, serviceId, employeeId, status);
-        final Session ses = hib.openSession();
-        try {
-            ses.beginTransaction();
-            Customer customer = getCustomer(ses, branchId, customerId);
-            if (customer == null) {
-                log.error("ERROR: Customer not found id={}; branch={}", customerId, branchId);
-                return;
-            }
-            if (serviceId != null && serviceId > 0) {
-                customer.setServiceId(serviceId);
-            }
-            customer.setState(status);
-
-            final Step step = customer.getFirstStep().getLastStep();
-            step.setEmployeeId(employeeId);
-            step.setServiceId(serviceId);
-            //step.setStartState(Customer.States.WORK_FIRST);
-            step.setStartTime(new Date());
-            step.setWaiting(step.getStartTime().getTime() - step.getStandTime().getTime());
-            customer.setWaiting((customer.getWaiting() * (customer.getFirstStep().getStepsCount() - 1) + step.getWaiting()) / customer.getFirstStep().getStepsCount());
-
-            ses.saveOrUpdate(step);
-            ses.saveOrUpdate(customer);
-            ses.getTransaction().commit();
-        } catch (Exception ex) {
-            ses.getTransaction().rollback();
-            log.error("Error startWorkWithCustomer." + ex);
-        } finally {
-            ses.close();
+        final VisitCache.Visit visit = getVisit(ses, now, branchId, customerId);
+        if (visit == null) {
+            log.error("ERROR: Customer not found id={}; branch={}", customerId, branchId);
+            return;
+        }
+        final Customer customer = visit.getCustomer();
+        if (serviceId != null && serviceId > 0) {
+            customer.setServiceId(serviceId);
         }
+        customer.setState(status);
+
+        final Step step = visit.getStep();
+        step.setEmployeeId(employeeId);
+        step.setServiceId(serviceId);
+        //step.setStartState(Customer.States.WORK_FIRST);
+        step.setStartTime(now);
+        step.setWaiting(step.getStartTime().getTime() - step.getStandTime().getTime());
+        addWaiting(customer, step);
+
+        ses.saveOrUpdate(step);
+        ses.saveOrUpdate(customer);
         log.info("Finish startWorkWithCustomer");
     }
 
-    public void startWorkSecondary(Long branchId, Long customerId, Long serviceId, Long employeeId, Integer status) {
+    public void startWorkSecondary(IngestSession ses, Date now, Long branchId, Long customerId, Long serviceId, Long employeeId, Integer status) {
         log.info("Start startWorkSecondary. branchId={}, customerId={},  serviceId={}, employeeId={}, status={}", branchId, customerId, serviceId, employeeId, status);
-        final Session ses = hib.openSession();
-        try {
-            ses.beginTransaction();
-            Customer customer = getCustomer(ses, branchId, customerId);
-            if (customer == null) {
-                log.error("ERROR: Customer not found id={}; branch={}", customerId, branchId);
-                return;
-            }
-            if (serviceId != null && serviceId > 0) {
-                customer.setServiceId(serviceId);
-            }
-            customer.setState(status);
+        final VisitCache.Visit visit = getVisit(ses, now, branchId, customerId);
+        if (visit == null) {
+            log.error("ERROR: Customer not found id={}; branch={}", customerId, branchId);
+            return;
+        }
+        final Customer customer = visit.getCustomer();
+        if (serviceId != null && serviceId > 0) {
+            customer.setServiceId(serviceId);
+        }
+        customer.setState(status);
 
-            final Step step = customer.getFirstStep().getLastStep();
-            step.setEmployeeId(employeeId);
-            step.setServiceId(serviceId);
-            step.setStartTime(new Date());
-            step.setWaiting(step.getStartTime().getTime() - step.getStandTime().getTime());
-            customer.setWaiting((customer.getWaiting() * (customer.getFirstStep().getStepsCount() - 1) + step.getWaiting()) / customer.getFirstStep().getStepsCount());
+        final Step step = visit.getStep();
+        step.setEmployeeId(employeeId);
+        step.setServiceId(serviceId);
+        step.setStartTime(now);
+        step.setWaiting(step.getStartTime().getTime() - step.getStandTime().getTime());
+        addWaiting(customer, step);
 
-            ses.saveOrUpdate(step);
-            ses.saveOrUpdate(customer);
-            ses.getTransaction().commit();
-        } catch (Exception ex) {
-            ses.getTransaction().rollback();
-            log.error("Error startWorkSecondary." + ex);
-        } finally {
-            ses.close();
-        }
+        ses.saveOrUpdate(step);
+        ses.saveOrUpdate(customer);
         log.info("Finish startWorkSecondary");
     }
 
-    public void customerToPostponed(Long branchId, Long customerId, Long employeeId, Integer status) {
+    public void customerToPostponed(IngestSession ses, Date now, Long branchId, Long customerId, Long employeeId, Integer status) {
         log.info("Start customerToPostponed. branchId={}, customerId={},  employeeId={}, status={}", branchId, customerId, employeeId, status);
-        final Session ses = hib.openSession();
-        try {
-            ses.beginTransaction();
-            Customer customer = getCustomer(ses, branchId, customerId);
-            if (customer == null) {
-                log.error("ERROR: Customer not found id={}; branch={}", customerId, branchId);
-                return;
-            }
-            customer.setState(status);
-
-            final Step step = customer.getFirstStep().getLastStep();
-            step.setEmployeeId(employeeId);
-            step.setFinishTime(new Date());
-            step.setFinishState(status);
-            step.setWorking(step.getFinishTime().getTime() - step.getStartTime().getTime());
-            customer.setWorking((customer.getWorking() * (customer.getFirstStep().getStepsCount() - 1) + step.getWorking()) / customer.getFirstStep().getStepsCount());
-
-            final Step postponedStep = new Step(branchId, customerId);
-            postponedStep.setStandTime(new Date());
-            postponedStep.setStartState(status);
-            step.setAfter(postponedStep);
-            postponedStep.setBefore(step);
-
-            ses.saveOrUpdate(postponedStep);
-            ses.saveOrUpdate(step);
-            ses.saveOrUpdate(customer);
-            ses.getTransaction().commit();
-        } catch (Exception ex) {
-            ses.getTransaction().rollback();
-            log.info("Error customerToPostponed.", ex);
-        } finally {
-            ses.close();
+        final VisitCache.Visit visit = getVisit(ses, now, branchId, customerId);
+        if (visit == null) {
+            log.error("ERROR: Customer not found id={}; branch={}", customerId, branchId);
+            return;
         }
+        final Customer customer = visit.getCustomer();
+        customer.setState(status);
+
+        final Step step = visit.getStep();
+        ses.finishing(step);
+        step.setEmployeeId(employeeId);
+        step.setFinishTime(now);
+        step.setFinishState(status);
+        step.setWorking(step.getFinishTime().getTime() - step.getStartTime().getTime());
+        addWorking(customer, step);
+
+        final Step postponedStep = new Step(branchId, customerId);
+        postponedStep.setStandTime(now);
+        postponedStep.setStartState(status);
+        step.setAfter(postponedStep);
+        postponedStep.setBefore(step);
+        addStep(visit, postponedStep);
+
+        ses.saveOrUpdate(postponedStep);
+        ses.saveOrUpdate(step);
+        ses.saveOrUpdate(customer);
         log.info("Finish customerToPostponed");
     }
 
-    public void redirectCustomer(Long branchId, Long customerId, Long employeeId, Long serviceId, Integer status) {
+    public void redirectCustomer(IngestSession ses, Date now, Long branchId, Long customerId, Long employeeId, Long serviceId, Integer status) {
         log.info("Start redirectCustomer. branchId={}, customerId={},  employeeId={}, serviceId={}, status={}", branchId, customerId, employeeId, serviceId, status);
-        final Session ses = hib.openSession();
-        try {
-            ses.beginTransaction();
-            Customer customer = getCustomer(ses, branchId, customerId);
-            if (customer == null) {
-                log.error("ERROR: Customer not found id={}; branch={}", customerId, branchId);
-                return;
-            }
-            customer.setState(status);
-            customer.setServiceId(serviceId);
-
-            final Step step = customer.getFirstStep().getLastStep();
-            step.setEmployeeId(employeeId);
-            step.setFinishTime(new Date());
-            step.setFinishState(status);
-            step.setWorking(step.getFinishTime().getTime() - step.getStartTime().getTime());
-            customer.setWorking((customer.getWorking() * (customer.getFirstStep().getStepsCount() - 1) + step.getWorking()) / customer.getFirstStep().getStepsCount());
-
-            final Step redirectedStep = new Step(branchId, customerId);
-            redirectedStep.setStandTime(new Date());
-            redirectedStep.setStartState(status);
-            redirectedStep.setServiceId(serviceId);
-            step.setAfter(redirectedStep);
-            redirectedStep.setBefore(step);
-
-            ses.saveOrUpdate(redirectedStep);
-            ses.saveOrUpdate(step);
-            ses.saveOrUpdate(customer);
-            ses.getTransaction().commit();
-        } catch (Exception ex) {
-            ses.getTransaction().rollback();
-            log.info("Error redirectCustomer.", ex);
-        } finally {
-            ses.close();
+        final VisitCache.Visit visit = getVisit(ses, now, branchId, customerId);
+        if (visit == null) {
+            log.error("ERROR: Customer not found id={}; branch={}", customerId, branchId);
+            return;
         }
+        final Customer customer = visit.getCustomer();
+        customer.setState(status);
+        customer.setServiceId(serviceId);
+
+        final Step step = visit.getStep();
+        ses.finishing(step);
+        step.setEmployeeId(employeeId);
+        step.setFinishTime(now);
+        step.setFinishState(status);
+        step.setWorking(step.getFinishTime().getTime() - step.getStartTime().getTime());
+        addWorking(customer, step);
+
+        final Step redirectedStep = new Step(branchId, customerId);
+        redirectedStep.setStandTime(now);
+        redirectedStep.setStartState(status);
+        redirectedStep.setServiceId(serviceId);
+        step.setAfter(redirectedStep);
+        redirectedStep.setBefore(step);
+        addStep(visit, redirectedStep);
+
+        ses.saveOrUpdate(redirectedStep);
+        ses.saveOrUpdate(step);
+        ses.saveOrUpdate(customer);
         log.info("Finish redirectCustomer");
     }
 
-    public void moveToWaitCustomerAfterPostpone(Long branchId, Long customerId, Long serviceId, Integer status) {
+    public void moveToWaitCustomerAfterPostpone(IngestSession ses, Date now, Long branchId, Long customerId, Long serviceId, Integer status) {
         log.info("Start moveToWaitCustomerAfterPostpone. branchId={}, customerId={}, serviceId={}, status={}", branchId, customerId, serviceId, status);
-        final Session ses = hib.openSession();
-        try {
-            ses.beginTransaction();
-            Customer customer = getCustomer(ses, branchId, customerId);
-            if (customer == null) {
-                log.error("ERROR: Customer not found id=" + customerId);
-                return;
-            }
-            customer.setState(status);
-            customer.setServiceId(serviceId);
-
-            final Step step = customer.getFirstStep().getLastStep();
-            step.setFinishTime(new Date());
-            step.setFinishState(status);
-            step.setWaiting(step.getFinishTime().getTime() - step.getStartTime().getTime());
-            customer.setWaiting((customer.getWaiting() * (customer.getFirstStep().getStepsCount() - 1) + step.getWaiting()) / customer.getFirstStep().getStepsCount());
-
-            final Step waitStep = new Step(branchId, customerId);
-            waitStep.setStandTime(new Date());
-            waitStep.setStartState(status);
-            waitStep.setServiceId(serviceId);
-            step.setAfter(waitStep);
-            waitStep.setBefore(step);
-
-            ses.saveOrUpdate(waitStep);
-            ses.saveOrUpdate(step);
-            ses.saveOrUpdate(customer);
-            ses.getTransaction().commit();
-        } catch (Exception ex) {
-            ses.getTransaction().rollback();
-            log.info("Error moveToWaitCustomerAfterPostpone.", ex);
-        } finally {
-            ses.close();
+        final VisitCache.Visit visit = getVisit(ses, now, branchId, customerId);
+        if (visit == null) {
+            log.error("ERROR: Customer not found id=" + customerId);
+            return;
         }
+        final Customer customer = visit.getCustomer();
+        customer.setState(status);
+        customer.setServiceId(serviceId);
+
+        final Step step = visit.getStep();
+        ses.finishing(step);
+        step.setFinishTime(now);
+        step.setFinishState(status);
+        step.setWaiting(step.getFinishTime().getTime() - step.getStartTime().getTime());
+        addWaiting(customer, step);
+
+        final Step waitStep = new Step(branchId, customerId);
+        waitStep.setStandTime(now);
+        waitStep.setStartState(status);
+        waitStep.setServiceId(serviceId);
+        step.setAfter(waitStep);
+        waitStep.setBefore(step);
+        addStep(visit, waitStep);
+
+        ses.saveOrUpdate(waitStep);
+        ses.saveOrUpdate(step);
+        ses.saveOrUpdate(customer);
         log.info("Finish moveToWaitCustomerAfterPostpone");
     }
 
-    public void moveToWaitNextComplexService(Long branchId, Long customerId, Long serviceId, Long employeeId, Integer status) {
+    public void moveToWaitNextComplexService(IngestSession ses, Date now, Long branchId, Long customerId, Long serviceId, Long employeeId, Integer status) {
         log.info("Start moveToWaitNextComplexService. branchId={}, customerId={}, serviceId={}, employeeId={}, status={}", branchId, customerId, serviceId, employeeId, status);
-        final Session ses = hib.openSession();
-        try {
-            ses.beginTransaction();
-            Customer customer = getCustomer(ses, branchId, customerId);
-            if (customer == null) {
-                log.error("ERROR: Customer not found id={}; branch={}", customerId, branchId);
-                return;
-            }
-            customer.setState(status);
-            customer.setServiceId(serviceId);
-
-            final Step step = customer.getFirstStep().getLastStep();
-            step.setEmployeeId(employeeId);
-            step.setFinishTime(new Date());
-            step.setFinishState(status);
-            step.setWorking(step.getFinishTime().getTime() - step.getStartTime().getTime());
-            customer.setWorking((customer.getWorking() * (customer.getFirstStep().getStepsCount() - 1) + step.getWorking()) / customer.getFirstStep().getStepsCount());
-
-            final Step nextComplexStep = new Step(branchId, customerId);
-            nextComplexStep.setStandTime(new Date());
-            nextComplexStep.setStartState(status);
-            nextComplexStep.setServiceId(serviceId);
-            step.setAfter(nextComplexStep);
-            nextComplexStep.setBefore(step);
-
-            ses.saveOrUpdate(nextComplexStep);
-            ses.saveOrUpdate(step);
-            ses.saveOrUpdate(customer);
-            ses.getTransaction().commit();
-        } catch (Exception ex) {
-            ses.getTransaction().rollback();
-            log.info("Error moveToWaitNextComplexService.", ex);
-        } finally {
-            ses.close();
+        final VisitCache.Visit visit = getVisit(ses, now, branchId, customerId);
+        if (visit == null) {
+            log.error("ERROR: Customer not found id={}; branch={}", customerId, branchId);
+            return;
         }
+        final Customer customer = visit.getCustomer();
+        customer.setState(status);
+        customer.setServiceId(serviceId);
+
+        final Step step = visit.getStep();
+        ses.finishing(step);
+        step.setEmployeeId(employeeId);
+        step.setFinishTime(now);
+        step.setFinishState(status);
+        step.setWorking(step.getFinishTime().getTime() - step.getStartTime().getTime());
+        addWorking(customer, step);
+
+        final Step nextComplexStep = new Step(branchId, customerId);
+        nextComplexStep.setStandTime(now);
+        nextComplexStep.setStartState(status);
+        nextComplexStep.setServiceId(serviceId);
+        step.setAfter(nextComplexStep);
+        nextComplexStep.setBefore(step);
+        addStep(visit, nextComplexStep);
+
+        ses.saveOrUpdate(nextComplexStep);
+        ses.saveOrUpdate(step);
+        ses.saveOrUpdate(customer);
         log.info("Finish moveToWaitNextComplexService");
     }
 
-    public void backInService(Long branchId, Long customerId, Long employeeId, Long serviceId, Integer status) {
+    public void backInService(IngestSession ses, Date now, Long branchId, Long customerId, Long employeeId, Long serviceId, Integer status) {
         log.info("Start backInService. branchId={}, customerId={},  employeeId={}, serviceId={}, status={}", branchId, customerId, employeeId, serviceId, status);
-        final Session ses = hib.openSession();
-        try {
-            ses.beginTransaction();
-            Customer customer = getCustomer(ses, branchId, customerId);
-            if (customer == null) {
-                log.error("ERROR: Customer not found id={}; branch={}", customerId, branchId);
-                return;
-            }
-            customer.setState(status);
-            customer.setServiceId(serviceId);
+        final VisitCache.Visit visit = getVisit(ses, now, branchId, customerId);
+        if (visit == null) {
+            log.error("ERROR: Customer not found id={}; branch={}", customerId, branchId);
+            return;
+        }
+        final Customer customer = visit.getCustomer();
+        customer.setState(status);
+        customer.setServiceId(serviceId);
+
+        final Step step = visit.getStep();
+        ses.finishing(step);
+        step.setEmployeeId(employeeId);
+        step.setFinishTime(now);
+        step.setFinishState(status);
+        step.setWorking(step.getFinishTime().getTime() - step.getStartTime().getTime());
+        addWorking(customer, step);
+
+        final Step redirectedStep = new Step(branchId, customerId);
+        redirectedStep.setStandTime(now);
+        redirectedStep.setStartState(status);
+        redirectedStep.setServiceId(serviceId);
+        step.setAfter(redirectedStep);
+        redirectedStep.setBefore(step);
+        addStep(visit, redirectedStep);
+
+        ses.saveOrUpdate(redirectedStep);
+        ses.saveOrUpdate(step);
+        ses.saveOrUpdate(customer);
+        log.info("Finish backInService");
+    }
 
-            final Step step = customer.getFirstStep().getLastStep();
-            step.setEmployeeId(employeeId);
-            step.setFinishTime(new Date());
-            step.setFinishState(status);
+    public void finishWorkWithCustomer(IngestSession ses, Date now, Long branchId, Long customerId, Long employeeId, Integer status) {
+        log.info("Start finishWorkWithCustomer. branchId={}, customerId={},  employeeId={},  status={}", branchId, customerId, employeeId, status);
+        final VisitCache.Visit visit = getVisit(ses, now, branchId, customerId);
+        if (visit == null) {
+            log.error("ERROR: Customer not found id={}; branch={}", customerId, branchId);
+            return;
+        }
+        final Customer customer = visit.getCustomer();
+        customer.setState(status);
+
+        final Step step = visit.getStep();
+        ses.finishing(step);
+        step.setEmployeeId(employeeId);
+        step.setFinishState(status);
+        step.setFinishTime(now);
+        if (step.getStartTime() == null) {
+            log.error("Error! step.getStartTime()=NULL");
+            step.setWorking(5L);
+        } else {
             step.setWorking(step.getFinishTime().getTime() - step.getStartTime().getTime());
-            customer.setWorking((customer.getWorking() * (customer.getFirstStep().getStepsCount() - 1) + step.getWorking()) / customer.getFirstStep().getStepsCount());
+        }
+        addWorking(customer, step);
 
-            final Step redirectedStep = new Step(branchId, customerId);
-            redirectedStep.setStandTime(new Date());
-            redirectedStep.setStartState(status);
-            redirectedStep.setServiceId(serviceId);
-            step.setAfter(redirectedStep);
-            redirectedStep.setBefore(step);
+        ses.saveOrUpdate(step);
+        ses.saveOrUpdate(customer);
+        visits.evict(branchId, customerId);
+        log.info("Finish finishWorkWithCustomer");
+    }
 
-            ses.saveOrUpdate(redirectedStep);
-            ses.saveOrUpdate(step);
-            ses.saveOrUpdate(customer);
-            ses.getTransaction().commit();
-        } catch (Exception ex) {
-            ses.getTransaction().rollback();
-            log.error("Error backInService.", ex);
-        } finally {
-            ses.close();
-        }
-        log.info("Finish backInService");
+    private void applyInsert(Long branchId, Long serviceId, Long customerId, Long beforeCustId, Long afterCustId) {
+        log.info("Start insertCustomer. branchId={},  serviceId={},  customerId={},  beforeCustId={},  afterCustId={}", branchId, serviceId, customerId, beforeCustId, afterCustId);
+        queues.insert(branchId, serviceId, customerId, beforeCustId, afterCustId);
+        log.info("Finish insertCustomer");
     }
 
-    public void finishWorkWithCustomer(Long branchId, Long customerId, Long employeeId, Integer status) {
-        log.info("Start finishWorkWithCustomer. branchId={}, customerId={},  employeeId={},  status={}", branchId, customerId, employeeId, status);
+    private void applyRemove(Long branchId, Long serviceId, Long customerId) {
+        log.info("Start removeCustomer. branchId={},  serviceId={},  customerId={}", branchId, serviceId, customerId);
+        queues.remove(branchId, customerId);
+        log.info("Finish removeCustomer");
+    }
+
+    /**
+     * Восстановить живые очереди из связей, записанных последним снимком.
+     * Берутся только незакрытые визиты за окно поиска визита: у закрытых в БД остаются старые связи,
+     * а номера клиентов повторяются. Ссылки на соседей, которых среди них нет, отбрасываются.
+     */
+    private void loadQueues() {
         final Session ses = hib.openSession();
         try {
-            ses.beginTransaction();
-            Customer customer = getCustomer(ses, branchId, customerId);
-            if (customer == null) {
-                log.error("ERROR: Customer not found id={}; branch={}", customerId, branchId);
-                return;
+            final List<Object[]> rows = ses.createQuery("select c.branchId, c.serviceId, c.customerId, b.customerId, a.customerId "
+                    + "from Customer c left join c.before b left join c.after a "
+                    + "where (c.before is not null or c.after is not null) and c.visitTime >= :since "
+                    + "and c.state <> :dead and c.state <> :finish")
+                    .setParameter("since", new Date(System.currentTimeMillis() - visitLookback))
+                    .setParameter("dead", CustomerState.STATE_DEAD.ordinal())
+                    .setParameter("finish", CustomerState.STATE_FINISH.ordinal())
+                    .list();
+            final HashMap<Long, HashSet<Long>> open = new HashMap<>();
+            for (Object[] row : rows) {
+                open.computeIfAbsent((Long) row[0], k -> new HashSet<>()).add((Long) row[2]);
             }
-            customer.setState(status);
-
-            final Step step = customer.getFirstStep().getLastStep();
-            step.setEmployeeId(employeeId);
-            step.setFinishState(status);
-            step.setFinishTime(new Date());
-            if (step.getStartTime() == null) {
-                log.error("Error! step.getStartTime()=NULL");
-                step.setWorking(5L);
-            } else {
-                step.setWorking(step.getFinishTime().getTime() - step.getStartTime().getTime());
+            for (Object[] row : rows) {
+                final Long branchId = (Long) row[0];
+                final Long before = open.get(branchId).contains((Long) row[3]) ? (Long) row[3] : null;
+                final Long after = open.get(branchId).contains((Long) row[4]) ? (Long) row[4] : null;
+                queues.load(branchId, (Long) row[1], (Long) row[2], before, after);
             }
-            customer.setWorking((customer.getWorking() * (customer.getFirstStep().getStepsCount() - 1) + step.getWorking()) / customer.getFirstStep().getStepsCount());
-
-            ses.saveOrUpdate(step);
-            ses.saveOrUpdate(customer);
-            ses.getTransaction().commit();
-        } catch (Exception ex) {
-            ses.getTransaction().rollback();
-            log.info("Error finishWorkWithCustomer.", ex);
+            log.info("Live queues are loaded: {} customers.", queues.size());
+        } catch (RuntimeException ex) {
+            log.warn("Live queues were not loaded, they will be built from new events. {}", ex.toString());
         } finally {
             ses.close();
         }
-        log.info("Finish finishWorkWithCustomer");
     }
 
-    @Override
-    public synchronized void insertCustomer(Long branchId, Long serviceId, Long customerId, Long beforeCustId, Long afterCustId) {
-        log.info("Start insertCustomer. branchId={},  serviceId={},  customerId={},  beforeCustId={},  afterCustId={}", branchId, serviceId, customerId, beforeCustId, afterCustId);
+    /**
+     * Загрузить в живую ситуацию сегодняшних клиентов.
+     *
+     * @param branchId только этого филиала, null - всех.
+     */
+    private void loadSituation(Long branchId) {
+        final GregorianCalendar day = new GregorianCalendar();
+        day.set(GregorianCalendar.HOUR_OF_DAY, 0);
+        day.set(GregorianCalendar.MINUTE, 0);
+        day.set(GregorianCalendar.SECOND, 0);
+        day.set(GregorianCalendar.MILLISECOND, 0);
         final Session ses = hib.openSession();
         try {
-            ses.beginTransaction();
-            Customer customer = getCustomer(ses, branchId, customerId);
-            if (customer == null) {
-                customer = new Customer(branchId, customerId);
-                if (serviceId != null && serviceId > 0) {
-                    customer.setServiceId(serviceId);
-                }
-            }
-            final Customer before = getCustomer(ses, branchId, beforeCustId);
-            final Customer after = getCustomer(ses, branchId, afterCustId);
-            if (before != null) {
-                before.setAfter(customer);
-                customer.setBefore(before);
+            final Query query = ses.createQuery("select c.branchId, c.customerId, c.serviceId, c.state, c.waiting, c.visitTime "
+                    + "from Customer c where c.visitTime >= :today" + (branchId == null ? "" : " and c.branchId = :branch"))
+                    .setParameter("today", day.getTime());
+            if (branchId != null) {
+                query.setParameter("branch", branchId);
             }
-            if (after != null) {
-                after.setBefore(customer);
-                customer.setAfter(after);
+            final List<Object[]> rows = query.list();
+            for (Object[] row : rows) {
+                situation.update((Long) row[0], (Long) row[1], (Long) row[2], (Integer) row[3], (Long) row[4], ((Date) row[5]).getTime());
             }
-
-            ses.saveOrUpdate(customer);
-            if (after != null) {
-                ses.saveOrUpdate(after);
-            }
-            if (before != null) {
-                ses.saveOrUpdate(before);
-            }
-            ses.getTransaction().commit();
-        } catch (Exception ex) {
-            log.error("Error insertCustomer.", ex);
-            ses.getTransaction().rollback();
+            log.info("Branch situation is loaded: {} customers of today.", rows.size());
+        } catch (RuntimeException ex) {
+            log.warn("Branch situation was not loaded, it will be built from new events. {}", ex.toString());
         } finally {
             ses.close();
         }
-        log.info("Finish insertCustomer");
     }
 
-    @Override
-    public synchronized void removeCustomer(Long branchId, Long serviceId, Long customerId) {
-        log.info("Start removeCustomer. branchId={},  serviceId={},  customerId={}", branchId, serviceId, customerId);
+    /**
+     * Записать снимок связей очередей одной транзакцией и одной пачкой UPDATE.
+     * Связь, в которой участвует клиент, еще не записанный в БД, откладывается до следующего снимка.
+     *
+     * @return отложенные связи.
+     */
+    private List<ServiceQueues.Link> saveQueues(List<ServiceQueues.Link> links) {
         final Session ses = hib.openSession();
         try {
             ses.beginTransaction();
-
-            final Customer customer = getCustomer(ses, branchId, customerId);
-            if (customer == null) {
-                return;
-            }
-            if (customer.getBefore() != null) {
-                customer.getBefore().setAfter(customer.getAfter());
-            }
-            if (customer.getAfter() != null) {
-                customer.getAfter().setBefore(customer.getBefore());
+            // филиал -> номер клиента -> id записи
+            final HashMap<Long, HashMap<Long, Long>> ids = new HashMap<>();
+            for (ServiceQueues.Link link : links) {
+                final HashMap<Long, Long> branch = ids.computeIfAbsent(link.getBranchId(), b -> new HashMap<>());
+                branch.put(link.getCustomerId(), null);
+                if (link.getBeforeCustId() != null) {
+                    branch.put(link.getBeforeCustId(), null);
+                }
+                if (link.getAfterCustId() != null) {
+                    branch.put(link.getAfterCustId(), null);
+                }
             }
-            customer.setAfter(null);
-            customer.setBefore(null);
-
-            if (customer.getBefore() != null) {
-                ses.saveOrUpdate(customer.getBefore());
+            for (Map.Entry<Long, HashMap<Long, Long>> branch : ids.entrySet()) {
+                final ArrayList<Long> customerIds = new ArrayList<>(branch.getValue().keySet());
+                for (int i = 0; i < customerIds.size(); i += 1000) {
+                    final List<Object[]> rows = ses.createQuery("select c.customerId, c.id from Customer c where c.branchId = :branchId and c.customerId in (:ids)")
+                            .setParameter("branchId", branch.getKey())
+                            .setParameterList("ids", customerIds.subList(i, Math.min(i + 1000, customerIds.size()))).list();
+                    for (Object[] row : rows) {
+                        branch.getValue().put((Long) row[0], (Long) row[1]);
+                    }
+                }
             }
-            if (customer.getAfter() != null) {
-                ses.saveOrUpdate(customer.getAfter());
+            final ArrayList<ServiceQueues.Link> ready = new ArrayList<>(links.size());
+            final ArrayList<ServiceQueues.Link> postponed = new ArrayList<>(0);
+            for (ServiceQueues.Link link : links) {
+                final HashMap<Long, Long> branch = ids.get(link.getBranchId());
+                if (branch.get(link.getCustomerId()) == null
+                        || (link.getBeforeCustId() != null && branch.get(link.getBeforeCustId()) == null)
+                        || (link.getAfterCustId() != null && branch.get(link.getAfterCustId()) == null)) {
+                    postponed.add(link);
+                } else {
+                    ready.add(link);
+                }
             }
-            ses.saveOrUpdate(customer);
+            ses.doWork(con -> {
+                try (PreparedStatement ps = con.prepareStatement("update customer set before_customer_id = ?, after_customer_id = ? where id = ?")) {
+                    for (ServiceQueues.Link link : ready) {
+                        final HashMap<Long, Long> branch = ids.get(link.getBranchId());
+                        ps.setObject(1, link.getBeforeCustId() == null ? null : branch.get(link.getBeforeCustId()), Types.BIGINT);
+                        ps.setObject(2, link.getAfterCustId() == null ? null : branch.get(link.getAfterCustId()), Types.BIGINT);
+                        ps.setLong(3, branch.get(link.getCustomerId()));
+                        ps.addBatch();
+                    }
+                    ps.executeBatch();
+                }
+            });
             ses.getTransaction().commit();
-        } catch (Exception ex) {
-            log.info("Error removeCustomer.", ex);
-            ses.getTransaction().rollback();
+            log.debug("Queue snapshot saved: {} links, {} postponed.", ready.size(), postponed.size());
+            return postponed;
+        } catch (RuntimeException ex) {
+            if (ses.getTransaction().isActive()) {
+                ses.getTransaction().rollback();
+            }
+            throw ex;
         } finally {
             ses.close();
         }
-        log.info("Finish removeCustomer");
     }
 
     @Override
@@ -635,76 +1217,127 @@ public class CustomerEventsEJB implements ICustomerEvents {
     }
 
     @Override
-    public synchronized void sendServiceName(Long branchId, Long serviceId, String name) {
-        log.info("Invoke sendServiceName. branchId={},  serviceId={},  name={}", branchId, serviceId, name);
-        dataLock.lock();
-        final Session ses = hib.openSession();
-        try {
-            ses.beginTransaction();
-            Service service = getService(ses, branchId, serviceId);
-            if (service == null) {
-                service = new Service(branchId, serviceId, name);
-            }
-            service.setName(name);
-            ses.saveOrUpdate(service);
-            ses.getTransaction().commit();
-        } catch (Exception ex) {
-            log.error("error sendServiceName.", ex);
-            ses.getTransaction().rollback();
-        } finally {
-            dataLock.unlock();
-            ses.close();
+    public Integer ping(String version, Long branchId, Long time) {
+        clocks.observe(branchId, time, System.currentTimeMillis());
+        log.info("Ping. branchId={}; clock skew={} ms", branchId, clocks.getSkew(branchId));
+        return ping(version);
+    }
+
+    private void applyServiceName(IngestSession ses, CustomerEvent event) {
+        log.info("Invoke sendServiceName. branchId={},  serviceId={},  name={}", event.getBranchId(), event.getServiceId(), event.getName());
+        if (!names.isLatest(event)) {
+            // уже принято следующее наименование, писать будем его
+            return;
         }
+        Service service = getService(ses, event.getBranchId(), event.getServiceId());
+        if (service == null) {
+            service = new Service(event.getBranchId(), event.getServiceId(), event.getName());
+        }
+        service.setName(event.getName());
+        ses.saveOrUpdate(service);
     }
 
-    private static final ReentrantLock dataLock = new ReentrantLock();
+    private void applyUserName(IngestSession ses, CustomerEvent event) {
+        log.info("Invoke sendUserName. branchId={},  employeeId={},  name={}", event.getBranchId(), event.getEmployeeId(), event.getName());
+        if (!names.isLatest(event)) {
+            // уже принято следующее наименование, писать будем его
+            return;
+        }
+        Employee employee = getEmployee(ses, event.getBranchId(), event.getEmployeeId());
+        if (employee == null) {
+            employee = new Employee(event.getBranchId(), event.getEmployeeId(), event.getName());
+        }
+        employee.setName(event.getName());
+        ses.saveOrUpdate(employee);
+    }
+    //*******************************************************************************************************
 
-    @Override
-    public synchronized void sendUserName(Long branchId, Long employeeId, String name) {
-        log.info("Invoke sendUserName. branchId={},  employeeId={},  name={}", branchId, employeeId, name);
-        dataLock.lock();
-        final Session ses = hib.openSession();
-        try {
-            ses.beginTransaction();
-            Employee employee = getEmployee(ses, branchId, employeeId);
-            if (employee == null) {
-                employee = new Employee(branchId, employeeId, name);
+    /**
+     * Визит из кеша, а если его там нет, то из БД с последующим кешированием.
+     */
+    private VisitCache.Visit getVisit(final IngestSession ses, Date now, Long branchId, Long customerId) {
+        final VisitCache.Visit visit = visits.get(branchId, customerId);
+        if (visit != null) {
+            return visit;
+        }
+        final Customer customer = getCustomer(ses, now, branchId, customerId);
+        if (customer == null) {
+            return null;
+        }
+        return visits.put(customer, currentStep(ses, customer));
+    }
+
+    /**
+     * Текущий шаг клиента. У клиентов, записанных до появления current_step_id, он вычисляется один раз:
+     * последний по порядку шаг визита начиная с первого, заодно восстанавливаются количество шагов и суммы из средних.
+     * По цепочке шагов тут не пройти, сессия приема ленивые ссылки не загружает.
+     * Шаги не раньше прихода клиента, это граница по ключу секционирования step.
+     */
+    private Step currentStep(IngestSession ses, Customer customer) {
+        if (customer.getCurrentStep() == null) {
+            final Object[] row = (Object[]) ses.createQuery("select max(s.id), count(s.id) from Step s, Customer c where c.id = :id "
+                    + "and s.branchId = c.branchId and s.customerId = c.customerId and s.id >= c.firstStep.id and s.standTime >= :visit")
+                    .setParameter("id", customer.getId())
+                    .setParameter("visit", customer.getVisitTime()).uniqueResult();
+            if (row != null && row[0] != null) {
+                customer.setCurrentStep(ses.get(Step.class, (Long) row[0]));
+                customer.setStepsCount(((Long) row[1]).intValue());
+                customer.setWaitingSum(customer.getWaiting() * customer.getStepsCount());
+                customer.setWorkingSum(customer.getWorking() * customer.getStepsCount());
             }
-            employee.setName(name);
-            ses.saveOrUpdate(employee);
-            ses.getTransaction().commit();
-        } catch (Exception ex) {
-            log.error("Error = sendUserName.", ex);
-            ses.getTransaction().rollback();
-        } finally {
-            dataLock.unlock();
-            ses.close();
         }
+        return customer.getCurrentStep();
     }
-    //*******************************************************************************************************
 
-    private Customer getCustomer(final Session ses, Long branchId, Long customerId) {
-        // final List<Customer> list = ses.createCriteria(Customer.class).add(Property.forName("branchId").eq(branchId)).add(Property.forName("customerId").eq(customerId)).list();
+    /**
+     * Новый шаг визита стал текущим.
+     */
+    private static void addStep(VisitCache.Visit visit, Step step) {
+        final Customer customer = visit.getCustomer();
+        visit.setStep(step);
+        customer.setCurrentStep(step);
+        customer.setStepsCount(customer.getStepsCount() + 1);
+    }
+
+    private static void addWaiting(Customer customer, Step step) {
+        customer.setWaitingSum(customer.getWaitingSum() + step.getWaiting());
+        customer.setWaiting(customer.getWaitingSum() / Math.max(1, customer.getStepsCount()));
+    }
+
+    private static void addWorking(Customer customer, Step step) {
+        customer.setWorkingSum(customer.getWorkingSum() + step.getWorking());
+        customer.setWorking(customer.getWorkingSum() / Math.max(1, customer.getStepsCount()));
+    }
 
-        final List<Customer> list = hib.findByCriteria(DetachedCriteria.forClass(Customer.class)
+    /**
+     * Ищем в той же сессии, что и пишем. Иначе клиент, созданный раньше в этой же пачке, не найдется.
+     * Текущий шаг выбирается сразу, ленивую ссылку сессия приема потом не загрузит.
+     * Визит ищется только среди пришедших не раньше QSKY_VISIT_LOOKBACK до события: customer секционирована по visit_time,
+     * и без этой границы поиск шел бы по всем секциям за всю историю.
+     */
+    private Customer getCustomer(final IngestSession ses, Date now, Long branchId, Long customerId) {
+        final List<Customer> list = ses.createCriteria(Customer.class)
+                .setFetchMode("currentStep", FetchMode.JOIN)
                 .setResultTransformer(CriteriaSpecification.DISTINCT_ROOT_ENTITY)
                 .add(Property.forName("branchId").eq(branchId))
-                .add(Property.forName("customerId").eq(customerId)));
+                .add(Property.forName("customerId").eq(customerId))
+                .add(Property.forName("visitTime").ge(new Date(now.getTime() - visitLookback)))
+                .addOrder(Order.desc("visitTime")).list();
 
         return list.isEmpty() ? null : list.get(0);
     }
 
-    private Employee getEmployee(final Session ses, Long branchId, Long employeeId) {
+    private Employee getEmployee(final IngestSession ses, Long branchId, Long employeeId) {
         final List<Employee> list = ses.createCriteria(Employee.class).add(Property.forName("branchId").eq(branchId)).add(Property.forName("employeeId").eq(employeeId)).list();
         return list.isEmpty() ? null : list.get(0);
     }
 
-    private Service getService(final Session ses, Long branchId, Long serviceId) {
+    private Service getService(final IngestSession ses, Long branchId, Long serviceId) {
         final List<Service> list = ses.createCriteria(Service.class).add(Property.forName("branchId").eq(branchId)).add(Property.forName("serviceId").eq(serviceId)).list();
         return list.isEmpty() ? null : list.get(0);
     }
 
-    private Branch getBranch(final Session ses, Long branchId) {
+    private Branch getBranch(final IngestSession ses, Long branchId) {
         final List<Branch> list = ses.createCriteria(Branch.class).add(Property.forName("branchId").eq(branchId)).list();
         return list.isEmpty() ? null : list.get(0);
     }
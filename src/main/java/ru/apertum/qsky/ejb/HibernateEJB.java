@@ -27,7 +27,9 @@ import org.hibernate.boot.registry.StandardServiceRegistry;
 import org.hibernate.boot.registry.StandardServiceRegistryBuilder;
 import org.hibernate.criterion.CriteriaSpecification;
 import org.hibernate.criterion.DetachedCriteria;
+import ru.apertum.qsky.common.SchemaMigrator;
 import ru.apertum.qsky.common.ServerException;
+import ru.apertum.qsky.common.Uses;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
@@ -50,6 +52,21 @@ public class HibernateEJB implements IHibernateEJBLocal {
     @PostConstruct
     private void buildHibernateSessionFactory() {
         sessionFactory = getFactory();
+        if (!"false".equalsIgnoreCase(System.getProperty("QSKY_MIGRATE"))) {
+            migrate();
+        }
+    }
+
+    /**
+     * Довести схему БД до последней миграции до того, как ей начнут пользоваться остальные EJB.
+     */
+    private void migrate() {
+        final SchemaMigrator migrator = new SchemaMigrator();
+        try (Session ses = sessionFactory.openSession()) {
+            ses.doWork(con -> migrator.migrate(con, Uses.getProperty("QSKY_SCHEMA_BASELINE", 0)));
+        } catch (RuntimeException ex) {
+            throw new ServerException("Schema migration failed.", ex);
+        }
     }
 
     private SessionFactory getFactory() {
@@ -98,6 +115,11 @@ public class HibernateEJB implements IHibernateEJBLocal {
         return sessionFactory.openSession();
     }
 
+    @Override
+    public IngestSession openIngestSession() {
+        return new IngestSession(sessionFactory.openStatelessSession());
+    }
+
     @Override
     public Session getCurrentSession() {
         return sessionFactory.getCurrentSession();
@@ -35,6 +35,12 @@ import java.util.function.Supplier;
 @Local
 public interface IHibernateEJBLocal {
 
+    /**
+     * Регион кеша запросов по справочникам: филиалы, услуги, сотрудники, данные пейджера.
+     * Границы и время жизни заданы в ehcache.xml.
+     */
+    public static final String REFERENCE_REGION = "ru.apertum.qsky.reference";
+
     /**
      * Фабрика сессий.
      *
@@ -49,6 +55,13 @@ public interface IHibernateEJBLocal {
      */
     public Session openSession();
 
+    /**
+     * Открывается новая сессия для приема событий, без кеша и проверки изменений. Сессия управляется программно.
+     *
+     * @return открытая новая сессия для использования
+     */
+    public IngestSession openIngestSession();
+
     /**
      * Текущая скессия, вариант использования: одна транзакция - одна сессия.
      * Автоматическое управление.
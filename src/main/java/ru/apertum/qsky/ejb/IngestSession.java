@@ -0,0 +1,246 @@
+/*
+ *  Copyright (C) 2010 {Apertum}Projects. web: www.apertum.ru email: info@apertum.ru
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ru.apertum.qsky.ejb;
+
+import org.hibernate.Cache;
+import org.hibernate.Criteria;
+import org.hibernate.StatelessSession;
+import org.hibernate.Transaction;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.hibernate.jdbc.ReturningWork;
+import org.hibernate.jdbc.Work;
+import org.hibernate.query.Query;
+import ru.apertum.qsky.ingest.StepDaily;
+import ru.apertum.qsky.model.Element;
+import ru.apertum.qsky.model.Step;
+
+import java.io.Serializable;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Сессия для приема событий поверх {@link StatelessSession}: без кеша первого уровня, без проверки грязных сущностей и каскадов.
+ * Все изменения надо сохранять явно. Новая сущность вставляется сразу, чтобы у нее появился id для ссылок.
+ * Обновления копятся до {@link #flush()}: одна сущность обновляется один раз, сколько бы событий пачки ее ни меняли,
+ * а UPDATE одной таблицы идут подряд одной JDBC-пачкой.
+ * <p>
+ * Перед запросом накопленное сбрасывается, чтобы запрос видел изменения пачки.
+ * Ленивые ссылки загруженных сущностей здесь не загружаются, нужное надо выбирать сразу join fetch.
+ * <p>
+ * Кеш второго уровня эта сессия не видит и не обновляет. Поэтому после фиксации записанные кешируемые сущности
+ * из него выкидываются вместе с кешем справочных запросов, иначе Dicts и дерево филиалов покажут старые наименования.
+ *
+ * @author Evgeniy Egorov
+ */
+public class IngestSession implements AutoCloseable {
+
+    private final StatelessSession ses;
+    /**
+     * Что обновить при сбросе, по классам, чтобы одинаковые UPDATE шли подряд.
+     */
+    private final LinkedHashMap<Class<?>, Set<Object>> updates = new LinkedHashMap<>();
+    /**
+     * Записанные в транзакции кешируемые сущности, их id по классам. Выкидываются из кеша второго уровня после фиксации.
+     */
+    private final LinkedHashMap<Class<?>, Set<Serializable>> written = new LinkedHashMap<>();
+    /**
+     * Шаги, завершенные или исправленные в транзакции, для дневных итогов.
+     */
+    private final StepDaily.Changes daily = new StepDaily.Changes();
+
+    IngestSession(StatelessSession ses) {
+        this.ses = ses;
+    }
+
+    public Transaction beginTransaction() {
+        return ses.beginTransaction();
+    }
+
+    public Transaction getTransaction() {
+        return ses.getTransaction();
+    }
+
+    /**
+     * Сбросить накопленные обновления и зафиксировать транзакцию.
+     */
+    public void commit() {
+        flush();
+        ses.getTransaction().commit();
+        daily.clear();
+        evictWritten();
+    }
+
+    /**
+     * Откатить транзакцию, если она еще идет. Накопленные обновления выкидываются.
+     */
+    public void rollback() {
+        updates.clear();
+        written.clear();
+        daily.clear();
+        if (ses.getTransaction().isActive()) {
+            ses.getTransaction().rollback();
+        }
+    }
+
+    /**
+     * Вставить новую сущность сразу.
+     */
+    public void insert(Object entity) {
+        ses.insert(entity);
+        remember(entity);
+    }
+
+    /**
+     * Обновить сущность при сбросе.
+     */
+    public void update(Object entity) {
+        updates.computeIfAbsent(entity.getClass(), c -> Collections.newSetFromMap(new IdentityHashMap<>())).add(entity);
+    }
+
+    /**
+     * Вставить, если еще не вставлена, иначе обновить при сбросе.
+     */
+    public void saveOrUpdate(Element entity) {
+        if (entity.getId() == null) {
+            insert(entity);
+        } else {
+            update(entity);
+        }
+    }
+
+    /**
+     * Отметить шаг перед тем, как его завершить или поменять завершенный, чтобы его вклад попал в дневные итоги.
+     */
+    public void finishing(Step step) {
+        daily.track(step);
+    }
+
+    /**
+     * Дописать в step_daily вклад отмеченных шагов в этой же транзакции. Вызывать последним перед фиксацией,
+     * строки итогов общие для всех полос приема и держатся заблокированными до конца транзакции.
+     * Если не вызвать, отмеченное забывается при фиксации.
+     */
+    public void writeDaily() {
+        if (!daily.isEmpty()) {
+            doWork(daily::write);
+        }
+    }
+
+    /**
+     * Выполнить накопленные обновления.
+     */
+    public void flush() {
+        for (Set<Object> entities : updates.values()) {
+            for (Object entity : entities) {
+                ses.update(entity);
+                remember(entity);
+            }
+        }
+        updates.clear();
+        ((SharedSessionContractImplementor) ses).getJdbcCoordinator().executeBatch();
+    }
+
+    private void remember(Object entity) {
+        final SessionFactoryImplementor factory = ((SharedSessionContractImplementor) ses).getFactory();
+        if (factory.getSessionFactoryOptions().isSecondLevelCacheEnabled()
+                && factory.getMetamodel().entityPersister(entity.getClass()).canWriteToCache()) {
+            written.computeIfAbsent(entity.getClass(), c -> new LinkedHashSet<>())
+                    .add((Serializable) factory.getPersistenceUnitUtil().getIdentifier(entity));
+        }
+    }
+
+    /**
+     * Выкинуть из кеша второго уровня то, что записано мимо него. Запросы по этим таблицам могли закешировать
+     * старые списки, поэтому выкидывается и кеш справочных запросов.
+     */
+    private void evictWritten() {
+        if (written.isEmpty()) {
+            return;
+        }
+        final Cache cache = ((SharedSessionContractImplementor) ses).getFactory().getCache();
+        for (Map.Entry<Class<?>, Set<Serializable>> entry : written.entrySet()) {
+            for (Serializable id : entry.getValue()) {
+                cache.evictEntityData(entry.getKey(), id);
+            }
+        }
+        cache.evictQueryRegion(IHibernateEJBLocal.REFERENCE_REGION);
+        written.clear();
+    }
+
+    /**
+     * Перед запросом накопленные обновления сбрасываются, иначе запрос прочитает из БД старое состояние.
+     */
+    public Criteria createCriteria(Class<?> clazz) {
+        if (!updates.isEmpty()) {
+            flush();
+        }
+        return ses.createCriteria(clazz);
+    }
+
+    public Query createQuery(String hql) {
+        if (!updates.isEmpty()) {
+            flush();
+        }
+        return ses.createQuery(hql);
+    }
+
+    public <T> T get(Class<T> clazz, Serializable id) {
+        return clazz.cast(ses.get(clazz, id));
+    }
+
+    /**
+     * Работа с JDBC-соединением сессии в ее транзакции. SQLException переводится в исключения Hibernate,
+     * как это делает Session.doWork.
+     */
+    public void doWork(Work work) {
+        try {
+            work.execute(connection());
+        } catch (SQLException ex) {
+            throw convert(ex);
+        }
+    }
+
+    public <T> T doReturningWork(ReturningWork<T> work) {
+        try {
+            return work.execute(connection());
+        } catch (SQLException ex) {
+            throw convert(ex);
+        }
+    }
+
+    private java.sql.Connection connection() {
+        return ((SharedSessionContractImplementor) ses).connection();
+    }
+
+    private RuntimeException convert(SQLException ex) {
+        return ((SharedSessionContractImplementor) ses).getJdbcServices().getSqlExceptionHelper().convert(ex, "Ingest session JDBC work failed.");
+    }
+
+    @Override
+    public void close() {
+        updates.clear();
+        written.clear();
+        daily.clear();
+        ses.close();
+    }
+}
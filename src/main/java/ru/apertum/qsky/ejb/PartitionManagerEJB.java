@@ -0,0 +1,200 @@
+/*
+ *  Copyright (C) 2010 {Apertum}Projects. web: www.apertum.ru email: info@apertum.ru
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ru.apertum.qsky.ejb;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.hibernate.Session;
+import ru.apertum.qsky.common.Uses;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import javax.ejb.EJB;
+import javax.ejb.Schedule;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.ejb.Timeout;
+import javax.ejb.TimerConfig;
+import javax.ejb.TimerService;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.YearMonth;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Обслуживание помесячных секций step и customer.
+ * Секции создаются наперед на QSKY_PARTITION_AHEAD месяцев, чтобы новые записи никогда не попадали в pmax
+ * и выделение следующего месяца было делением пустой секции, т.е. без копирования данных.
+ * Если задан QSKY_PARTITION_RETENTION, месяцы старше этого срока удаляются DROP PARTITION - это операция над метаданными,
+ * а не построчный DELETE.
+ * <p>
+ * Месяц, а не день, потому что поиск строки по одному id проверяет каждую секцию, и секций должно быть немного.
+ * Запускается сразу после старта и каждую ночь.
+ *
+ * @author Evgeniy Egorov
+ */
+@Singleton(name = "qskyapi/PartitionManagerEJB")
+@Startup
+public class PartitionManagerEJB {
+
+    private final Logger log = LogManager.getLogger(PartitionManagerEJB.class);
+
+    /**
+     * Секционированные таблицы и их ключ секционирования.
+     */
+    private static final String[][] TABLES = {{"customer", "visit_time"}, {"step", "stand_time"}};
+    private static final String MAX = "pmax";
+    private static final DateTimeFormatter NAME = DateTimeFormatter.ofPattern("'p'yyyyMM");
+
+    @EJB(mappedName = "ejb/qskyapi/hibernate_session_factory")
+    private IHibernateEJBLocal hib;
+
+    @Resource
+    private TimerService timers;
+
+    private int ahead;
+    private int retention;
+    private int history;
+
+    @PostConstruct
+    private void start() {
+        ahead = Math.max(1, Uses.getProperty("QSKY_PARTITION_AHEAD", 3));
+        retention = Uses.getProperty("QSKY_PARTITION_RETENTION", 0);
+        history = Math.max(1, Uses.getProperty("QSKY_PARTITION_HISTORY", 36));
+        // первый раз сразу после старта, но не в потоке развертывания: разбивка истории может быть долгой
+        timers.createSingleActionTimer(1000, new TimerConfig(null, false));
+    }
+
+    @Timeout
+    private void afterStart() {
+        maintain();
+    }
+
+    /**
+     * Создать недостающие секции наперед и удалить устаревшие.
+     */
+    @Schedule(hour = "3", minute = "15", persistent = false)
+    public void maintain() {
+        final Session ses = hib.openSession();
+        try {
+            ses.doWork(con -> {
+                for (String[] table : TABLES) {
+                    try {
+                        maintain(con, table[0], table[1]);
+                    } catch (SQLException ex) {
+                        log.error("Partition maintenance of " + table[0] + " failed.", ex);
+                    }
+                }
+            });
+        } catch (RuntimeException ex) {
+            log.error("Partition maintenance failed.", ex);
+        } finally {
+            ses.close();
+        }
+    }
+
+    private void maintain(Connection con, String table, String column) throws SQLException {
+        final TreeSet<YearMonth> months = new TreeSet<>();
+        boolean partitioned = false;
+        boolean hasMax = false;
+        try (PreparedStatement ps = con.prepareStatement("select partition_name from information_schema.partitions "
+                + "where table_schema = database() and table_name = ?")) {
+            ps.setString(1, table);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    final String name = rs.getString(1);
+                    if (name == null) {
+                        continue;
+                    }
+                    partitioned = true;
+                    if (MAX.equals(name)) {
+                        hasMax = true;
+                    } else if (name.matches("p\\d{6}")) {
+                        months.add(YearMonth.parse(name, NAME));
+                    }
+                }
+            }
+        }
+        if (!partitioned) {
+            log.warn("Table {} is not partitioned, schema migration V4 is not applied yet.", table);
+            return;
+        }
+
+        final YearMonth now = YearMonth.now();
+        final YearMonth from = months.isEmpty() ? firstMonth(con, table, column, now) : months.last().plusMonths(1);
+        final List<String> added = new ArrayList<>();
+        for (YearMonth month = from; !month.isAfter(now.plusMonths(ahead)); month = month.plusMonths(1)) {
+            added.add("partition " + month.format(NAME) + " values less than ('" + month.plusMonths(1).atDay(1) + "')");
+        }
+        if (!added.isEmpty()) {
+            final String sql;
+            if (hasMax) {
+                added.add("partition " + MAX + " values less than (maxvalue)");
+                sql = "alter table " + table + " reorganize partition " + MAX + " into (" + String.join(", ", added) + ")";
+            } else {
+                sql = "alter table " + table + " add partition (" + String.join(", ", added) + ")";
+            }
+            execute(con, sql);
+            log.info("Table {}: {} partitions added from {}.", table, added.size() - (hasMax ? 1 : 0), from);
+        }
+
+        if (retention > 0) {
+            final YearMonth oldest = now.minusMonths(retention);
+            final List<String> dropped = new ArrayList<>();
+            for (YearMonth month : months.headSet(oldest)) {
+                dropped.add(month.format(NAME));
+            }
+            if (!dropped.isEmpty()) {
+                execute(con, "alter table " + table + " drop partition " + String.join(", ", dropped));
+                log.info("Table {}: partitions {} dropped.", table, dropped);
+            }
+        }
+    }
+
+    /**
+     * С какого месяца резать, если помесячных секций еще нет: с самой ранней записи, но не раньше QSKY_PARTITION_HISTORY месяцев,
+     * все более раннее ляжет в первую секцию.
+     */
+    private YearMonth firstMonth(Connection con, String table, String column, YearMonth now) throws SQLException {
+        YearMonth first = now;
+        try (Statement st = con.createStatement();
+             ResultSet rs = st.executeQuery("select min(" + column + ") from " + table)) {
+            if (rs.next()) {
+                final Timestamp min = rs.getTimestamp(1);
+                if (min != null) {
+                    first = YearMonth.from(min.toLocalDateTime());
+                }
+            }
+        }
+        final YearMonth limit = now.minusMonths(history);
+        return first.isBefore(limit) ? limit : first.isAfter(now) ? now : first;
+    }
+
+    private void execute(Connection con, String sql) throws SQLException {
+        log.info(sql);
+        try (Statement st = con.createStatement()) {
+            st.executeUpdate(sql);
+        }
+    }
+}
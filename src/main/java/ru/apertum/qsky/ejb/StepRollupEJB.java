@@ -0,0 +1,92 @@
+/*
+ *  Copyright (C) 2010 {Apertum}Projects. web: www.apertum.ru email: info@apertum.ru
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ru.apertum.qsky.ejb;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.hibernate.Session;
+import ru.apertum.qsky.common.Uses;
+import ru.apertum.qsky.ingest.StepDaily;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import javax.ejb.EJB;
+import javax.ejb.Schedule;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.ejb.Timeout;
+import javax.ejb.TimerConfig;
+import javax.ejb.TimerService;
+import java.time.LocalDate;
+
+/**
+ * Ночная сверка дневных итогов step_daily, см. {@link StepDaily}. Итоги ведет прием событий,
+ * а здесь последние QSKY_ROLLUP_RECONCILE_DAYS закрытых дней сворачиваются из step заново:
+ * так поправляются максимумы исправленных шагов и все, что записано мимо приема. Текущий день не трогается,
+ * его строки сейчас меняет прием. Всю историю один раз свернула миграция V7.
+ *
+ * @author Evgeniy Egorov
+ */
+@Singleton(name = "qskyapi/StepRollupEJB")
+@Startup
+public class StepRollupEJB {
+
+    private final Logger log = LogManager.getLogger(StepRollupEJB.class);
+
+    @EJB(mappedName = "ejb/qskyapi/hibernate_session_factory")
+    private IHibernateEJBLocal hib;
+
+    @Resource
+    private TimerService timers;
+
+    private int reconcile;
+
+    @PostConstruct
+    private void start() {
+        reconcile = Math.max(1, Uses.getProperty("QSKY_ROLLUP_RECONCILE_DAYS", 2));
+        // если сервер лежал ночью, сверка пройдет сразу после старта
+        timers.createSingleActionTimer(5000, new TimerConfig(null, false));
+    }
+
+    @Timeout
+    private void afterStart() {
+        rollup();
+    }
+
+    /**
+     * Свернуть заново последние закрытые дни.
+     */
+    @Schedule(hour = "0", minute = "20", persistent = false)
+    public void rollup() {
+        final LocalDate today = LocalDate.now();
+        final LocalDate from = today.minusDays(reconcile);
+        final Session ses = hib.openSession();
+        try {
+            ses.beginTransaction();
+            final int rows = ses.doReturningWork(con -> StepDaily.rollup(con, null, from, today));
+            log.info("Steps reconciled from {} to {}: {} daily rows.", from, today, rows);
+            ses.getTransaction().commit();
+        } catch (RuntimeException ex) {
+            if (ses.getTransaction().isActive()) {
+                ses.getTransaction().rollback();
+            }
+            log.error("Step rollup failed.", ex);
+        } finally {
+            ses.close();
+        }
+    }
+}
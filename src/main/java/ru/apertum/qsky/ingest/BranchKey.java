@@ -0,0 +1,56 @@
+/*
+ *  Copyright (C) 2010 {Apertum}Projects. web: www.apertum.ru email: info@apertum.ru
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ru.apertum.qsky.ingest;
+
+import java.util.Objects;
+
+/**
+ * Ключ записи внутри филиала (клиента, услуги, сотрудника) в картах приема событий.
+ *
+ * @author Evgeniy Egorov
+ */
+final class BranchKey {
+
+    private final Long branchId;
+    private final Long id;
+
+    BranchKey(Long branchId, Long id) {
+        this.branchId = branchId;
+        this.id = id;
+    }
+
+    Long getBranchId() {
+        return branchId;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof BranchKey)) {
+            return false;
+        }
+        final BranchKey key = (BranchKey) o;
+        return Objects.equals(branchId, key.branchId) && Objects.equals(id, key.id);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(branchId, id);
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ *  Copyright (C) 2010 {Apertum}Projects. web: www.apertum.ru email: info@apertum.ru
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ru.apertum.qsky.ingest;
+
+import ru.apertum.qsky.api.SituationSnapshot;
+import ru.apertum.qsky.common.CustomerState;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Живая ситуация в филиалах за сегодня: сколько клиентов ждет к каждой услуге, суммы ожиданий и самый давно ждущий.
+ * Обновляется приемом событий после фиксации пачки, поэтому снимок для дашборда строится без запроса к БД
+ * и за время, не зависящее от количества клиентов.
+ * <p>
+ * Счет такой же, как делал дашборд по клиентам из БД. Клиенты сегодняшние по времени прихода.
+ * Ждущие - все, кроме удаленных по неявке и закончивших. Ожидание клиента - его waiting,
+ * а если он еще ни разу не вызывался, то время с прихода. Среднее считается по всем, кроме удаленных.
+ *
+ * @author Evgeniy Egorov
+ */
+public class BranchSituation {
+
+    private static final int DEAD = CustomerState.STATE_DEAD.ordinal();
+    private static final int FINISH = CustomerState.STATE_FINISH.ordinal();
+
+    private final ConcurrentHashMap<Long, Branch> branches = new ConcurrentHashMap<>();
+
+    /**
+     * Клиент изменился.
+     *
+     * @param branchId   филиал.
+     * @param customerId клиент.
+     * @param serviceId  услуга, к которой он сейчас стоит.
+     * @param state      его состояние.
+     * @param waiting    его waiting, мс.
+     * @param visitTime  время прихода, мс.
+     */
+    public void update(Long branchId, Long customerId, Long serviceId, Integer state, Long waiting, long visitTime) {
+        branch(branchId).update(customerId, serviceId, state == null ? DEAD : state, waiting == null ? 0 : waiting, visitTime);
+    }
+
+    /**
+     * Клиент закончил визит, и его уже нет в кеше визитов. Остальное про клиента берется из того, что было известно.
+     *
+     * @param state с каким состоянием закончил.
+     */
+    public void close(Long branchId, Long customerId, Integer state) {
+        final Branch branch = branches.get(branchId);
+        if (branch != null) {
+            branch.close(customerId, state == null ? DEAD : state);
+        }
+    }
+
+    /**
+     * Забыть филиал, например перед загрузкой его клиентов заново после пересборки.
+     */
+    public void clear(Long branchId) {
+        branches.remove(branchId);
+    }
+
+    /**
+     * @return снимок ситуации в филиале сейчас.
+     */
+    public SituationSnapshot getSnapshot(Long branchId) {
+        final Branch branch = branches.get(branchId);
+        return branch == null ? SituationSnapshot.EMPTY : branch.snapshot(System.currentTimeMillis());
+    }
+
+    private Branch branch(Long branchId) {
+        return branches.computeIfAbsent(branchId, b -> new Branch());
+    }
+
+    private static long dayStart(long now) {
+        final ZoneId zone = ZoneId.systemDefault();
+        return Instant.ofEpochMilli(now).atZone(zone).toLocalDate().atStartOfDay(zone).toInstant().toEpochMilli();
+    }
+
+    private static final class Visit {
+
+        private final Long serviceId;
+        private final int state;
+        private final long waiting;
+        private final long visitTime;
+
+        private Visit(Long serviceId, int state, long waiting, long visitTime) {
+            this.serviceId = serviceId;
+            this.state = state;
+            this.waiting = waiting;
+            this.visitTime = visitTime;
+        }
+
+        private boolean isWaiting() {
+            return state != DEAD && state != FINISH;
+        }
+    }
+
+    /**
+     * Счетчики одного филиала. Каждое изменение клиента вычитает его прошлый вклад и добавляет новый.
+     */
+    private static final class Branch {
+
+        private final HashMap<Long, Visit> visits = new HashMap<>();
+        private final HashMap<Long, Integer> byService = new HashMap<>();
+        /**
+         * Времена прихода ждущих клиентов, которых еще не вызывали -> сколько таких. Первый ключ - самый давний.
+         */
+        private final TreeMap<Long, Integer> notCalled = new TreeMap<>();
+        /**
+         * Известные ожидания ждущих клиентов -> сколько таких. Последний ключ - самое долгое.
+         */
+        private final TreeMap<Long, Integer> waited = new TreeMap<>();
+        private int waiting;
+        /**
+         * Для среднего: сумма известных ожиданий и их количество, количество еще не вызванных и сумма их времен прихода.
+         */
+        private long waitedSum;
+        private int waitedCount;
+        private long notCalledVisitSum;
+        private int notCalledCount;
+        private long today;
+
+        private synchronized void update(Long customerId, Long serviceId, int state, long waiting, long visitTime) {
+            rollDay(System.currentTimeMillis());
+            final Visit old = visits.remove(customerId);
+            if (old != null) {
+                count(old, -1);
+            }
+            if (visitTime >= today) {
+                final Visit visit = new Visit(serviceId, state, waiting, visitTime);
+                visits.put(customerId, visit);
+                count(visit, 1);
+            }
+        }
+
+        private synchronized void close(Long customerId, int state) {
+            final Visit old = visits.get(customerId);
+            if (old != null) {
+                update(customerId, old.serviceId, state, old.waiting, old.visitTime);
+            }
+        }
+
+        private synchronized SituationSnapshot snapshot(long now) {
+            rollDay(now);
+            long max = waited.isEmpty() ? 0 : waited.lastKey();
+            if (!notCalled.isEmpty()) {
+                max = Math.max(max, now - notCalled.firstKey());
+            }
+            return new SituationSnapshot(new HashMap<>(byService), waiting, max, waitedSum + notCalledCount * now - notCalledVisitSum, waitedCount + notCalledCount);
+        }
+
+        /**
+         * В новых сутках вчерашние клиенты в ситуацию уже не входят.
+         */
+        private void rollDay(long now) {
+            final long start = dayStart(now);
+            if (start != today) {
+                today = start;
+                visits.entrySet().removeIf(e -> {
+                    if (e.getValue().visitTime < start) {
+                        count(e.getValue(), -1);
+                        return true;
+                    }
+                    return false;
+                });
+            }
+        }
+
+        private void count(Visit visit, int sign) {
+            if (visit.isWaiting()) {
+                waiting += sign;
+                byService.merge(visit.serviceId, sign, (a, b) -> a + b == 0 ? null : a + b);
+                if (visit.waiting == 0) {
+                    multiset(notCalled, visit.visitTime, sign);
+                } else {
+                    multiset(waited, visit.waiting, sign);
+                }
+            }
+            if (visit.state != DEAD) {
+                if (visit.waiting == 0) {
+                    notCalledVisitSum += sign * visit.visitTime;
+                    notCalledCount += sign;
+                } else {
+                    waitedSum += sign * visit.waiting;
+                    waitedCount += sign;
+                }
+            }
+        }
+
+        private static void multiset(TreeMap<Long, Integer> set, long key, int sign) {
+            set.merge(key, sign, (a, b) -> a + b == 0 ? null : a + b);
+        }
+    }
+}
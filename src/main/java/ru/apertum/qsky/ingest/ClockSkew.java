@@ -0,0 +1,87 @@
+/*
+ *  Copyright (C) 2010 {Apertum}Projects. web: www.apertum.ru email: info@apertum.ru
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ru.apertum.qsky.ingest;
+
+import ru.apertum.qsky.api.CustomerEvent;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Расхождение часов филиалов с часами сервера. Узнается из ping: филиал присылает свое время,
+ * разница с временем сервера сглаживается экспоненциальным средним, чтобы один медленный ping не сбивал поправку.
+ * По этой поправке время события от филиала переводится в часы сервера.
+ *
+ * @author Evgeniy Egorov
+ */
+public class ClockSkew {
+
+    /**
+     * Вес нового замера в среднем.
+     */
+    private static final double ALPHA = 0.2;
+
+    private final long maxSkew;
+    private final long maxLag;
+    private final ConcurrentHashMap<Long, Long> skews = new ConcurrentHashMap<>();
+
+    /**
+     * @param maxSkew больше такого расхождения не поверим, считаем часы филиала сбитыми на эту величину, мс.
+     * @param maxLag  событие не может быть старше своего приема больше чем на столько, мс.
+     */
+    public ClockSkew(long maxSkew, long maxLag) {
+        this.maxSkew = maxSkew;
+        this.maxLag = maxLag;
+    }
+
+    /**
+     * Учесть замер из ping.
+     *
+     * @param branchId   филиал.
+     * @param branchTime время по часам филиала, мс.
+     * @param serverTime время получения по часам сервера, мс.
+     */
+    public void observe(Long branchId, long branchTime, long serverTime) {
+        final long sample = clamp(serverTime - branchTime, -maxSkew, maxSkew);
+        skews.merge(branchId, sample, (old, s) -> old + Math.round(ALPHA * (s - old)));
+    }
+
+    /**
+     * @return на сколько часы сервера впереди часов филиала, мс.
+     */
+    public long getSkew(Long branchId) {
+        return skews.getOrDefault(branchId, 0L);
+    }
+
+    /**
+     * Перевести время события в часы сервера. Результат не бывает позже приема события
+     * и раньше приема больше чем на maxLag.
+     *
+     * @param event принятое событие со временем по часам филиала.
+     * @return событие со временем по часам сервера, или то же, если время не прислано.
+     */
+    public CustomerEvent toServerTime(CustomerEvent event) {
+        if (event.getEventTime() == null) {
+            return event;
+        }
+        final long time = event.getEventTime() + getSkew(event.getBranchId());
+        return event.withEventTime(clamp(time, event.getReceived() - maxLag, event.getReceived()));
+    }
+
+    private static long clamp(long value, long min, long max) {
+        return Math.max(min, Math.min(max, value));
+    }
+}
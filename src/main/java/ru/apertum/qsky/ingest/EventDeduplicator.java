@@ -0,0 +1,134 @@
+/*
+ *  Copyright (C) 2010 {Apertum}Projects. web: www.apertum.ru email: info@apertum.ru
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ru.apertum.qsky.ingest;
+
+import ru.apertum.qsky.api.CustomerEvent;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Отсев повторов событий, которые плагин переотправил после сетевой ошибки.
+ * Для каждого филиала помнит ключи событий за окно времени, но не больше заданного количества.
+ * Ключ - номер события seq, если плагин его прислал. События без номера по умолчанию не отсеиваются:
+ * одинаковое событие по тому же клиенту может быть и законным, например повторный вызов.
+ * Если окно отпечатков задано, то для них ключ - отпечаток всех полей события с коротким окном.
+ *
+ * @author Evgeniy Egorov
+ */
+public class EventDeduplicator {
+
+    private final long seqWindow;
+    private final long fingerprintWindow;
+    private final int maxKeys;
+    private final ConcurrentHashMap<Long, Window> seqs = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, Window> fingerprints = new ConcurrentHashMap<>();
+    private final AtomicLong duplicates = new AtomicLong();
+
+    /**
+     * @param seqWindow         сколько помнить номера событий, мс.
+     * @param fingerprintWindow сколько помнить отпечатки событий без номера, мс. 0 - не отсеивать такие события.
+     * @param maxKeys           сколько ключей максимум помнить на один филиал.
+     */
+    public EventDeduplicator(long seqWindow, long fingerprintWindow, int maxKeys) {
+        this.seqWindow = seqWindow;
+        this.fingerprintWindow = fingerprintWindow;
+        this.maxKeys = Math.max(1, maxKeys);
+    }
+
+    /**
+     * Проверить событие и запомнить его ключ.
+     *
+     * @param event принятое событие.
+     * @return true если такое событие уже было в окне.
+     */
+    public boolean isDuplicate(CustomerEvent event) {
+        final boolean res;
+        if (event.getSeq() != null) {
+            res = seqs.computeIfAbsent(event.getBranchId() == null ? 0L : event.getBranchId(), b -> new Window(seqWindow, maxKeys))
+                    .seen(event.getSeq(), event.getReceived());
+        } else if (fingerprintWindow > 0) {
+            res = fingerprints.computeIfAbsent(event.getBranchId() == null ? 0L : event.getBranchId(), b -> new Window(fingerprintWindow, maxKeys))
+                    .seen(fingerprint(event), event.getReceived());
+        } else {
+            res = false;
+        }
+        if (res) {
+            duplicates.incrementAndGet();
+        }
+        return res;
+    }
+
+    /**
+     * Забыть ключ события, которое не было принято. Тогда его переотправка не посчитается повтором.
+     *
+     * @param event непринятое событие.
+     */
+    public void forget(CustomerEvent event) {
+        final Window window = (event.getSeq() != null ? seqs : fingerprints).get(event.getBranchId() == null ? 0L : event.getBranchId());
+        if (window != null) {
+            window.forget(event.getSeq() != null ? event.getSeq() : fingerprint(event));
+        }
+    }
+
+    private static Object fingerprint(CustomerEvent event) {
+        return Arrays.asList(event.getType(), event.getServiceId(), event.getEmployeeId(), event.getCustomerId(), event.getStatus(),
+                event.getNumber(), event.getPrefix(), event.getBeforeCustId(), event.getAfterCustId(), event.getName());
+    }
+
+    /**
+     * @return сколько повторов отброшено с запуска.
+     */
+    public long getDuplicates() {
+        return duplicates.get();
+    }
+
+    /**
+     * Ключи одного филиала в порядке поступления, самые старые выкидываются по времени и по количеству.
+     */
+    private static final class Window {
+
+        private final long window;
+        private final int maxKeys;
+        private final LinkedHashMap<Object, Long> keys = new LinkedHashMap<>();
+
+        private Window(long window, int maxKeys) {
+            this.window = window;
+            this.maxKeys = maxKeys;
+        }
+
+        private synchronized boolean seen(Object key, long now) {
+            final Iterator<Map.Entry<Object, Long>> it = keys.entrySet().iterator();
+            while (it.hasNext()) {
+                final Map.Entry<Object, Long> eldest = it.next();
+                if (keys.size() < maxKeys && eldest.getValue() > now - window) {
+                    break;
+                }
+                it.remove();
+            }
+            return keys.putIfAbsent(key, now) != null;
+        }
+
+        private synchronized void forget(Object key) {
+            keys.remove(key);
+        }
+    }
+}
@@ -0,0 +1,504 @@
+/*
+ *  Copyright (C) 2010 {Apertum}Projects. web: www.apertum.ru email: info@apertum.ru
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ru.apertum.qsky.ingest;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import ru.apertum.qsky.api.CustomerEvent;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Раскидывает события по полосам обработки.
+ * Все события одного клиента филиала (или одной записи справочника) всегда попадают в одну и ту же полосу
+ * и обрабатываются строго по порядку поступления. Разные клиенты и филиалы обрабатываются параллельно.
+ * <p>
+ * Полоса не отдает события по одному, а копит пачку: до batchSize штук или пока не истечет окно в window мс
+ * от первого события пачки. Пачка целиком уходит обработчику, который пишет ее одной транзакцией.
+ * Если событий нет, то раз в 100 мс обработчик вызывается с пустой пачкой, чтобы он мог сделать отложенную работу
+ * в потоке полосы.
+ * <p>
+ * Очередь полосы ограничена. Внутри полосы у каждого филиала своя очередь, и пачка набирается по кругу
+ * по одному событию от каждого филиала, поэтому шумный филиал не задерживает остальных.
+ * Кроме общего предела полосы у каждого филиала есть своя квота в ней, и она проверяется до постановки в очередь:
+ * шумный филиал упирается в свою квоту и не занимает место остальных филиалов полосы.
+ * Что делать с событием, когда очередь или квота филиала полны, задает {@link OverloadPolicy}.
+ * <p>
+ * Конструктор потоки не запускает, чтобы обработчик не получил пачку раньше, чем владелец диспетчера
+ * закончит инициализацию. Потоки полос запускает {@link #start}.
+ *
+ * @author Evgeniy Egorov
+ */
+public class EventDispatcher {
+
+    private final Logger log = LogManager.getLogger(EventDispatcher.class);
+
+    /**
+     * Сколько раз подряд пробовать прочитать файл слива, прежде чем отложить его в сторону.
+     */
+    private static final int SPILL_ATTEMPTS = 3;
+
+    /**
+     * Поведение при переполнении очереди полосы.
+     */
+    public enum OverloadPolicy {
+        /**
+         * Ждать место в очереди не дольше заданного времени, потом отказать. Принимающий поток притормаживается.
+         */
+        BLOCK,
+        /**
+         * Сразу отказать.
+         */
+        SHED,
+        /**
+         * Слить событие в файл полосы на диске. Пока файл не вычитан, все новые события полосы тоже идут в файл.
+         */
+        SPILL
+    }
+
+    private final Lane[] lanes;
+    private final ThreadFactory threads;
+    private final Consumer<List<CustomerEvent>> handler;
+    private final int batchSize;
+    private final long windowNanos;
+    private final int capacity;
+    private final int branchQuota;
+    private final OverloadPolicy policy;
+    private final long blockNanos;
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong spilled = new AtomicLong();
+    private volatile boolean running = true;
+
+    /**
+     * @param name         префикс имени потоков.
+     * @param threads      откуда брать потоки полос, каждая полоса - один долгоживущий поток.
+     * @param laneCount    количество полос, т.е. сколько пачек может писаться одновременно.
+     * @param batchSize    максимальный размер пачки.
+     * @param window       сколько ждать добора пачки после первого события, мс.
+     * @param capacity     сколько событий держать в памяти всего на все полосы.
+     * @param branchQuota  сколько событий одного филиала держать в памяти полосы, 0 - четверть очереди полосы.
+     * @param policy       что делать при переполнении.
+     * @param blockTimeout сколько ждать места в очереди при {@link OverloadPolicy#BLOCK}, мс.
+     * @param spillDir     куда сливать при {@link OverloadPolicy#SPILL} и куда сохранять недообработанное при остановке.
+     * @param handler      обработчик пачки событий.
+     */
+    public EventDispatcher(String name, ThreadFactory threads, int laneCount, int batchSize, long window, int capacity, int branchQuota, OverloadPolicy policy, long blockTimeout, File spillDir,
+                           Consumer<List<CustomerEvent>> handler) {
+        this.threads = threads;
+        this.handler = handler;
+        this.batchSize = Math.max(1, batchSize);
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, window));
+        this.lanes = new Lane[Math.max(1, laneCount)];
+        this.capacity = Math.max(this.batchSize, capacity / lanes.length);
+        this.branchQuota = branchQuota > 0 ? Math.min(branchQuota, this.capacity) : Math.max(1, this.capacity / 4);
+        this.policy = policy;
+        this.blockNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, blockTimeout));
+        if (!spillDir.isDirectory() && !spillDir.mkdirs()) {
+            // без политики слива файл нужен только чтобы сохранить недообработанное при остановке
+            if (policy == OverloadPolicy.SPILL) {
+                throw new IllegalArgumentException("Can not create spill folder " + spillDir.getAbsolutePath());
+            }
+            log.warn("Can not create spill folder {}. Unprocessed events will not be kept on shutdown.", spillDir.getAbsolutePath());
+        }
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new Lane(new File(spillDir, name + "-" + i + ".spill"));
+        }
+        log.info("Event dispatcher \"{}\" created with {} lanes, batch {} events / {} ms, queue {} per lane, {} per branch, overload policy {}.",
+                name, lanes.length, this.batchSize, window, this.capacity, this.branchQuota, policy);
+    }
+
+    /**
+     * Запустить потоки полос. До этого события можно ставить в очередь, но никто их не обрабатывает.
+     *
+     * @param recover поднять события, оставшиеся в файлах слива с прошлой остановки. Они идут раньше новых.
+     *                Не нужно, если то же самое проигрывает журнал событий, тогда старые файлы удаляются.
+     */
+    public void start(boolean recover) {
+        for (Lane lane : lanes) {
+            lane.openSpill(recover);
+            lane.thread.start();
+        }
+        log.info("Event dispatcher started.");
+    }
+
+    /**
+     * Поставить событие в очередь его полосы. При переполнении полосы или квоты филиала в ней действует {@link OverloadPolicy}.
+     *
+     * @param event событие от филиала.
+     * @return false если событие не принято из-за переполнения.
+     */
+    public boolean submit(CustomerEvent event) {
+        return submit(event, false);
+    }
+
+    /**
+     * Поставить событие в очередь его полосы. При переполнении полосы или квоты филиала в ней действует {@link OverloadPolicy}.
+     *
+     * @param event   событие от филиала.
+     * @param durable событие уже сохранено в журнале и терять его нельзя. Если политика отказывает,
+     *                оно сливается в файл полосы, как при {@link OverloadPolicy#SPILL}.
+     * @return false если событие не принято из-за переполнения.
+     */
+    public boolean submit(CustomerEvent event, boolean durable) {
+        try {
+            final Lane lane = lanes[laneOf(event)];
+            boolean res = lane.offer(event, policy);
+            if (!res && durable && policy != OverloadPolicy.SPILL) {
+                res = lane.offer(event, OverloadPolicy.SPILL);
+            }
+            (res ? accepted : rejected).incrementAndGet();
+            return res;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            rejected.incrementAndGet();
+            return false;
+        }
+    }
+
+    /**
+     * Поставить событие в очередь, ожидая места сколько потребуется. Для событий, которые нельзя терять, например из журнала.
+     *
+     * @param event событие от филиала.
+     * @throws InterruptedException если ожидание прервано.
+     */
+    public void put(CustomerEvent event) throws InterruptedException {
+        lanes[laneOf(event)].offer(event, null);
+        accepted.incrementAndGet();
+    }
+
+    int laneOf(CustomerEvent event) {
+        return Math.floorMod(Objects.hash(event.getBranchId(), event.getType() == CustomerEvent.Type.SERVICE_NAME || event.getType() == CustomerEvent.Type.USER_NAME
+                ? event.getType() : null, event.getOrderKey()), lanes.length);
+    }
+
+    /**
+     * @param event событие.
+     * @return обрабатывает ли события этого ключа текущий поток.
+     */
+    public boolean isOwnLane(CustomerEvent event) {
+        return lanes[laneOf(event)].thread == Thread.currentThread();
+    }
+
+    public int getLaneCount() {
+        return lanes.length;
+    }
+
+    /**
+     * @return сколько событий ждут обработки в памяти и в файлах слива.
+     */
+    public long getQueueDepth() {
+        long res = 0;
+        for (Lane lane : lanes) {
+            res += lane.depth();
+        }
+        return res;
+    }
+
+    public long getAccepted() {
+        return accepted.get();
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    public long getSpilled() {
+        return spilled.get();
+    }
+
+    public OverloadPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * @return false после начала остановки. Обработчик по нему понимает, что ждать БД больше не надо.
+     */
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Дообработать то, что уже в очередях, и остановить потоки.
+     *
+     * @param timeout сколько ждать дообработки, мс.
+     */
+    public void shutdown(long timeout) {
+        running = false;
+        for (Lane lane : lanes) {
+            lane.running = false;
+        }
+        final long deadline = System.currentTimeMillis() + timeout;
+        for (Lane lane : lanes) {
+            try {
+                lane.thread.join(Math.max(1, deadline - System.currentTimeMillis()));
+                if (lane.thread.isAlive()) {
+                    log.warn("Lane {} was not drained in {} ms. {} events are left.", lane.thread.getName(), timeout, lane.depth());
+                    lane.thread.interrupt();
+                }
+            } catch (InterruptedException ex) {
+                lane.thread.interrupt();
+                Thread.currentThread().interrupt();
+            }
+            lane.closeSpill();
+        }
+        log.info("Event dispatcher stopped.");
+    }
+
+    /**
+     * Одна полоса: своя ограниченная очередь с подочередями филиалов и свой поток, который собирает из нее пачки.
+     */
+    private final class Lane implements Runnable {
+
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition notEmpty = lock.newCondition();
+        private final Condition notFull = lock.newCondition();
+        private final HashMap<Long, ArrayDeque<CustomerEvent>> byBranch = new HashMap<>();
+        /**
+         * Филиалы, у которых есть события, в порядке обхода по кругу.
+         */
+        private final ArrayDeque<Long> ring = new ArrayDeque<>();
+        private final SpillFile spill;
+        private final Thread thread;
+        private int size;
+        private int spillFailures;
+        private volatile boolean running = true;
+
+        private Lane(File spillFile) {
+            spill = new SpillFile(spillFile);
+            thread = threads.newThread(this);
+        }
+
+        /**
+         * @param policy null - ждать места без ограничения.
+         */
+        private boolean offer(CustomerEvent event, OverloadPolicy policy) throws InterruptedException {
+            lock.lock();
+            try {
+                long nanos = blockNanos;
+                while (!spill.isEmpty() || size >= capacity || branchSize(event.getBranchId()) >= branchQuota) {
+                    if (policy == OverloadPolicy.SHED) {
+                        return false;
+                    }
+                    if (policy == OverloadPolicy.SPILL || !spill.isEmpty()) {
+                        // пока в файле что-то есть, новые события идут за ним, иначе нарушится порядок
+                        try {
+                            spill.write(event);
+                        } catch (IOException ex) {
+                            log.error("Event was not spilled to disk: " + event, ex);
+                            return false;
+                        }
+                        spilled.incrementAndGet();
+                        notEmpty.signal();
+                        return true;
+                    }
+                    if (policy == null) {
+                        notFull.await();
+                    } else {
+                        if (nanos <= 0) {
+                            return false;
+                        }
+                        nanos = notFull.awaitNanos(nanos);
+                    }
+                }
+                enqueue(event);
+                notEmpty.signal();
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private int branchSize(Long branchId) {
+            final ArrayDeque<CustomerEvent> queue = byBranch.get(branchId);
+            return queue == null ? 0 : queue.size();
+        }
+
+        private void enqueue(CustomerEvent event) {
+            ArrayDeque<CustomerEvent> queue = byBranch.get(event.getBranchId());
+            if (queue == null) {
+                queue = new ArrayDeque<>();
+                byBranch.put(event.getBranchId(), queue);
+                ring.add(event.getBranchId());
+            }
+            queue.add(event);
+            size++;
+        }
+
+        /**
+         * Добрать в пачку до max событий по кругу филиалов, ожидая появления событий не дольше nanos.
+         *
+         * @return сколько добавлено.
+         */
+        private int drain(List<CustomerEvent> batch, int max, long nanos) throws InterruptedException {
+            lock.lock();
+            try {
+                while (size == 0 && spill.isEmpty()) {
+                    if (nanos <= 0) {
+                        return 0;
+                    }
+                    nanos = notEmpty.awaitNanos(nanos);
+                }
+                if (size == 0) {
+                    refill();
+                }
+                int res = 0;
+                while (res < max && size > 0) {
+                    final Long branchId = ring.poll();
+                    final ArrayDeque<CustomerEvent> queue = byBranch.get(branchId);
+                    batch.add(queue.poll());
+                    size--;
+                    res++;
+                    if (queue.isEmpty()) {
+                        byBranch.remove(branchId);
+                    } else {
+                        ring.add(branchId);
+                    }
+                }
+                notFull.signalAll();
+                return res;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Память пуста, поднимаем из файла слива порцию в половину очереди.
+         * Нечитаемую запись пробуем еще раз при следующем добирании, а после нескольких неудач подряд
+         * файл откладывается в сторону, чтобы полоса не встала.
+         */
+        private void refill() {
+            try {
+                while (size < capacity / 2 + 1 && !spill.isEmpty()) {
+                    enqueue(spill.read());
+                }
+                spillFailures = 0;
+            } catch (IOException ex) {
+                if (++spillFailures < SPILL_ATTEMPTS) {
+                    log.warn("Spill file of lane {} was not read, will try again. {}", thread.getName(), ex.toString());
+                    return;
+                }
+                spillFailures = 0;
+                final long rest = spill.size();
+                try {
+                    log.error("Spill file of lane " + thread.getName() + " is broken. " + rest + " events are set aside in " + spill.setAside(), ex);
+                } catch (IOException e) {
+                    log.error("Spill file of lane " + thread.getName() + " is broken and was not set aside. " + e.getMessage(), ex);
+                }
+            }
+        }
+
+        /**
+         * Перед стартом потока полосы поднять или удалить файл слива прошлой остановки.
+         */
+        private void openSpill(boolean recover) {
+            lock.lock();
+            try {
+                if (recover) {
+                    final long count = spill.recover();
+                    if (count > 0) {
+                        log.info("Lane {} recovered {} spilled events.", thread.getName(), count);
+                    }
+                } else {
+                    spill.reset();
+                }
+            } catch (IOException ex) {
+                try {
+                    log.error("Spill file of lane " + thread.getName() + " was not recovered, it is set aside in " + spill.setAside(), ex);
+                } catch (IOException e) {
+                    log.error("Spill file of lane " + thread.getName() + " was not recovered. " + e.getMessage(), ex);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private long depth() {
+            lock.lock();
+            try {
+                return size + spill.size();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * При остановке недообработанное из памяти и непрочитанное из файла остается в файле слива
+         * и поднимается при следующем старте. Очередь полосы после этого пуста.
+         */
+        private void closeSpill() {
+            lock.lock();
+            try {
+                final ArrayList<CustomerEvent> left = new ArrayList<>(size);
+                for (Long branchId : ring) {
+                    left.addAll(byBranch.get(branchId));
+                }
+                final long kept = left.size() + spill.size();
+                byBranch.clear();
+                ring.clear();
+                size = 0;
+                spill.close(left);
+                if (kept > 0) {
+                    log.warn("Lane {} kept {} unprocessed events in its spill file.", thread.getName(), kept);
+                }
+            } catch (IOException ex) {
+                log.error("Spill file of lane " + thread.getName() + " was not closed.", ex);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void run() {
+            final ArrayList<CustomerEvent> batch = new ArrayList<>(batchSize);
+            while (running || depth() > 0) {
+                try {
+                    if (drain(batch, batchSize, TimeUnit.MILLISECONDS.toNanos(100)) == 0) {
+                        handler.accept(batch);
+                        continue;
+                    }
+                    final long deadline = System.nanoTime() + windowNanos;
+                    while (batch.size() < batchSize) {
+                        if (drain(batch, batchSize - batch.size(), deadline - System.nanoTime()) == 0) {
+                            break;
+                        }
+                    }
+                    handler.accept(batch);
+                } catch (InterruptedException ex) {
+                    log.warn("Lane {} interrupted.", thread.getName());
+                    return;
+                } catch (Exception ex) {
+                    log.error("Batch of " + batch.size() + " events was not processed.", ex);
+                } finally {
+                    batch.clear();
+                }
+            }
+        }
+    }
+}
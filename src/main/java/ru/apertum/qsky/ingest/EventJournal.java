@@ -0,0 +1,290 @@
+/*
+ *  Copyright (C) 2010 {Apertum}Projects. web: www.apertum.ru email: info@apertum.ru
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ru.apertum.qsky.ingest;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import ru.apertum.qsky.api.CustomerEvent;
+import ru.apertum.qsky.common.ServerException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Журнал принятых событий в файлах, отображенных в память.
+ * Событие сначала дописывается в журнал и только потом уходит на обработку. После коммита в БД событие отмечается
+ * как примененное, и контрольная точка сдвигается до самого старого еще не примененного события.
+ * При старте все, что записано после контрольной точки, проигрывается заново по порядку.
+ * <p>
+ * Журнал - это набор сегментов events-&lt;номер первой записи&gt;.jrn заданного размера. Запись, которая не влезает
+ * и в пустой сегмент, получает свой сегмент по размеру.
+ * Запись: int длина, int crc32, long номер, тело события. Нулевая длина - конец записей в сегменте.
+ * <p>
+ * Контрольная точка сдвигается после коммита, поэтому после падения проигрываются и уже записанные события.
+ * Чтобы не применить их дважды, в той же транзакции пишутся отметки {@link JournalMarks}.
+ * Сегменты, целиком лежащие до контрольной точки, удаляются.
+ *
+ * @author Evgeniy Egorov
+ */
+public class EventJournal {
+
+    private final Logger log = LogManager.getLogger(EventJournal.class);
+
+    private static final String SEGMENT_PREFIX = "events-";
+    private static final String SEGMENT_SUFFIX = ".jrn";
+    private static final int HEADER = 4 + 4 + 8;
+
+    private final File dir;
+    private final int segmentSize;
+    private final MappedByteBuffer checkpointBuffer;
+    private final ScheduledExecutorService flusher;
+
+    /**
+     * Номера записей, которые приняты, но еще не применены.
+     */
+    private final ConcurrentSkipListSet<Long> inFlight = new ConcurrentSkipListSet<>();
+
+    private MappedByteBuffer segment;
+    private long lastId;
+    private long checkpoint;
+    private volatile boolean dirty = false;
+
+    /**
+     * @param dir         папка журнала, создается если нет.
+     * @param segmentSize размер одного сегмента в байтах.
+     * @param forcePeriod как часто сбрасывать журнал на диск, мс.
+     */
+    public EventJournal(File dir, int segmentSize, long forcePeriod) {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new ServerException("Can not create journal folder " + dir.getAbsolutePath());
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(new File(dir, "checkpoint"), "rw")) {
+            checkpointBuffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, 8);
+        } catch (IOException ex) {
+            throw new ServerException("Can not open journal checkpoint in " + dir.getAbsolutePath(), ex);
+        }
+        checkpoint = checkpointBuffer.getLong(0);
+        lastId = checkpoint;
+        flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, "qsky-journal-flush");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(() -> {
+            try {
+                force();
+            } catch (Exception ex) {
+                log.error("Journal was not forced.", ex);
+            }
+        }, forcePeriod, forcePeriod, TimeUnit.MILLISECONDS);
+        log.info("Event journal {} opened. Checkpoint={}", dir.getAbsolutePath(), checkpoint);
+    }
+
+    /**
+     * Прочитать все события после контрольной точки. Вызывать один раз при старте до первого {@link #append}.
+     * Прочитанные события считаются непримененными, пока для них не вызовут {@link #applied}.
+     *
+     * @return события в порядке записи.
+     */
+    public synchronized List<CustomerEvent> replay() {
+        final ArrayList<CustomerEvent> res = new ArrayList<>();
+        for (File file : segments()) {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+                final MappedByteBuffer buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+                while (buf.remaining() >= HEADER) {
+                    final int len = buf.getInt();
+                    if (len <= 0 || len > buf.remaining() - 12) {
+                        break;
+                    }
+                    final int crc = buf.getInt();
+                    final long id = buf.getLong();
+                    final byte[] body = new byte[len];
+                    buf.get(body);
+                    if (crc != crc(id, body)) {
+                        log.warn("Broken record {} in journal segment {}. Rest of segment skipped.", id, file.getName());
+                        break;
+                    }
+                    lastId = Math.max(lastId, id);
+                    if (id > checkpoint) {
+                        res.add(CustomerEvent.readFrom(new DataInputStream(new ByteArrayInputStream(body)), id));
+                        inFlight.add(id);
+                    }
+                }
+            } catch (IOException ex) {
+                log.error("Journal segment " + file.getName() + " was not read.", ex);
+            }
+        }
+        log.info("Journal replay: {} unapplied events after checkpoint {}.", res.size(), checkpoint);
+        return res;
+    }
+
+    /**
+     * Дописать событие в журнал.
+     *
+     * @param event принятое событие.
+     * @return то же событие с номером записи в журнале.
+     */
+    public CustomerEvent append(CustomerEvent event) {
+        final byte[] body;
+        try {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+            event.writeTo(new DataOutputStream(bytes));
+            body = bytes.toByteArray();
+        } catch (IOException ex) {
+            throw new ServerException("Event was not serialized. " + event, ex);
+        }
+        final long id;
+        synchronized (this) {
+            id = lastId + 1;
+            if (segment == null || segment.remaining() < HEADER + body.length + 4) {
+                roll(id, HEADER + body.length + 4);
+            }
+            segment.putInt(body.length);
+            segment.putInt(crc(id, body));
+            segment.putLong(id);
+            segment.put(body);
+            lastId = id;
+            inFlight.add(id);
+            dirty = true;
+        }
+        return event.withJournalId(id);
+    }
+
+    /**
+     * Отметить события как записанные в БД и сдвинуть контрольную точку.
+     *
+     * @param events примененные события.
+     */
+    public void applied(List<CustomerEvent> events) {
+        for (CustomerEvent event : events) {
+            inFlight.remove(event.getJournalId());
+        }
+        synchronized (this) {
+            final Long oldest = inFlight.isEmpty() ? null : inFlight.first();
+            final long point = oldest == null ? lastId : oldest - 1;
+            if (point > checkpoint) {
+                checkpoint = point;
+                checkpointBuffer.putLong(0, checkpoint);
+                dirty = true;
+            }
+        }
+    }
+
+    /**
+     * @return номер записи, до которой включительно все применено.
+     */
+    public synchronized long getCheckpoint() {
+        return checkpoint;
+    }
+
+    /**
+     * Сколько событий принято, но еще не записано в БД.
+     *
+     * @return количество.
+     */
+    public int getUnappliedCount() {
+        return inFlight.size();
+    }
+
+    /**
+     * Сбросить отображенные страницы на диск и удалить сегменты до контрольной точки.
+     * Вызывается периодически, а не на каждую запись, чтобы прием события стоил как запись в память.
+     */
+    public synchronized void force() {
+        if (!dirty) {
+            return;
+        }
+        dirty = false;
+        if (segment != null) {
+            segment.force();
+        }
+        checkpointBuffer.force();
+        final File[] files = segments();
+        for (int i = 0; i + 1 < files.length; i++) {
+            // все записи сегмента меньше первой записи следующего
+            if (firstId(files[i + 1]) - 1 <= checkpoint && !files[i].delete()) {
+                log.warn("Journal segment {} was not deleted.", files[i].getName());
+            }
+        }
+    }
+
+    public void close() {
+        flusher.shutdown();
+        synchronized (this) {
+            force();
+            segment = null;
+        }
+    }
+
+    /**
+     * @param need сколько места нужно первой записи, сегмент не меньше этого.
+     */
+    private void roll(long firstId, int need) {
+        if (segment != null) {
+            segment.force();
+        }
+        if (need > segmentSize) {
+            log.warn("Journal record {} of {} bytes is larger than segment size {}.", firstId, need, segmentSize);
+        }
+        final File file = new File(dir, String.format("%s%020d%s", SEGMENT_PREFIX, firstId, SEGMENT_SUFFIX));
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            segment = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, Math.max(segmentSize, need));
+        } catch (IOException ex) {
+            throw new ServerException("Can not create journal segment " + file.getAbsolutePath(), ex);
+        }
+        log.info("New journal segment {}.", file.getName());
+    }
+
+    private File[] segments() {
+        final File[] files = dir.listFiles((d, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+        if (files == null) {
+            return new File[0];
+        }
+        Arrays.sort(files, (f1, f2) -> Long.compare(firstId(f1), firstId(f2)));
+        return files;
+    }
+
+    private static long firstId(File file) {
+        final String name = file.getName();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    private static int crc(long id, byte[] body) {
+        final CRC32 crc = new CRC32();
+        crc.update(ByteBuffer.allocate(8).putLong(0, id).array());
+        crc.update(body);
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ *  Copyright (C) 2010 {Apertum}Projects. web: www.apertum.ru email: info@apertum.ru
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ru.apertum.qsky.ingest;
+
+import ru.apertum.qsky.api.CustomerEvent;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Журнал событий в БД, таблица customer_event. Только вставка, строки никогда не меняются.
+ * Таблицы customer и step - проекции этого журнала, их можно пересобрать заново, см. {@link ProjectionRebuilder}.
+ * Работает на соединении сессии, чтобы строки журнала писались в той же транзакции, что и проекции.
+ *
+ * @author Evgeniy Egorov
+ */
+public final class EventLog {
+
+    private static final String INSERT = "insert into customer_event (branch_id, event_type, service_id, employee_id, customer_id, status, number, prefix, "
+            + "before_customer_id, after_customer_id, name, seq, event_time, received) values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+    private static final String SELECT = "select id, event_type, service_id, employee_id, customer_id, status, number, prefix, "
+            + "before_customer_id, after_customer_id, name, seq, event_time, received from customer_event where branch_id = ? and id > ? order by id limit ?";
+
+    private EventLog() {
+    }
+
+    /**
+     * Строка журнала.
+     */
+    public static final class Entry {
+
+        private final long id;
+        private final CustomerEvent event;
+
+        private Entry(long id, CustomerEvent event) {
+            this.id = id;
+            this.event = event;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public CustomerEvent getEvent() {
+            return event;
+        }
+    }
+
+    /**
+     * Дописать события одной JDBC-пачкой.
+     *
+     * @param con    соединение текущей транзакции.
+     * @param events события в порядке применения.
+     */
+    public static void append(Connection con, List<CustomerEvent> events) throws SQLException {
+        if (events.isEmpty()) {
+            return;
+        }
+        try (PreparedStatement ps = con.prepareStatement(INSERT)) {
+            for (CustomerEvent event : events) {
+                ps.setObject(1, event.getBranchId(), Types.BIGINT);
+                ps.setInt(2, event.getType().ordinal());
+                ps.setObject(3, event.getServiceId(), Types.BIGINT);
+                ps.setObject(4, event.getEmployeeId(), Types.BIGINT);
+                ps.setObject(5, event.getCustomerId(), Types.BIGINT);
+                ps.setObject(6, event.getStatus(), Types.INTEGER);
+                ps.setObject(7, event.getNumber(), Types.INTEGER);
+                ps.setString(8, event.getPrefix());
+                ps.setObject(9, event.getBeforeCustId(), Types.BIGINT);
+                ps.setObject(10, event.getAfterCustId(), Types.BIGINT);
+                ps.setString(11, event.getName());
+                ps.setObject(12, event.getSeq(), Types.BIGINT);
+                ps.setTimestamp(13, event.getEventTime() == null ? null : new Timestamp(event.getEventTime()));
+                ps.setTimestamp(14, new Timestamp(event.getReceived()));
+                ps.addBatch();
+            }
+            ps.executeBatch();
+        }
+    }
+
+    /**
+     * Прочитать очередную порцию событий филиала.
+     *
+     * @param afterId с какой строки, не включая ее. 0 - с начала.
+     * @param limit   сколько строк максимум.
+     * @return строки по порядку записи.
+     */
+    public static List<Entry> read(Connection con, Long branchId, long afterId, int limit) throws SQLException {
+        final ArrayList<Entry> res = new ArrayList<>(limit);
+        try (PreparedStatement ps = con.prepareStatement(SELECT)) {
+            ps.setLong(1, branchId);
+            ps.setLong(2, afterId);
+            ps.setInt(3, limit);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    res.add(new Entry(rs.getLong(1), CustomerEvent.restore(CustomerEvent.Type.values()[rs.getInt(2)], branchId,
+                            getLong(rs, 3), getLong(rs, 4), getLong(rs, 5), getInt(rs, 6), getInt(rs, 7), rs.getString(8),
+                            getLong(rs, 9), getLong(rs, 10), rs.getString(11), getLong(rs, 12),
+                            rs.getTimestamp(13) == null ? null : rs.getTimestamp(13).getTime(), rs.getTimestamp(14).getTime())));
+                }
+            }
+        }
+        return res;
+    }
+
+    /**
+     * @return филиалы, по которым есть события.
+     */
+    public static List<Long> branches(Connection con) throws SQLException {
+        final ArrayList<Long> res = new ArrayList<>();
+        try (PreparedStatement ps = con.prepareStatement("select distinct branch_id from customer_event");
+             ResultSet rs = ps.executeQuery()) {
+            while (rs.next()) {
+                res.add(rs.getLong(1));
+            }
+        }
+        return res;
+    }
+
+    private static Long getLong(ResultSet rs, int column) throws SQLException {
+        final long res = rs.getLong(column);
+        return rs.wasNull() ? null : res;
+    }
+
+    private static Integer getInt(ResultSet rs, int column) throws SQLException {
+        final int res = rs.getInt(column);
+        return rs.wasNull() ? null : res;
+    }
+}
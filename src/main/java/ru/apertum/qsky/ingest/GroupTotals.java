@@ -0,0 +1,168 @@
+/*
+ *  Copyright (C) 2010 {Apertum}Projects. web: www.apertum.ru email: info@apertum.ru
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ru.apertum.qsky.ingest;
+
+/**
+ * Итоги по парам (услуга, сотрудник) без объектов на каждую строку: открытая адресация с линейным пробированием,
+ * ключи парами лежат подряд в одном long[], суммы и количества - в параллельных массивах примитивов.
+ * Строка итогов добавляется за O(1) без упаковки id в Long, наименования вызывающий разрешает потом один раз на группу
+ * через {@link #forEach}. Части, посчитанные в разных потоках, сливаются через {@link #merge}.
+ * <p>
+ * Не потокобезопасен, каждая часть считается в своем экземпляре.
+ *
+ * @author Evgeniy Egorov
+ */
+public class GroupTotals {
+
+    /**
+     * Что делать с итогами одной группы.
+     */
+    public interface Visitor {
+
+        void group(long serviceId, long employeeId, int served, int removed, long waitSum, long workSum, long waitMax, long workMax);
+    }
+
+    private long[] keys;
+    private boolean[] used;
+    private int[] served;
+    private int[] removed;
+    private long[] waitSum;
+    private long[] workSum;
+    private long[] waitMax;
+    private long[] workMax;
+    private int size;
+    private int mask;
+
+    public GroupTotals() {
+        this(64);
+    }
+
+    /**
+     * @param expected сколько групп ожидается, таблица сразу берется с запасом.
+     */
+    public GroupTotals(int expected) {
+        allocate(Integer.highestOneBit(Math.max(16, expected) * 2 - 1) << 1);
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity * 2];
+        used = new boolean[capacity];
+        served = new int[capacity];
+        removed = new int[capacity];
+        waitSum = new long[capacity];
+        workSum = new long[capacity];
+        waitMax = new long[capacity];
+        workMax = new long[capacity];
+        mask = capacity - 1;
+    }
+
+    /**
+     * Прибавить строку итогов к группе, группа заводится при первом упоминании.
+     */
+    public void add(long serviceId, long employeeId, int served, int removed, long waitSum, long workSum, long waitMax, long workMax) {
+        final int slot = slot(serviceId, employeeId);
+        this.served[slot] += served;
+        this.removed[slot] += removed;
+        this.waitSum[slot] += waitSum;
+        this.workSum[slot] += workSum;
+        this.waitMax[slot] = Math.max(this.waitMax[slot], waitMax);
+        this.workMax[slot] = Math.max(this.workMax[slot], workMax);
+    }
+
+    /**
+     * Прибавить все группы другой части.
+     */
+    public void merge(GroupTotals other) {
+        for (int i = 0; i < other.used.length; i++) {
+            if (other.used[i]) {
+                add(other.keys[2 * i], other.keys[2 * i + 1], other.served[i], other.removed[i], other.waitSum[i], other.workSum[i],
+                        other.waitMax[i], other.workMax[i]);
+            }
+        }
+    }
+
+    public void forEach(Visitor visitor) {
+        for (int i = 0; i < used.length; i++) {
+            if (used[i]) {
+                visitor.group(keys[2 * i], keys[2 * i + 1], served[i], removed[i], waitSum[i], workSum[i], waitMax[i], workMax[i]);
+            }
+        }
+    }
+
+    /**
+     * @return сколько групп.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Ячейка группы, новая занимается. Таблица заполняется не больше чем наполовину, тогда пробы короткие.
+     */
+    private int slot(long serviceId, long employeeId) {
+        int i = hash(serviceId, employeeId) & mask;
+        while (used[i]) {
+            if (keys[2 * i] == serviceId && keys[2 * i + 1] == employeeId) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+        if (size * 2 >= used.length) {
+            grow();
+            return slot(serviceId, employeeId);
+        }
+        used[i] = true;
+        keys[2 * i] = serviceId;
+        keys[2 * i + 1] = employeeId;
+        size++;
+        return i;
+    }
+
+    private void grow() {
+        final long[] oldKeys = keys;
+        final boolean[] oldUsed = used;
+        final int[] oldServed = served;
+        final int[] oldRemoved = removed;
+        final long[] oldWaitSum = waitSum;
+        final long[] oldWorkSum = workSum;
+        final long[] oldWaitMax = waitMax;
+        final long[] oldWorkMax = workMax;
+        allocate(oldUsed.length * 2);
+        size = 0;
+        for (int i = 0; i < oldUsed.length; i++) {
+            if (oldUsed[i]) {
+                add(oldKeys[2 * i], oldKeys[2 * i + 1], oldServed[i], oldRemoved[i], oldWaitSum[i], oldWorkSum[i], oldWaitMax[i], oldWorkMax[i]);
+            }
+        }
+    }
+
+    /**
+     * Перемешивание обоих id, иначе подряд идущие id услуг и сотрудников легли бы в соседние ячейки кучей.
+     */
+    private static int hash(long serviceId, long employeeId) {
+        long h = serviceId * 0x9E3779B97F4A7C15L + employeeId;
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+
+    @Override
+    public String toString() {
+        return "GroupTotals{size=" + size + ", capacity=" + used.length + "}";
+    }
+}
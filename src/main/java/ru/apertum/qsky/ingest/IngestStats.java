@@ -0,0 +1,134 @@
+/*
+ *  Copyright (C) 2010 {Apertum}Projects. web: www.apertum.ru email: info@apertum.ru
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ru.apertum.qsky.ingest;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Счетчики приема событий, собранные с частей конвейера.
+ *
+ * @author Evgeniy Egorov
+ */
+public class IngestStats implements IngestStatsMBean {
+
+    private static final Logger log = LogManager.getLogger(IngestStats.class);
+
+    public static final String OBJECT_NAME = "ru.apertum.qsky:type=Ingest";
+
+    private final EventDispatcher dispatcher;
+    private final EventJournal journal;
+    private final EventDeduplicator dedup;
+    private final ResequenceBuffer resequencer;
+    private final VisitCache visits;
+    private final ProjectionRebuilder rebuilder;
+
+    /**
+     * @param journal может быть null, если журнал выключен.
+     */
+    public IngestStats(EventDispatcher dispatcher, EventJournal journal, EventDeduplicator dedup, ResequenceBuffer resequencer, VisitCache visits,
+                       ProjectionRebuilder rebuilder) {
+        this.dispatcher = dispatcher;
+        this.journal = journal;
+        this.dedup = dedup;
+        this.resequencer = resequencer;
+        this.visits = visits;
+        this.rebuilder = rebuilder;
+    }
+
+    /**
+     * Зарегистрировать в платформенном MBean-сервере. Ошибка регистрации не мешает приему событий.
+     */
+    public void register() {
+        try {
+            final ObjectName name = new ObjectName(OBJECT_NAME);
+            if (ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            }
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+        } catch (JMException ex) {
+            log.warn("Ingest MBean was not registered. {}", ex.toString());
+        }
+    }
+
+    public void unregister() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(OBJECT_NAME));
+        } catch (JMException ex) {
+            log.warn("Ingest MBean was not unregistered. {}", ex.toString());
+        }
+    }
+
+    @Override
+    public long getQueueDepth() {
+        return dispatcher.getQueueDepth();
+    }
+
+    @Override
+    public long getAccepted() {
+        return dispatcher.getAccepted();
+    }
+
+    @Override
+    public long getRejected() {
+        return dispatcher.getRejected();
+    }
+
+    @Override
+    public long getSpilled() {
+        return dispatcher.getSpilled();
+    }
+
+    @Override
+    public long getDuplicates() {
+        return dedup.getDuplicates();
+    }
+
+    @Override
+    public int getParked() {
+        return resequencer.size();
+    }
+
+    @Override
+    public int getUnapplied() {
+        return journal == null ? 0 : journal.getUnappliedCount();
+    }
+
+    @Override
+    public int getCachedVisits() {
+        return visits.size();
+    }
+
+    @Override
+    public String getOverloadPolicy() {
+        return dispatcher.getPolicy().name();
+    }
+
+    @Override
+    public String rebuildProjections(long branchId) {
+        return rebuilder.start(branchId == 0 ? null : branchId);
+    }
+
+    @Override
+    public String getRebuildState() {
+        return rebuilder.getState();
+    }
+}
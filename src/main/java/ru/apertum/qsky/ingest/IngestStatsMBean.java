@@ -0,0 +1,68 @@
+/*
+ *  Copyright (C) 2010 {Apertum}Projects. web: www.apertum.ru email: info@apertum.ru
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ru.apertum.qsky.ingest;
+
+/**
+ * Счетчики приема событий для JMX, ru.apertum.qsky:type=Ingest.
+ *
+ * @author Evgeniy Egorov
+ */
+public interface IngestStatsMBean {
+
+    /**
+     * @return сколько событий ждут обработки в очередях полос, включая слитые на диск.
+     */
+    long getQueueDepth();
+
+    long getAccepted();
+
+    /**
+     * @return сколько событий не принято из-за переполнения очереди.
+     */
+    long getRejected();
+
+    /**
+     * @return сколько событий слито на диск из-за переполнения очереди.
+     */
+    long getSpilled();
+
+    long getDuplicates();
+
+    /**
+     * @return сколько событий придержано до появления клиента.
+     */
+    int getParked();
+
+    /**
+     * @return сколько событий принято в журнал, но еще не записано в БД.
+     */
+    int getUnapplied();
+
+    int getCachedVisits();
+
+    String getOverloadPolicy();
+
+    /**
+     * Запустить в фоне пересборку клиентов и шагов из журнала customer_event.
+     *
+     * @param branchId филиал, 0 - все филиалы.
+     * @return что запущено.
+     */
+    String rebuildProjections(long branchId);
+
+    String getRebuildState();
+}
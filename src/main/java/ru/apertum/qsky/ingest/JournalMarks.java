@@ -0,0 +1,103 @@
+/*
+ *  Copyright (C) 2010 {Apertum}Projects. web: www.apertum.ru email: info@apertum.ru
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ru.apertum.qsky.ingest;
+
+import ru.apertum.qsky.api.CustomerEvent;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Отметки в БД о записях файлового журнала {@link EventJournal}, которые уже применены. Таблица journal_applied.
+ * Контрольная точка журнала сдвигается только после коммита, поэтому после падения журнал проигрывает и то,
+ * что уже успело записаться. Отметка пишется в той же транзакции, что и проекции, и по ней такие события
+ * при проигрывании пропускаются, а не создают шаги второй раз.
+ *
+ * @author Evgeniy Egorov
+ */
+public final class JournalMarks {
+
+    private static final String INSERT = "insert into journal_applied (id) values (?)";
+
+    private JournalMarks() {
+    }
+
+    /**
+     * Отметить записанные события одной JDBC-пачкой.
+     *
+     * @param con    соединение текущей транзакции.
+     * @param events события пачки, без номера в журнале пропускаются.
+     */
+    public static void mark(Connection con, List<CustomerEvent> events) throws SQLException {
+        boolean any = false;
+        try (PreparedStatement ps = con.prepareStatement(INSERT)) {
+            for (CustomerEvent event : events) {
+                if (event.getJournalId() > 0) {
+                    ps.setLong(1, event.getJournalId());
+                    ps.addBatch();
+                    any = true;
+                }
+            }
+            if (any) {
+                ps.executeBatch();
+            }
+        }
+    }
+
+    /**
+     * @param checkpoint контрольная точка журнала.
+     * @return номера записей после контрольной точки, которые уже в БД.
+     */
+    public static Set<Long> applied(Connection con, long checkpoint) throws SQLException {
+        final HashSet<Long> res = new HashSet<>();
+        try (PreparedStatement ps = con.prepareStatement("select id from journal_applied where id > ?")) {
+            ps.setLong(1, checkpoint);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    res.add(rs.getLong(1));
+                }
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Удалить отметки до контрольной точки включительно, такие записи журнал уже не проигрывает.
+     */
+    public static void prune(Connection con, long checkpoint) throws SQLException {
+        try (PreparedStatement ps = con.prepareStatement("delete from journal_applied where id <= ?")) {
+            ps.setLong(1, checkpoint);
+            ps.executeUpdate();
+        }
+    }
+
+    /**
+     * Удалить все отметки. Вызывается при старте после сверки с проигрываемыми записями: номера новых записей
+     * больше проигранных, а если папку журнала удалили и нумерация началась заново, старые отметки ей не помешают.
+     */
+    public static void clear(Connection con) throws SQLException {
+        try (Statement st = con.createStatement()) {
+            st.executeUpdate("delete from journal_applied");
+        }
+    }
+}
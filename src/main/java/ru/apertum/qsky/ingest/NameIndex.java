@@ -0,0 +1,109 @@
+/*
+ *  Copyright (C) 2010 {Apertum}Projects. web: www.apertum.ru email: info@apertum.ru
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ru.apertum.qsky.ingest;
+
+import ru.apertum.qsky.api.CustomerEvent;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Последние принятые наименования услуг и сотрудников филиалов.
+ * Плагин при каждом рестарте присылает все наименования заново, а меняются они почти никогда.
+ * Неизмененное наименование отбрасывается при приеме без обращения к БД, а из нескольких изменений
+ * одной записи в БД пишется только последнее.
+ *
+ * @author Evgeniy Egorov
+ */
+public class NameIndex {
+
+    private final ConcurrentHashMap<BranchKey, String> services = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<BranchKey, String> employees = new ConcurrentHashMap<>();
+
+    /**
+     * Наименование, которое уже лежит в БД. Для прогрева при старте.
+     */
+    public void loadService(Long branchId, Long serviceId, String name) {
+        services.put(new BranchKey(branchId, serviceId), name == null ? "" : name);
+    }
+
+    /**
+     * Наименование, которое уже лежит в БД. Для прогрева при старте.
+     */
+    public void loadEmployee(Long branchId, Long employeeId, String name) {
+        employees.put(new BranchKey(branchId, employeeId), name == null ? "" : name);
+    }
+
+    /**
+     * Принять наименование.
+     *
+     * @param event событие с наименованием.
+     * @return false если наименование не изменилось и писать его не надо.
+     */
+    public boolean offer(CustomerEvent event) {
+        final ConcurrentHashMap<BranchKey, String> names = namesOf(event);
+        if (names == null) {
+            return true;
+        }
+        final String old = names.put(new BranchKey(event.getBranchId(), event.getOrderKey()), event.getName() == null ? "" : event.getName());
+        return !Objects.equals(old, event.getName() == null ? "" : event.getName());
+    }
+
+    /**
+     * @param event событие с наименованием.
+     * @return false если после этого события уже принято другое наименование этой записи и писать это незачем.
+     */
+    public boolean isLatest(CustomerEvent event) {
+        final ConcurrentHashMap<BranchKey, String> names = namesOf(event);
+        if (names == null) {
+            return true;
+        }
+        final String last = names.get(new BranchKey(event.getBranchId(), event.getOrderKey()));
+        return last == null || last.equals(event.getName() == null ? "" : event.getName());
+    }
+
+    /**
+     * Забыть наименования записей из событий. Вызывается, когда события не записались в БД,
+     * чтобы их переотправка не отбросилась как неизмененная.
+     *
+     * @param events события.
+     */
+    public void forget(List<CustomerEvent> events) {
+        for (CustomerEvent event : events) {
+            final ConcurrentHashMap<BranchKey, String> names = namesOf(event);
+            if (names != null) {
+                names.remove(new BranchKey(event.getBranchId(), event.getOrderKey()));
+            }
+        }
+    }
+
+    public int size() {
+        return services.size() + employees.size();
+    }
+
+    private ConcurrentHashMap<BranchKey, String> namesOf(CustomerEvent event) {
+        switch (event.getType()) {
+            case SERVICE_NAME:
+                return services;
+            case USER_NAME:
+                return employees;
+            default:
+                return null;
+        }
+    }
+}
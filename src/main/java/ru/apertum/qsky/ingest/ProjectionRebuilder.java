@@ -0,0 +1,125 @@
+/*
+ *  Copyright (C) 2010 {Apertum}Projects. web: www.apertum.ru email: info@apertum.ru
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ru.apertum.qsky.ingest;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import ru.apertum.qsky.common.ExecutorProviders;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Пересборка проекций customer и step из журнала событий {@link EventLog}.
+ * Каждый филиал пересобирается целиком и независимо, поэтому разные филиалы идут параллельно.
+ * Пересборка одного филиала не должна пересекаться с приемом его событий, запускать ее надо, когда филиал закрыт.
+ *
+ * @author Evgeniy Egorov
+ */
+public class ProjectionRebuilder {
+
+    private static final Logger log = LogManager.getLogger(ProjectionRebuilder.class);
+
+    /**
+     * Пересборка одного филиала.
+     */
+    public interface BranchRebuild {
+
+        /**
+         * @param branchId филиал.
+         * @return сколько событий применено.
+         */
+        long rebuild(Long branchId);
+    }
+
+    private final Supplier<List<Long>> branches;
+    private final BranchRebuild rebuild;
+    private final int parallelism;
+    private volatile boolean running = false;
+    private volatile String state = "Not started.";
+
+    /**
+     * @param branches    все филиалы из журнала.
+     * @param rebuild     пересборка одного филиала.
+     * @param parallelism сколько филиалов пересобирать одновременно.
+     */
+    public ProjectionRebuilder(Supplier<List<Long>> branches, BranchRebuild rebuild, int parallelism) {
+        this.branches = branches;
+        this.rebuild = rebuild;
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * Запустить пересборку в фоне.
+     *
+     * @param branchId филиал или null - все филиалы из журнала.
+     * @return что запущено, или почему нет.
+     */
+    public synchronized String start(Long branchId) {
+        if (running) {
+            return "Rebuild is already running. " + state;
+        }
+        final List<Long> list = branchId == null ? branches.get() : Collections.singletonList(branchId);
+        if (list.isEmpty()) {
+            return "Nothing to rebuild.";
+        }
+        running = true;
+        final long start = System.currentTimeMillis();
+        final AtomicInteger done = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        final AtomicLong events = new AtomicLong();
+        state = "Rebuilding " + list.size() + " branches.";
+        log.info("Projection rebuild started for {} branches.", list.size());
+        final ExecutorService executor = ExecutorProviders.get().newExecutor("qsky-rebuild", parallelism);
+        final CompletableFuture<?>[] tasks = new CompletableFuture<?>[list.size()];
+        for (int i = 0; i < tasks.length; i++) {
+            final Long branch = list.get(i);
+            tasks[i] = CompletableFuture.runAsync(() -> {
+                try {
+                    final long count = rebuild.rebuild(branch);
+                    events.addAndGet(count);
+                    log.info("Projections of branch {} rebuilt from {} events.", branch, count);
+                } catch (RuntimeException ex) {
+                    failed.incrementAndGet();
+                    log.error("Projections of branch " + branch + " were not rebuilt.", ex);
+                }
+                state = "Rebuilding: " + done.incrementAndGet() + " of " + list.size() + " branches, failed " + failed.get() + ".";
+            }, executor);
+        }
+        CompletableFuture.allOf(tasks).whenComplete((res, ex) -> {
+            executor.shutdown();
+            state = "Rebuilt " + (list.size() - failed.get()) + " of " + list.size() + " branches from " + events.get() + " events in "
+                    + (System.currentTimeMillis() - start) + " ms, failed " + failed.get() + ".";
+            log.info(state);
+            running = false;
+        });
+        return state;
+    }
+
+    public String getState() {
+        return state;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ *  Copyright (C) 2010 {Apertum}Projects. web: www.apertum.ru email: info@apertum.ru
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ru.apertum.qsky.ingest;
+
+import ru.apertum.qsky.api.CustomerEvent;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+/**
+ * Придержанные события клиентов, которые пришли раньше постановки клиента в очередь.
+ * Событие ждет здесь, пока не придет STATE_WAIT этого клиента или не истечет таймаут.
+ * По таймауту события отдаются на обработку как есть, т.е. как раньше без буфера.
+ * <p>
+ * События одного клиента обрабатывает одна полоса, поэтому придержать и отпустить клиента может только его полоса,
+ * а просроченные события каждая полоса забирает только свои.
+ *
+ * @author Evgeniy Egorov
+ */
+public class ResequenceBuffer {
+
+    private final long timeout;
+    private final int maxEvents;
+    private final ConcurrentHashMap<BranchKey, Parked> parked = new ConcurrentHashMap<>();
+    private final AtomicInteger size = new AtomicInteger();
+
+    /**
+     * События одного клиента в порядке поступления.
+     */
+    private static final class Parked {
+
+        private final long deadline;
+        /**
+         * Первое событие неизменно, по нему чужая полоса решает, ее ли это клиент, не трогая список.
+         */
+        private final CustomerEvent first;
+        private final ArrayList<CustomerEvent> events = new ArrayList<>(2);
+
+        private Parked(long deadline, CustomerEvent first) {
+            this.deadline = deadline;
+            this.first = first;
+            events.add(first);
+        }
+    }
+
+    /**
+     * @param timeout   сколько ждать предшествующее событие, мс.
+     * @param maxEvents сколько событий максимум держать всего. Сверх этого события не придерживаются.
+     */
+    public ResequenceBuffer(long timeout, int maxEvents) {
+        this.timeout = timeout;
+        this.maxEvents = maxEvents;
+    }
+
+    /**
+     * Придержать событие.
+     *
+     * @param event событие клиента, которого еще нет.
+     * @param now   текущее время, мс.
+     * @return false если буфер полон и событие надо обработать сразу. Тогда ранее придержанные события этого клиента
+     * надо сначала забрать через {@link #release} и обработать перед ним, иначе нарушится порядок.
+     */
+    public boolean park(CustomerEvent event, long now) {
+        if (size.get() >= maxEvents) {
+            return false;
+        }
+        restore(event, now);
+        return true;
+    }
+
+    /**
+     * Вернуть в буфер отпущенное событие, транзакция которого откатилась. Предел размера не проверяется:
+     * при повторе пачки этого события в ней нет, и отказать - значит потерять его.
+     *
+     * @param event отпущенное ранее событие.
+     * @param now   текущее время, мс.
+     */
+    public void restore(CustomerEvent event, long now) {
+        final BranchKey key = new BranchKey(event.getBranchId(), event.getCustomerId());
+        final Parked p = parked.get(key);
+        if (p == null) {
+            parked.put(key, new Parked(now + timeout, event));
+        } else {
+            p.events.add(event);
+        }
+        size.incrementAndGet();
+    }
+
+    /**
+     * @return есть ли придержанные события клиента. Тогда следующие его события тоже надо придержать, чтобы не нарушить порядок.
+     */
+    public boolean isWaiting(Long branchId, Long customerId) {
+        return !parked.isEmpty() && parked.containsKey(new BranchKey(branchId, customerId));
+    }
+
+    /**
+     * Отпустить события клиента, т.к. пришло предшествующее.
+     *
+     * @return события в порядке поступления, может быть пусто.
+     */
+    public List<CustomerEvent> release(Long branchId, Long customerId) {
+        if (parked.isEmpty()) {
+            return Collections.emptyList();
+        }
+        final Parked p = parked.remove(new BranchKey(branchId, customerId));
+        if (p == null) {
+            return Collections.emptyList();
+        }
+        size.addAndGet(-p.events.size());
+        return p.events;
+    }
+
+    /**
+     * Забрать события с истекшим таймаутом.
+     *
+     * @param now текущее время, мс.
+     * @param own какие события может забрать вызывающая полоса.
+     * @return события в порядке поступления по каждому клиенту.
+     */
+    public List<CustomerEvent> expired(long now, Predicate<CustomerEvent> own) {
+        if (parked.isEmpty()) {
+            return Collections.emptyList();
+        }
+        final ArrayList<CustomerEvent> res = new ArrayList<>();
+        final Iterator<Map.Entry<BranchKey, Parked>> it = parked.entrySet().iterator();
+        while (it.hasNext()) {
+            final Parked p = it.next().getValue();
+            if (p.deadline <= now && own.test(p.first)) {
+                it.remove();
+                size.addAndGet(-p.events.size());
+                res.addAll(p.events);
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Убрать события из буфера, если они там. Вызывается при откате транзакции, в которой их придержали,
+     * т.к. при повторе они будут придержаны заново.
+     *
+     * @param events события откаченной пачки.
+     */
+    public void cancel(Collection<CustomerEvent> events) {
+        if (parked.isEmpty()) {
+            return;
+        }
+        for (CustomerEvent event : events) {
+            final BranchKey key = new BranchKey(event.getBranchId(), event.getCustomerId());
+            final Parked p = parked.get(key);
+            if (p != null && p.events.remove(event)) {
+                size.decrementAndGet();
+                if (p.events.isEmpty()) {
+                    parked.remove(key);
+                }
+            }
+        }
+    }
+
+    public int size() {
+        return size.get();
+    }
+}
@@ -0,0 +1,442 @@
+/*
+ *  Copyright (C) 2010 {Apertum}Projects. web: www.apertum.ru email: info@apertum.ru
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ru.apertum.qsky.ingest;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Живые очереди клиентов к услугам филиалов в памяти. Источник истины для порядка в очереди.
+ * Вставка и удаление клиента меняют только ссылки в памяти, в БД порядок пишется снимком раз в период:
+ * только те клиенты, у которых поменялись соседи, одной пачкой.
+ * <p>
+ * События одного клиента идут в одной полосе, но соседи по очереди обрабатываются в других полосах,
+ * поэтому каждая очередь меняется под своим монитором. По той же причине удаление соседа может прийти
+ * раньше вставки, которая на него ссылается: недавно удаленные клиенты помнятся, и к ним не привязываются.
+ *
+ * @author Evgeniy Egorov
+ */
+public class ServiceQueues {
+
+    private static final Logger log = LogManager.getLogger(ServiceQueues.class);
+
+    /**
+     * Связи клиента в очереди для записи в БД.
+     */
+    public static final class Link {
+
+        private final Long branchId;
+        private final Long serviceId;
+        private final Long customerId;
+        private final Long beforeCustId;
+        private final Long afterCustId;
+
+        private Link(Long branchId, Long serviceId, Long customerId, Long beforeCustId, Long afterCustId) {
+            this.branchId = branchId;
+            this.serviceId = serviceId;
+            this.customerId = customerId;
+            this.beforeCustId = beforeCustId;
+            this.afterCustId = afterCustId;
+        }
+
+        public Long getBranchId() {
+            return branchId;
+        }
+
+        public Long getServiceId() {
+            return serviceId;
+        }
+
+        public Long getCustomerId() {
+            return customerId;
+        }
+
+        /**
+         * @return клиент перед этим, null если этот первый или уже не в очереди.
+         */
+        public Long getBeforeCustId() {
+            return beforeCustId;
+        }
+
+        /**
+         * @return клиент после этого, null если этот последний или уже не в очереди.
+         */
+        public Long getAfterCustId() {
+            return afterCustId;
+        }
+    }
+
+    private static final class Node {
+
+        private final Long customerId;
+        private Node before;
+        private Node after;
+
+        private Node(Long customerId) {
+            this.customerId = customerId;
+        }
+    }
+
+    /**
+     * Очередь к одной услуге. Все поля меняются только под монитором очереди.
+     */
+    private static final class Queue {
+
+        private final Long branchId;
+        private final Long serviceId;
+        private final HashMap<Long, Node> nodes = new HashMap<>();
+        private final LinkedHashSet<Long> dirty = new LinkedHashSet<>();
+        private Node head;
+        private Node tail;
+
+        private Queue(Long branchId, Long serviceId) {
+            this.branchId = branchId;
+            this.serviceId = serviceId;
+        }
+
+        private Node node(Long customerId) {
+            return nodes.computeIfAbsent(customerId, Node::new);
+        }
+
+        private void unlink(Node node) {
+            if (node.before != null) {
+                node.before.after = node.after;
+                dirty.add(node.before.customerId);
+            } else if (head == node) {
+                head = node.after;
+            }
+            if (node.after != null) {
+                node.after.before = node.before;
+                dirty.add(node.after.customerId);
+            } else if (tail == node) {
+                tail = node.before;
+            }
+            node.before = null;
+            node.after = null;
+            dirty.add(node.customerId);
+        }
+
+        private void linkAfter(Node node, Node before) {
+            node.before = before;
+            node.after = before.after;
+            before.after = node;
+            if (node.after != null) {
+                node.after.before = node;
+                dirty.add(node.after.customerId);
+            } else {
+                tail = node;
+            }
+            dirty.add(before.customerId);
+            dirty.add(node.customerId);
+        }
+
+        private void linkBefore(Node node, Node after) {
+            node.after = after;
+            node.before = after.before;
+            after.before = node;
+            if (node.before != null) {
+                node.before.after = node;
+                dirty.add(node.before.customerId);
+            } else {
+                head = node;
+            }
+            dirty.add(after.customerId);
+            dirty.add(node.customerId);
+        }
+
+        /**
+         * Соседа, которого мы еще не видели, ставим в конец, чтобы было к чему привязаться.
+         * Его собственная вставка потом переставит его на место.
+         */
+        private Node neighbour(Long customerId) {
+            final Node node = nodes.get(customerId);
+            if (node != null) {
+                return node;
+            }
+            final Node res = node(customerId);
+            if (tail == null) {
+                head = res;
+            } else {
+                linkAfter(res, tail);
+            }
+            tail = res;
+            return res;
+        }
+
+        private Link link(Long customerId) {
+            final Node node = nodes.get(customerId);
+            return node == null
+                    ? new Link(branchId, serviceId, customerId, null, null)
+                    : new Link(branchId, serviceId, customerId,
+                    node.before == null ? null : node.before.customerId,
+                    node.after == null ? null : node.after.customerId);
+        }
+    }
+
+    private final ConcurrentHashMap<BranchKey, Queue> queues = new ConcurrentHashMap<>();
+    /**
+     * В какой очереди стоит клиент филиала.
+     */
+    private final ConcurrentHashMap<BranchKey, Queue> byCustomer = new ConcurrentHashMap<>();
+    /**
+     * Недавно удаленные из очередей клиенты филиала и когда удалены, мс.
+     */
+    private final ConcurrentHashMap<BranchKey, Long> removed = new ConcurrentHashMap<>();
+    private final long tombstoneTtl;
+    private final Function<List<Link>, List<Link>> snapshot;
+    private final ScheduledExecutorService saver;
+
+    /**
+     * @param period       как часто писать изменившийся порядок в БД, мс.
+     * @param tombstoneTtl сколько помнить удаленного клиента, чтобы запоздавшая вставка соседа не вернула его в очередь, мс.
+     * @param snapshot     запись связей в БД, возвращает связи, которые записать пока нельзя.
+     *                     Они, как и все при исключении, запишутся в следующий раз.
+     */
+    public ServiceQueues(long period, long tombstoneTtl, Function<List<Link>, List<Link>> snapshot) {
+        this.tombstoneTtl = tombstoneTtl;
+        this.snapshot = snapshot;
+        saver = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, "qsky-queue-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+        saver.scheduleWithFixedDelay(this::save, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Восстановить связь из БД при старте. Вызывать до первого {@link #insert}, снимком не пишется.
+     */
+    public void load(Long branchId, Long serviceId, Long customerId, Long beforeCustId, Long afterCustId) {
+        final Queue queue = queue(branchId, serviceId);
+        synchronized (queue) {
+            final Node node = queue.node(customerId);
+            byCustomer.put(new BranchKey(branchId, customerId), queue);
+            if (beforeCustId != null) {
+                node.before = queue.node(beforeCustId);
+                byCustomer.put(new BranchKey(branchId, beforeCustId), queue);
+            } else {
+                queue.head = node;
+            }
+            if (afterCustId != null) {
+                node.after = queue.node(afterCustId);
+                byCustomer.put(new BranchKey(branchId, afterCustId), queue);
+            } else {
+                queue.tail = node;
+            }
+        }
+    }
+
+    /**
+     * Поставить клиента в очередь между соседями. Если клиент уже где-то стоит, он переставляется.
+     *
+     * @param beforeCustId клиент, после которого встать, может быть null.
+     * @param afterCustId  клиент, перед которым встать, может быть null. Если оба null - в конец очереди.
+     *                     Недавно удаленный сосед не в счет, тогда тоже в конец очереди.
+     */
+    public void insert(Long branchId, Long serviceId, Long customerId, Long beforeCustId, Long afterCustId) {
+        detach(branchId, customerId);
+        removed.remove(new BranchKey(branchId, customerId));
+        final Queue queue = queue(branchId, serviceId);
+        final Queue other;
+        synchronized (queue) {
+            Node node = queue.nodes.get(customerId);
+            if (node == null) {
+                node = queue.node(customerId);
+            } else {
+                // между detach и монитором вставка соседа из другой полосы могла поставить его местом для привязки
+                queue.unlink(node);
+            }
+            final Node before = customerId.equals(beforeCustId) ? null : neighbour(queue, beforeCustId);
+            final Node after = before != null || customerId.equals(afterCustId) ? null : neighbour(queue, afterCustId);
+            if (before != null) {
+                queue.linkAfter(node, before);
+            } else if (after != null) {
+                queue.linkBefore(node, after);
+            } else if (queue.tail == null) {
+                queue.head = node;
+                queue.tail = node;
+                queue.dirty.add(customerId);
+            } else {
+                queue.linkAfter(node, queue.tail);
+            }
+            other = byCustomer.put(new BranchKey(branchId, customerId), queue);
+        }
+        if (other != null && other != queue) {
+            // и так же в очереди другой услуги, ее монитор берем отдельно, чтобы не держать два сразу
+            synchronized (other) {
+                final Node node = other.nodes.remove(customerId);
+                if (node != null) {
+                    other.unlink(node);
+                }
+            }
+        }
+    }
+
+    /**
+     * Сосед, к которому привязаться. Удаленного недавно не воскрешаем.
+     *
+     * @return null если соседа нет или он уже ушел из очереди.
+     */
+    private Node neighbour(Queue queue, Long customerId) {
+        if (customerId == null) {
+            return null;
+        }
+        final BranchKey key = new BranchKey(queue.branchId, customerId);
+        final Node node = queue.nodes.get(customerId);
+        if (node != null) {
+            return node;
+        }
+        if (removed.containsKey(key) || byCustomer.containsKey(key)) {
+            // уже удален или стоит в другой очереди
+            return null;
+        }
+        byCustomer.put(key, queue);
+        if (removed.containsKey(key)) {
+            // удаление пришло из другой полосы между проверкой и записью и могло нас не увидеть
+            byCustomer.remove(key, queue);
+            return null;
+        }
+        return queue.neighbour(customerId);
+    }
+
+    /**
+     * Убрать клиента из очереди, соседи смыкаются. Клиент запоминается как удаленный,
+     * даже если его еще не было видно, чтобы запоздавшая вставка соседа не поставила его обратно.
+     */
+    public void remove(Long branchId, Long customerId) {
+        removed.put(new BranchKey(branchId, customerId), System.currentTimeMillis());
+        detach(branchId, customerId);
+    }
+
+    private void detach(Long branchId, Long customerId) {
+        final Queue queue = byCustomer.remove(new BranchKey(branchId, customerId));
+        if (queue == null) {
+            return;
+        }
+        synchronized (queue) {
+            final Node node = queue.nodes.remove(customerId);
+            if (node != null) {
+                queue.unlink(node);
+            }
+        }
+    }
+
+    /**
+     * @return номера клиентов очереди к услуге по порядку.
+     */
+    public List<Long> getQueue(Long branchId, Long serviceId) {
+        final Queue queue = queues.get(new BranchKey(branchId, serviceId));
+        if (queue == null) {
+            return Collections.emptyList();
+        }
+        final ArrayList<Long> res = new ArrayList<>();
+        synchronized (queue) {
+            for (Node node = queue.head; node != null; node = node.after) {
+                res.add(node.customerId);
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Записать следующим снимком все очереди филиала заново, например после пересборки его клиентов.
+     */
+    public void touchBranch(Long branchId) {
+        for (Queue queue : queues.values()) {
+            if (queue.branchId.equals(branchId)) {
+                synchronized (queue) {
+                    queue.dirty.addAll(queue.nodes.keySet());
+                }
+            }
+        }
+    }
+
+    /**
+     * @return сколько клиентов стоит во всех очередях.
+     */
+    public int size() {
+        return byCustomer.size();
+    }
+
+    private Queue queue(Long branchId, Long serviceId) {
+        return queues.computeIfAbsent(new BranchKey(branchId, serviceId), k -> new Queue(branchId, serviceId));
+    }
+
+    /**
+     * Записать связи клиентов, у которых поменялись соседи. Пишется текущее состояние, а не история изменений.
+     */
+    public void save() {
+        final long expired = System.currentTimeMillis() - tombstoneTtl;
+        removed.values().removeIf(time -> time < expired);
+        final ArrayList<Link> links = new ArrayList<>();
+        for (Queue queue : queues.values()) {
+            synchronized (queue) {
+                if (!queue.dirty.isEmpty()) {
+                    for (Long customerId : queue.dirty) {
+                        // ушедшего в другую очередь пишет та очередь, иначе пустые связи затрут новые
+                        if (queue.nodes.containsKey(customerId) || !byCustomer.containsKey(new BranchKey(queue.branchId, customerId))) {
+                            links.add(queue.link(customerId));
+                        }
+                    }
+                    queue.dirty.clear();
+                }
+            }
+        }
+        if (links.isEmpty()) {
+            return;
+        }
+        try {
+            retry(snapshot.apply(links));
+        } catch (Exception ex) {
+            log.error("Queue snapshot was not saved, will try next time.", ex);
+            retry(links);
+        }
+    }
+
+    private void retry(List<Link> links) {
+        for (Link link : links) {
+            final Queue queue = queues.get(new BranchKey(link.getBranchId(), link.getServiceId()));
+            synchronized (queue) {
+                queue.dirty.add(link.getCustomerId());
+            }
+        }
+    }
+
+    /**
+     * Остановить периодическую запись и записать последний снимок.
+     */
+    public void close() {
+        saver.shutdown();
+        try {
+            saver.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        save();
+    }
+}
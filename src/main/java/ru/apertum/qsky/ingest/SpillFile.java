@@ -0,0 +1,266 @@
+/*
+ *  Copyright (C) 2010 {Apertum}Projects. web: www.apertum.ru email: info@apertum.ru
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ru.apertum.qsky.ingest;
+
+import ru.apertum.qsky.api.CustomerEvent;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+/**
+ * Очередь событий на диске, куда полоса сливает то, что не влезло в память.
+ * Пишется в конец, читается с начала. Когда все прочитано, файл удаляется и очередь начинается заново.
+ * При остановке непрочитанное остается в файле, а при следующем старте поднимается через {@link #recover}.
+ * Не потокобезопасна, защищается замком полосы.
+ *
+ * @author Evgeniy Egorov
+ */
+final class SpillFile {
+
+    private final File file;
+    private DataOutputStream out;
+    private DataInputStream in;
+    private long written;
+    private long read;
+
+    SpillFile(File file) {
+        this.file = file;
+    }
+
+    void write(CustomerEvent event) throws IOException {
+        if (out == null) {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+        }
+        out.writeLong(event.getJournalId());
+        event.writeTo(out);
+        written++;
+    }
+
+    /**
+     * @throws IOException если запись не читается. Файл при этом не трогается, следующее чтение начнет с той же записи.
+     */
+    CustomerEvent read() throws IOException {
+        if (isEmpty()) {
+            return null;
+        }
+        // дописанное после открытия чтения тоже должно быть видно
+        if (out != null) {
+            out.flush();
+        }
+        final CustomerEvent event;
+        try {
+            if (in == null) {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+                for (long i = 0; i < read; i++) {
+                    CustomerEvent.readFrom(in, in.readLong());
+                }
+            }
+            event = CustomerEvent.readFrom(in, in.readLong());
+        } catch (IOException ex) {
+            closeIn();
+            throw ex;
+        }
+        read++;
+        if (isEmpty()) {
+            reset();
+        }
+        return event;
+    }
+
+    boolean isEmpty() {
+        return read >= written;
+    }
+
+    long size() {
+        return written - read;
+    }
+
+    /**
+     * Поднять файл, оставшийся с прошлого запуска. Недописанная при падении последняя запись отрезается.
+     *
+     * @return сколько событий в файле.
+     */
+    long recover() throws IOException {
+        reset0(false);
+        if (!file.exists()) {
+            return 0;
+        }
+        long good = 0;
+        try (CountingInput counter = new CountingInput(new FileInputStream(file));
+             DataInputStream data = new DataInputStream(counter)) {
+            while (true) {
+                try {
+                    CustomerEvent.readFrom(data, data.readLong());
+                } catch (EOFException ex) {
+                    break;
+                }
+                written++;
+                good = counter.count;
+            }
+        }
+        if (good < file.length()) {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(good);
+            }
+        }
+        if (written == 0) {
+            reset();
+        }
+        return written;
+    }
+
+    /**
+     * Закрыть файл, оставив в нем только непрочитанное. Пустой файл удаляется.
+     * После закрытия очередь пуста, файл поднимается заново только через {@link #recover}.
+     *
+     * @param ahead события, которые должны идти раньше непрочитанных, например недообработанные из памяти полосы.
+     */
+    void close(List<CustomerEvent> ahead) throws IOException {
+        if (isEmpty() && ahead.isEmpty()) {
+            reset();
+            return;
+        }
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+        if (read > 0 || !ahead.isEmpty()) {
+            final File rest = new File(file.getPath() + ".tmp");
+            try (DataOutputStream to = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(rest)))) {
+                for (CustomerEvent event : ahead) {
+                    to.writeLong(event.getJournalId());
+                    event.writeTo(to);
+                }
+                if (!isEmpty()) {
+                    try (DataInputStream from = in != null ? in : new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                        if (in == null) {
+                            for (long i = 0; i < read; i++) {
+                                CustomerEvent.readFrom(from, from.readLong());
+                            }
+                        }
+                        for (long i = read; i < written; i++) {
+                            final long journalId = from.readLong();
+                            to.writeLong(journalId);
+                            CustomerEvent.readFrom(from, journalId).writeTo(to);
+                        }
+                    }
+                }
+            }
+            in = null;
+            if (file.exists() && !file.delete() || !rest.renameTo(file)) {
+                throw new IOException("Spill file " + file.getAbsolutePath() + " was not compacted, the rest is in " + rest.getName());
+            }
+        }
+        reset0(false);
+    }
+
+    /**
+     * Отложить нечитаемый файл в сторону под именем *.broken, чтобы полоса могла работать дальше,
+     * а оставшееся в нем можно было разобрать руками.
+     *
+     * @return куда отложен.
+     */
+    File setAside() throws IOException {
+        final File broken = new File(file.getPath() + "." + System.currentTimeMillis() + ".broken");
+        reset0(false);
+        if (file.exists() && !file.renameTo(broken)) {
+            throw new IOException("Spill file " + file.getAbsolutePath() + " was not moved aside.");
+        }
+        return broken;
+    }
+
+    /**
+     * Закрыть и удалить файл, даже если в нем что-то осталось.
+     */
+    void reset() throws IOException {
+        reset0(true);
+    }
+
+    private void reset0(boolean delete) throws IOException {
+        try {
+            closeIn();
+            if (out != null) {
+                out.close();
+            }
+        } finally {
+            out = null;
+            written = 0;
+            read = 0;
+            if (delete && file.exists() && !file.delete()) {
+                throw new IOException("Spill file " + file.getAbsolutePath() + " was not deleted.");
+            }
+        }
+    }
+
+    private void closeIn() throws IOException {
+        try {
+            if (in != null) {
+                in.close();
+            }
+        } finally {
+            in = null;
+        }
+    }
+
+    /**
+     * Сколько байт прочитано, чтобы знать, где кончается последняя целая запись.
+     */
+    private static final class CountingInput extends FilterInputStream {
+
+        private long count;
+
+        private CountingInput(InputStream in) {
+            super(new BufferedInputStream(in));
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int res = super.read();
+            if (res >= 0) {
+                count++;
+            }
+            return res;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            final int res = super.read(b, off, len);
+            if (res > 0) {
+                count += res;
+            }
+            return res;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            final long res = super.skip(n);
+            count += res;
+            return res;
+        }
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ *  Copyright (C) 2010 {Apertum}Projects. web: www.apertum.ru email: info@apertum.ru
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ru.apertum.qsky.ingest;
+
+import ru.apertum.qsky.model.Step;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Дневные итоги шагов, таблица step_daily: на филиал, услугу, сотрудника и день количество обслуженных и удаленных,
+ * суммы и максимумы ожидания и работы. Берутся только завершенные шаги, день - по времени постановки в очередь,
+ * как и в отчете по шагам. Шаг с finish_state = 0 - удаленный по неявке, остальные обслуженные.
+ * <p>
+ * Итоги ведет прием событий в той же транзакции, что завершает шаги, см. {@link Changes}. Поэтому отчет за период -
+ * выборка из итогов, ее стоимость зависит от количества групп, а не визитов. Ночью последние дни сворачиваются
+ * из step заново для сверки: максимумы при исправлении шага приемом только растут.
+ * Работает на переданном соединении, транзакцией управляет вызывающий.
+ *
+ * @author Evgeniy Egorov
+ */
+public final class StepDaily {
+
+    /**
+     * Итоги шагов из step за период, по филиалу, услуге, сотруднику и дню. Пустые услуга и сотрудник - 0.
+     */
+    private static final String ROLLUP = "select branch_id, coalesce(service_id, 0), coalesce(employee_id, 0), cast(stand_time as date), "
+            + "sum(case when finish_state = 0 then 0 else 1 end), sum(case when finish_state = 0 then 1 else 0 end), "
+            + "sum(waiting), sum(working), max(waiting), max(working) "
+            + "from step where finish_time is not null and stand_time >= ? and stand_time < ? %s"
+            + "group by branch_id, coalesce(service_id, 0), coalesce(employee_id, 0), cast(stand_time as date)";
+    private static final String UPSERT = "insert into step_daily (branch_id, service_id, employee_id, stat_day, served, removed, "
+            + "wait_sum, work_sum, wait_max, work_max) values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?) on duplicate key update "
+            + "served = served + values(served), removed = removed + values(removed), wait_sum = wait_sum + values(wait_sum), "
+            + "work_sum = work_sum + values(work_sum), wait_max = greatest(wait_max, values(wait_max)), work_max = greatest(work_max, values(work_max))";
+    private static final String DAILY = "select service_id, employee_id, sum(served), sum(removed), sum(wait_sum), sum(work_sum), max(wait_max), max(work_max) "
+            + "from step_daily where branch_id = ? and stat_day >= ? and stat_day < ? group by service_id, employee_id";
+
+    private StepDaily() {
+    }
+
+    /**
+     * Свернуть дни периода заново: итоги периода удаляются и строятся по step.
+     *
+     * @param branchId только этот филиал, null - все.
+     * @param from     первый день, null - с самого начала.
+     * @param to       день после последнего.
+     * @return сколько строк итогов записано.
+     */
+    public static int rollup(Connection con, Long branchId, LocalDate from, LocalDate to) throws SQLException {
+        final LocalDate first = from == null ? LocalDate.of(1970, 1, 1) : from;
+        final String branch = branchId == null ? "" : "and branch_id = ? ";
+        try (PreparedStatement ps = con.prepareStatement("delete from step_daily where stat_day >= ? and stat_day < ? " + branch)) {
+            ps.setDate(1, Date.valueOf(first));
+            ps.setDate(2, Date.valueOf(to));
+            if (branchId != null) {
+                ps.setLong(3, branchId);
+            }
+            ps.executeUpdate();
+        }
+        try (PreparedStatement ps = con.prepareStatement("insert into step_daily (branch_id, service_id, employee_id, stat_day, served, removed, "
+                + "wait_sum, work_sum, wait_max, work_max) " + String.format(ROLLUP, branch))) {
+            ps.setTimestamp(1, Timestamp.valueOf(first.atStartOfDay()));
+            ps.setTimestamp(2, Timestamp.valueOf(to.atStartOfDay()));
+            if (branchId != null) {
+                ps.setLong(3, branchId);
+            }
+            return ps.executeUpdate();
+        }
+    }
+
+    /**
+     * Итоги филиала за период из step_daily.
+     *
+     * @param from   первый день.
+     * @param to     день после последнего.
+     * @param totals куда прибавить итоги по услуге и сотруднику.
+     */
+    public static void read(Connection con, long branchId, LocalDate from, LocalDate to, GroupTotals totals) throws SQLException {
+        try (PreparedStatement ps = con.prepareStatement(DAILY)) {
+            ps.setLong(1, branchId);
+            ps.setDate(2, Date.valueOf(from));
+            ps.setDate(3, Date.valueOf(to));
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    totals.add(rs.getLong(1), rs.getLong(2), rs.getInt(3), rs.getInt(4), rs.getLong(5), rs.getLong(6), rs.getLong(7), rs.getLong(8));
+                }
+            }
+        }
+    }
+
+    /**
+     * Изменения итогов от шагов, завершенных или исправленных в одной транзакции приема.
+     * Шаг отмечается до изменения, тогда его прежний вклад вычитается, а новый прибавляется при записи.
+     * Строки итогов пишутся в порядке ключей, чтобы параллельные транзакции не взаимоблокировались.
+     */
+    public static final class Changes {
+
+        /**
+         * Шаг -> его вклад на момент отметки, null если он еще не был завершен.
+         */
+        private final IdentityHashMap<Step, Row> tracked = new IdentityHashMap<>();
+
+        /**
+         * Отметить шаг перед изменением. Повторная отметка в той же транзакции ничего не меняет.
+         */
+        public void track(Step step) {
+            if (!tracked.containsKey(step)) {
+                tracked.put(step, Row.of(step));
+            }
+        }
+
+        /**
+         * Дописать изменения в step_daily и забыть отмеченные шаги.
+         *
+         * @return сколько строк итогов затронуто.
+         */
+        public int write(Connection con) throws SQLException {
+            final TreeMap<List<Long>, Row> deltas = new TreeMap<>(KEY_ORDER);
+            for (Map.Entry<Step, Row> entry : tracked.entrySet()) {
+                final Row before = entry.getValue();
+                final Row after = Row.of(entry.getKey());
+                if (before != null) {
+                    deltas.computeIfAbsent(before.key, k -> new Row(k)).add(before, -1);
+                }
+                if (after != null) {
+                    deltas.computeIfAbsent(after.key, k -> new Row(k)).add(after, 1);
+                }
+            }
+            tracked.clear();
+            if (deltas.isEmpty()) {
+                return 0;
+            }
+            try (PreparedStatement ps = con.prepareStatement(UPSERT)) {
+                for (Row row : deltas.values()) {
+                    ps.setLong(1, row.key.get(0));
+                    ps.setLong(2, row.key.get(1));
+                    ps.setLong(3, row.key.get(2));
+                    ps.setDate(4, new Date(row.key.get(3)));
+                    ps.setInt(5, row.served);
+                    ps.setInt(6, row.removed);
+                    ps.setLong(7, row.waitSum);
+                    ps.setLong(8, row.workSum);
+                    ps.setLong(9, row.waitMax);
+                    ps.setLong(10, row.workMax);
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+            }
+            return deltas.size();
+        }
+
+        public void clear() {
+            tracked.clear();
+        }
+
+        public boolean isEmpty() {
+            return tracked.isEmpty();
+        }
+    }
+
+    private static final Comparator<List<Long>> KEY_ORDER = (a, b) -> {
+        for (int i = 0; i < a.size(); i++) {
+            final int res = Long.compare(a.get(i), b.get(i));
+            if (res != 0) {
+                return res;
+            }
+        }
+        return 0;
+    };
+
+    /**
+     * Вклад шага в строку итогов. Ключ - филиал, услуга, сотрудник и день как мс полуночи по локальному времени.
+     */
+    private static final class Row {
+
+        private final List<Long> key;
+        private int served;
+        private int removed;
+        private long waitSum;
+        private long workSum;
+        private long waitMax;
+        private long workMax;
+
+        private Row(List<Long> key) {
+            this.key = key;
+        }
+
+        private static Row of(Step step) {
+            if (step.getFinishTime() == null || step.getStandTime() == null) {
+                return null;
+            }
+            final long day = Date.valueOf(new Timestamp(step.getStandTime().getTime()).toLocalDateTime().toLocalDate()).getTime();
+            final Row row = new Row(Arrays.asList(step.getBranchId(), step.getServiceId() == null ? 0L : step.getServiceId(),
+                    step.getEmployeeId() == null ? 0L : step.getEmployeeId(), day));
+            if (Integer.valueOf(0).equals(step.getFinishState())) {
+                row.removed = 1;
+            } else {
+                row.served = 1;
+            }
+            row.waitSum = row.waitMax = step.getWaiting() == null ? 0 : step.getWaiting();
+            row.workSum = row.workMax = step.getWorking() == null ? 0 : step.getWorking();
+            return row;
+        }
+
+        /**
+         * Прибавить или вычесть вклад. Максимум при вычитании не уменьшается, его поправит ночная сверка.
+         */
+        private void add(Row row, int sign) {
+            served += sign * row.served;
+            removed += sign * row.removed;
+            waitSum += sign * row.waitSum;
+            workSum += sign * row.workSum;
+            if (sign > 0) {
+                waitMax = Math.max(waitMax, row.waitMax);
+                workMax = Math.max(workMax, row.workMax);
+            }
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ *  Copyright (C) 2010 {Apertum}Projects. web: www.apertum.ru email: info@apertum.ru
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ru.apertum.qsky.ingest;
+
+import ru.apertum.qsky.api.CustomerEvent;
+import ru.apertum.qsky.model.Customer;
+import ru.apertum.qsky.model.Step;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Кеш незавершенных визитов: клиент филиала и его текущий шаг.
+ * Кладется при постановке в очередь, выкидывается при завершении работы или удалении по неявке.
+ * Пока визит в кеше, обработка события по нему не делает ни одного SELECT, сущности просто присоединяются к сессии пачки.
+ * <p>
+ * Все события одного клиента идут в одной полосе, поэтому визит меняет только один поток.
+ * Размер ограничен, при переполнении выкидывается давно не использованный визит - он просто загрузится из БД заново.
+ *
+ * @author Evgeniy Egorov
+ */
+public class VisitCache {
+
+    /**
+     * Визит клиента. Сущности отсоединены от сессии, в которой были загружены.
+     */
+    public static final class Visit {
+
+        private final Customer customer;
+        private Step step;
+
+        private Visit(Customer customer, Step step) {
+            this.customer = customer;
+            this.step = step;
+        }
+
+        public Customer getCustomer() {
+            return customer;
+        }
+
+        /**
+         * @return последний шаг визита, с которым сейчас работают.
+         */
+        public Step getStep() {
+            return step;
+        }
+
+        public void setStep(Step step) {
+            this.step = step;
+        }
+    }
+
+    private final Map<BranchKey, Visit> visits;
+
+    /**
+     * @param maxSize сколько визитов держать максимум.
+     */
+    public VisitCache(int maxSize) {
+        visits = new LinkedHashMap<BranchKey, Visit>(Math.min(maxSize, 1 << 16), 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<BranchKey, Visit> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    public synchronized Visit get(Long branchId, Long customerId) {
+        return visits.get(new BranchKey(branchId, customerId));
+    }
+
+    /**
+     * Положить визит в кеш.
+     *
+     * @param customer клиент.
+     * @param step     его текущий шаг.
+     * @return положенный визит.
+     */
+    public Visit put(Customer customer, Step step) {
+        final Visit visit = new Visit(customer, step);
+        synchronized (this) {
+            visits.put(new BranchKey(customer.getBranchId(), customer.getCustomerId()), visit);
+        }
+        return visit;
+    }
+
+    public synchronized void evict(Long branchId, Long customerId) {
+        visits.remove(new BranchKey(branchId, customerId));
+    }
+
+    /**
+     * Выкинуть визиты, которые затрагивала пачка. Вызывается при откате, т.к. сущности в памяти уже изменены,
+     * а в БД этих изменений нет.
+     *
+     * @param events события откаченной пачки.
+     */
+    public synchronized void evictAll(List<CustomerEvent> events) {
+        for (CustomerEvent event : events) {
+            if (event.getCustomerId() != null) {
+                visits.remove(new BranchKey(event.getBranchId(), event.getCustomerId()));
+            }
+            if (event.getBeforeCustId() != null) {
+                visits.remove(new BranchKey(event.getBranchId(), event.getBeforeCustId()));
+            }
+            if (event.getAfterCustId() != null) {
+                visits.remove(new BranchKey(event.getBranchId(), event.getAfterCustId()));
+            }
+        }
+    }
+
+    /**
+     * Выкинуть все визиты филиала, например при пересборке его клиентов.
+     */
+    public synchronized void evictBranch(Long branchId) {
+        visits.keySet().removeIf(key -> Objects.equals(key.getBranchId(), branchId));
+    }
+
+    public synchronized int size() {
+        return visits.size();
+    }
+}
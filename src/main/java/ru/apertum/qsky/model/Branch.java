@@ -16,6 +16,9 @@
  */
 package ru.apertum.qsky.model;
 
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
+
 import java.util.HashSet;
 import java.util.Set;
 import javax.persistence.Column;
@@ -30,6 +33,7 @@ import javax.persistence.Table;
  */
 @Entity
 @Table(name = "branch")
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
 public class Branch extends Element {
 
     @Column(name = "branch_id", nullable = false, unique = true)
@@ -101,6 +105,7 @@ public class Branch extends Element {
      */
     @OneToMany()
     @JoinColumn(name = "parent_id")
+    @Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
     private Set<Branch> children = new HashSet<>();
 
     /**
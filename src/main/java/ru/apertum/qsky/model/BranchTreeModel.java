@@ -31,9 +31,11 @@ public class BranchTreeModel {
             ses.beginTransaction();
             final List<Branch> list;
             if (user.getBranches().isEmpty()) {
-                list = ses.createCriteria(Branch.class).add(Restrictions.isNull("parent")).addOrder(Order.asc("id")).list();
+                list = ses.createCriteria(Branch.class).add(Restrictions.isNull("parent")).addOrder(Order.asc("id"))
+                        .setCacheable(true).setCacheRegion(IHibernateEJBLocal.REFERENCE_REGION).list();
             } else {
-                list = ses.createCriteria(Branch.class).add(Restrictions.isNull("parent")).add(Restrictions.in("id", user.getBranches())).addOrder(Order.asc("id")).list();
+                list = ses.createCriteria(Branch.class).add(Restrictions.isNull("parent")).add(Restrictions.in("id", user.getBranches())).addOrder(Order.asc("id"))
+                        .setCacheable(true).setCacheRegion(IHibernateEJBLocal.REFERENCE_REGION).list();
             }
 
             final BranchTreeNode[] brs = new BranchTreeNode[list.size()];
@@ -146,9 +146,10 @@ public class Customer extends Element {
     }
 
     //***************************************************************************************************************
+    // Порядок в очереди живет в памяти, в БД его пишет только снимок ServiceQueues, поэтому связи здесь только для чтения.
     @OneToOne(fetch = FetchType.LAZY)
     @JoinColumns({
-            @JoinColumn(name = "before_customer_id", referencedColumnName = "id")
+            @JoinColumn(name = "before_customer_id", referencedColumnName = "id", insertable = false, updatable = false)
     })
     private Customer before;
 
@@ -162,7 +163,7 @@ public class Customer extends Element {
 
     @OneToOne(fetch = FetchType.LAZY)
     @JoinColumns({
-            @JoinColumn(name = "after_customer_id", referencedColumnName = "id")
+            @JoinColumn(name = "after_customer_id", referencedColumnName = "id", insertable = false, updatable = false)
     })
     private Customer after;
 
@@ -175,7 +176,7 @@ public class Customer extends Element {
     }
 
     //***************************************************************************************************************
-    @OneToOne(fetch = FetchType.EAGER, cascade = CascadeType.ALL)
+    @OneToOne(fetch = FetchType.LAZY, cascade = CascadeType.ALL)
     @JoinColumns({
             @JoinColumn(name = "first_step_id", referencedColumnName = "id")
     })
@@ -189,6 +190,62 @@ public class Customer extends Element {
         this.firstStep = firstStep;
     }
 
+    /**
+     * Последний шаг цепочки, с которым сейчас работают. Чтобы не ходить по цепочке от первого шага.
+     */
+    @OneToOne(fetch = FetchType.LAZY)
+    @JoinColumns({
+            @JoinColumn(name = "current_step_id", referencedColumnName = "id")
+    })
+    private Step currentStep;
+
+    public Step getCurrentStep() {
+        return currentStep;
+    }
+
+    public void setCurrentStep(Step currentStep) {
+        this.currentStep = currentStep;
+    }
+
+    @Column(name = "steps_count", nullable = false)
+    private Integer stepsCount = 0;
+
+    public Integer getStepsCount() {
+        return stepsCount;
+    }
+
+    public void setStepsCount(Integer stepsCount) {
+        this.stepsCount = stepsCount;
+    }
+
+    /**
+     * Сумма ожиданий по всем шагам, из нее и количества шагов считается среднее waiting.
+     */
+    @Column(name = "waiting_sum", nullable = false)
+    private Long waitingSum = 0L;
+
+    public Long getWaitingSum() {
+        return waitingSum;
+    }
+
+    public void setWaitingSum(Long waitingSum) {
+        this.waitingSum = waitingSum;
+    }
+
+    /**
+     * Сумма работы по всем шагам, из нее и количества шагов считается среднее working.
+     */
+    @Column(name = "working_sum", nullable = false)
+    private Long workingSum = 0L;
+
+    public Long getWorkingSum() {
+        return workingSum;
+    }
+
+    public void setWorkingSum(Long workingSum) {
+        this.workingSum = workingSum;
+    }
+
     @Column(name = "present_state")
     private Integer state;
 
@@ -53,8 +53,8 @@ public class Dicts {
             final Session ses = getHib().openSession();
             try {
                 ses.beginTransaction();
-                servs = ses.createCriteria(Service.class).list();
-                empls = ses.createCriteria(Employee.class).list();
+                servs = ses.createCriteria(Service.class).setCacheable(true).setCacheRegion(IHibernateEJBLocal.REFERENCE_REGION).list();
+                empls = ses.createCriteria(Employee.class).setCacheable(true).setCacheRegion(IHibernateEJBLocal.REFERENCE_REGION).list();
                 time = now;
             } catch (Exception ex) {
                 System.err.println("Not loaded a list of dicts. " + ex);
@@ -16,6 +16,9 @@
  */
 package ru.apertum.qsky.model;
 
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
+
 import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.Table;
@@ -25,6 +28,7 @@ import javax.persistence.Table;
  */
 @Entity
 @Table(name = "service")
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
 public class Service extends Element {
 
     public Service() {
@@ -8,15 +8,23 @@ package ru.apertum.qsky.model;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Comparator;
+import java.time.LocalDate;
+import java.time.ZoneId;
 import java.util.Date;
-import java.util.GregorianCalendar;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import org.hibernate.Session;
-import org.hibernate.criterion.Restrictions;
 import org.zkoss.util.resource.Labels;
 import org.zkoss.zul.GroupComparator;
 import org.zkoss.zul.GroupsModelArray;
+import ru.apertum.qsky.common.ExecutorProviders;
+import ru.apertum.qsky.common.Uses;
+import ru.apertum.qsky.ejb.IHibernateEJBLocal;
+import ru.apertum.qsky.ingest.GroupTotals;
+import ru.apertum.qsky.ingest.StepDaily;
 
 /**
  * @author Evgeniy Egorov
@@ -64,51 +72,67 @@ public class StatisticViewModel {
         this.statisticModel = statisticModel;
     }
 
-    public List<Step> loadStats(long branchId, Session ses) {
-        ses.beginTransaction();
-        final List<Step> custs;
-        try {
-
-            final GregorianCalendar day = new GregorianCalendar();
-            day.setTime(finish);
-            day.set(GregorianCalendar.HOUR_OF_DAY, 23);
-            day.set(GregorianCalendar.MINUTE, 59);
+    /**
+     * Итоги филиала за период по услугам и сотрудникам из дневных итогов step_daily.
+     * Длинный период делится на куски по QSKY_STAT_CHUNK_DAYS дней, куски читаются параллельно каждый своей сессией
+     * и сливаются в одни итоги. Наименования разрешаются в конце, один раз на группу.
+     */
+    public List<Record> loadStats(long branchId, IHibernateEJBLocal hib) {
+        final LocalDate from = start.toInstant().atZone(ZoneId.systemDefault()).toLocalDate();
+        final LocalDate to = finish.toInstant().atZone(ZoneId.systemDefault()).toLocalDate().plusDays(1);
+        final int chunk = Math.max(1, Uses.getProperty("QSKY_STAT_CHUNK_DAYS", 92));
+        final GroupTotals totals;
+        if (!from.plusDays(chunk).isBefore(to)) {
+            totals = read(hib, branchId, from, to);
+        } else {
+            final ArrayList<LocalDate> bounds = new ArrayList<>();
+            for (LocalDate day = from; day.isBefore(to); day = day.plusDays(chunk)) {
+                bounds.add(day);
+            }
+            bounds.add(to);
+            final ExecutorService executor = ExecutorProviders.get().newExecutor("qsky-stat",
+                    Math.min(bounds.size() - 1, Math.max(1, Uses.getProperty("QSKY_STAT_PARALLELISM", 4))));
+            try {
+                final ArrayList<Future<GroupTotals>> parts = new ArrayList<>();
+                for (int i = 0; i < bounds.size() - 1; i++) {
+                    final LocalDate partFrom = bounds.get(i);
+                    final LocalDate partTo = bounds.get(i + 1).isBefore(to) ? bounds.get(i + 1) : to;
+                    parts.add(executor.submit(() -> read(hib, branchId, partFrom, partTo)));
+                }
+                totals = new GroupTotals();
+                for (Future<GroupTotals> part : parts) {
+                    totals.merge(part.get());
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Loading of statistics was interrupted.");
+            } catch (ExecutionException ex) {
+                throw new RuntimeException("Not loaded a list of steps. " + ex.getCause());
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+        final ArrayList<Record> recs = new ArrayList<>(totals.size());
+        final Dicts dicts = Dicts.getInstance();
+        totals.forEach((serviceId, employeeId, served, removed, waitSum, workSum, waitMax, workMax) ->
+                recs.add(new Record(branchId, serviceId, employeeId, served, removed, served == 0 ? 0 : (int) (workSum / served / 1000 / 60),
+                        dicts.getServiceName(branchId, serviceId), dicts.getEmployeeName(branchId, employeeId))));
+        return recs;
+    }
 
-            custs = ses.createCriteria(Step.class)
-                    .add(Restrictions.eq("branchId", branchId))
-                    .add(Restrictions.isNotNull("finishTime"))
-                    .add(Restrictions.between("standTime", start, day.getTime())).list();
+    private static GroupTotals read(IHibernateEJBLocal hib, long branchId, LocalDate from, LocalDate to) {
+        final GroupTotals totals = new GroupTotals();
+        final Session ses = hib.openSession();
+        try {
+            ses.beginTransaction();
+            ses.doWork(con -> StepDaily.read(con, branchId, from, to, totals));
         } catch (Exception ex) {
             throw new RuntimeException("Not loaded a list of steps. " + ex);
         } finally {
             ses.getTransaction().rollback();
+            ses.close();
         }
-        return custs;
-    }
-
-    public ArrayList<Record> prepareDataByUser(List<Step> steps) {
-        final ArrayList<Record> recs = new ArrayList<>();
-        for (Step step : steps) {
-            boolean f = true;
-            for (Record rec : recs) {
-                if (rec.branchId.equals(step.getBranchId()) && rec.serviceId.equals(step.getServiceId()) && rec.employeeId.equals(step.getEmployeeId())) {
-                    if (step.getFinishState() == 0) {
-                        rec.removed++;
-                    } else {
-                        rec.avgMin = rec.avgMin * rec.served + (int) (step.getWorking() / 1000 / 60);
-                        rec.served++;
-                        rec.avgMin = rec.avgMin / rec.served;
-                    }
-                    f = false;
-                    break;
-                }
-            }
-            if (f) {
-                recs.add(new Record(step.getBranchId(), step.getServiceId(), step.getEmployeeId(), step.getFinishState() == 0 ? 0 : 1, step.getFinishState() == 0 ? 1 : 0, step.getFinishState() == 0 ? 0 : ((int) (step.getWorking() / 1000 / 60))));
-            }
-        }
-        System.out.println("+++ " + recs);
-        return recs;
+        return totals;
     }
 
     public static class StaticticGroupingServsModel extends GroupsModelArray<Record, String, String, Object> {
@@ -224,16 +248,15 @@ public class StatisticViewModel {
         private final String serviceName;
         private final String employeeName;
 
-        public Record(long branchId, long serviceId, long employeeId, int served, int removed, int avgMin) {
+        public Record(long branchId, long serviceId, long employeeId, int served, int removed, int avgMin, String serviceName, String employeeName) {
             this.branchId = branchId;
             this.serviceId = serviceId;
             this.employeeId = employeeId;
             this.served = served;
             this.removed = removed;
             this.avgMin = avgMin;
-
-            serviceName = Dicts.getInstance().getServiceName(branchId, serviceId);
-            employeeName = Dicts.getInstance().getEmployeeName(branchId, employeeId);
+            this.serviceName = serviceName;
+            this.employeeName = employeeName;
         }
 
         public String getServiceName() {
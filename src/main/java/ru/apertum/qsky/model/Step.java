@@ -88,7 +88,7 @@ public class Step extends Element {
     }
 
     //***************************************************************************************************************
-    @OneToOne(fetch = FetchType.EAGER, cascade = CascadeType.ALL)
+    @OneToOne(fetch = FetchType.LAZY, cascade = CascadeType.ALL)
     @JoinColumns({
             @JoinColumn(name = "before_step_id", referencedColumnName = "id")
     })
@@ -102,7 +102,7 @@ public class Step extends Element {
         this.before = before;
     }
 
-    @OneToOne(fetch = FetchType.EAGER, cascade = CascadeType.ALL)
+    @OneToOne(fetch = FetchType.LAZY, cascade = CascadeType.ALL)
     @JoinColumns({
             @JoinColumn(name = "after_step_id", referencedColumnName = "id")
     })
@@ -116,6 +116,11 @@ public class Step extends Element {
         this.after = after;
     }
 
+    /**
+     * Проход по всей цепочке шагов. Для текущего шага есть {@link Customer#getCurrentStep()}.
+     *
+     * @return последний шаг цепочки.
+     */
     public Step getLastStep() {
         Step last = this;
         while (last.getAfter() != null) {
@@ -6,6 +6,10 @@ package ru.apertum.qsky.model.pager;
 
 import com.google.gson.annotations.Expose;
 import com.google.gson.annotations.SerializedName;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
+import org.hibernate.annotations.QueryHints;
+import ru.apertum.qsky.ejb.IHibernateEJBLocal;
 
 import java.io.Serializable;
 import java.util.Date;
@@ -21,6 +25,7 @@ import javax.persistence.Id;
 import javax.persistence.NamedQueries;
 import javax.persistence.NamedQuery;
 import javax.persistence.OneToMany;
+import javax.persistence.QueryHint;
 import javax.persistence.Table;
 import javax.persistence.Temporal;
 import javax.persistence.TemporalType;
@@ -32,14 +37,19 @@ import javax.validation.constraints.Size;
  */
 @Entity
 @Table(name = "pager_data")
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
 @NamedQueries({
         @NamedQuery(name = "PagerData.findAll", query = "SELECT p FROM PagerData p"),
-        @NamedQuery(name = "PagerData.findById", query = "SELECT p FROM PagerData p WHERE p.id = :id"),
+        @NamedQuery(name = "PagerData.findById", query = "SELECT p FROM PagerData p WHERE p.id = :id", hints = {
+                @QueryHint(name = QueryHints.CACHEABLE, value = "true"),
+                @QueryHint(name = QueryHints.CACHE_REGION, value = IHibernateEJBLocal.REFERENCE_REGION)}),
         @NamedQuery(name = "PagerData.findByDataType", query = "SELECT p FROM PagerData p WHERE p.dataType = :dataType"),
         @NamedQuery(name = "PagerData.findByTextData", query = "SELECT p FROM PagerData p WHERE p.textData = :textData"),
         @NamedQuery(name = "PagerData.findByQuizCaption", query = "SELECT p FROM PagerData p WHERE p.quizCaption = :quizCaption"),
         @NamedQuery(name = "PagerData.findByStartDate", query = "SELECT p FROM PagerData p WHERE p.startDate = :startDate"),
-        @NamedQuery(name = "PagerData.findByActive", query = "SELECT p FROM PagerData p WHERE p.active = :active")})
+        @NamedQuery(name = "PagerData.findByActive", query = "SELECT p FROM PagerData p WHERE p.active = :active", hints = {
+                @QueryHint(name = QueryHints.CACHEABLE, value = "true"),
+                @QueryHint(name = QueryHints.CACHE_REGION, value = IHibernateEJBLocal.REFERENCE_REGION)})})
 public class PagerData implements Serializable {
     private static final long serialVersionUID = 1L;
     @Id
@@ -79,6 +89,7 @@ public class PagerData implements Serializable {
     @OneToMany(cascade = CascadeType.ALL, mappedBy = "pagerDataId", fetch = FetchType.LAZY)
     private List<PagerResults> pagerResultsList;
     @OneToMany(cascade = CascadeType.ALL, mappedBy = "pagerDataId", fetch = FetchType.EAGER)
+    @Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
     @Expose
     @SerializedName("quis_items")
     private List<PagerQuizItems> pagerQuizItemsList;
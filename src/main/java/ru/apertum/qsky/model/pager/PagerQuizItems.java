@@ -6,6 +6,8 @@ package ru.apertum.qsky.model.pager;
 
 import com.google.gson.annotations.Expose;
 import com.google.gson.annotations.SerializedName;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
 
 import java.io.Serializable;
 import java.util.List;
@@ -30,6 +32,7 @@ import javax.validation.constraints.Size;
  */
 @Entity
 @Table(name = "pager_quiz_items")
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
 @NamedQueries({
         @NamedQuery(name = "PagerQuizItems.findAll", query = "SELECT p FROM PagerQuizItems p"),
         @NamedQuery(name = "PagerQuizItems.findById", query = "SELECT p FROM PagerQuizItems p WHERE p.id = :id"),
@@ -0,0 +1,150 @@
+/*
+ *  Copyright (C) 2010 {Apertum}Projects. web: www.apertum.ru email: info@apertum.ru
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ru.apertum.qsky.servlets;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import ru.apertum.qsky.api.CustomerEvent;
+import ru.apertum.qsky.api.ICustomerEvents;
+import ru.apertum.qsky.common.Uses;
+import ru.apertum.qsky.ws.CustomerEventItem;
+
+import javax.ejb.EJB;
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+
+/**
+ * Прием событий потоком NDJSON: одна JSON-запись на строку, поля как у {@link CustomerEventItem}, например
+ * <pre>{"type":"STATUS","branchId":1,"serviceId":2,"employeeId":3,"customerId":4,"status":1,"number":5,"prefix":"A"}</pre>
+ * Тело читается потоково без построения дерева, каждое событие уходит в обработку сразу как прочитано,
+ * поэтому плагин может держать одну долгую chunked-загрузку. В ответ количество принятых событий с начала тела,
+ * повторы и неизмененные наименования тоже считаются принятыми. Если сервер перегружен, чтение прекращается
+ * на первом отвергнутом событии и ответ приходит с 503 и Retry-After: все после принятых надо прислать позже еще раз.
+ *
+ * @author Evgeniy Egorov
+ */
+@WebServlet("/events")
+public class IngestEvents extends HttpServlet {
+
+    private final Logger log = LogManager.getLogger(IngestEvents.class);
+
+    /**
+     * Имя ссылки в java:comp/env общее для всего модуля, по нему прием событий ищут дашборды.
+     */
+    @EJB(name = "qskyapi/CustomerEventsEJB", beanInterface = ICustomerEvents.class, mappedName = "ejb/qskyapi/customer_events")
+    private ICustomerEvents ejbRef;
+
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        int accepted = 0;
+        try (JsonReader reader = new JsonReader(new InputStreamReader(request.getInputStream(), StandardCharsets.UTF_8))) {
+            // несколько JSON-значений подряд через перевод строки допускаются только в нестрогом режиме
+            reader.setLenient(true);
+            while (reader.peek() != JsonToken.END_DOCUMENT) {
+                final CustomerEvent event = readEvent(reader).toEvent();
+                if (ejbRef.sendEvents(Collections.singletonList(event)) == 0) {
+                    log.warn("NDJSON upload from {} is refused after {} events, ingest is overloaded.", request.getRemoteAddr(), accepted);
+                    response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                    response.setHeader("Retry-After", String.valueOf(Uses.getProperty("QSKY_INGEST_RETRY_AFTER", 5)));
+                    response.setContentType("text/plain");
+                    response.getWriter().print(accepted);
+                    return;
+                }
+                accepted++;
+            }
+        } catch (IOException | IllegalStateException | IllegalArgumentException ex) {
+            log.warn("NDJSON upload from {} broken after {} events. {}", request.getRemoteAddr(), accepted, ex.toString());
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            response.getWriter().print(accepted);
+            return;
+        }
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType("text/plain");
+        response.getWriter().print(accepted);
+    }
+
+    private static CustomerEventItem readEvent(JsonReader reader) throws IOException {
+        final CustomerEventItem item = new CustomerEventItem();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            final String field = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+                continue;
+            }
+            switch (field) {
+                case "type":
+                    item.setType(CustomerEvent.Type.valueOf(reader.nextString().toUpperCase()));
+                    break;
+                case "branchId":
+                    item.setBranchId(reader.nextLong());
+                    break;
+                case "serviceId":
+                    item.setServiceId(reader.nextLong());
+                    break;
+                case "employeeId":
+                    item.setEmployeeId(reader.nextLong());
+                    break;
+                case "customerId":
+                    item.setCustomerId(reader.nextLong());
+                    break;
+                case "status":
+                    item.setStatus(reader.nextInt());
+                    break;
+                case "number":
+                    item.setNumber(reader.nextInt());
+                    break;
+                case "prefix":
+                    item.setPrefix(reader.nextString());
+                    break;
+                case "beforeCustId":
+                    item.setBeforeCustId(reader.nextLong());
+                    break;
+                case "afterCustId":
+                    item.setAfterCustId(reader.nextLong());
+                    break;
+                case "name":
+                    item.setName(reader.nextString());
+                    break;
+                case "seq":
+                    item.setSeq(reader.nextLong());
+                    break;
+                case "eventTime":
+                    item.setEventTime(reader.nextLong());
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return item;
+    }
+
+    @Override
+    public String getServletInfo() {
+        return "Streaming NDJSON customer events";
+    }
+}
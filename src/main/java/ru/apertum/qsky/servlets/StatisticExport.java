@@ -0,0 +1,206 @@
+/*
+ *  Copyright (C) 2010 {Apertum}Projects. web: www.apertum.ru email: info@apertum.ru
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ru.apertum.qsky.servlets;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.hibernate.Session;
+import org.zkoss.util.Locales;
+import org.zkoss.util.resource.Labels;
+import org.zkoss.web.Attributes;
+import ru.apertum.qsky.common.Uses;
+import ru.apertum.qsky.ejb.IHibernateEJBLocal;
+import ru.apertum.qsky.model.Dicts;
+import ru.apertum.qsky.web.User;
+
+import javax.ejb.EJB;
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Timestamp;
+import java.text.DateFormat;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Выгрузка шагов филиала за период в CSV, колонки как в captions_csv. Строки читаются однонаправленным курсором
+ * и сразу пишутся в ответ, поэтому память не зависит от длины периода. Если клиент принимает gzip, ответ сжимается.
+ * <p>
+ * Параметры: branch - номер филиала, from и to - первый и последний день в виде 2019-11-30.
+ * Выгружать можно только из сессии вошедшего пользователя и только его филиалы.
+ *
+ * @author Evgeniy Egorov
+ */
+@WebServlet("/statistic.csv")
+public class StatisticExport extends HttpServlet {
+
+    private final Logger log = LogManager.getLogger(StatisticExport.class);
+
+    /**
+     * Шаги визитов, пришедших за период. Шаги ищутся от прихода клиента и не дальше суток после конца периода,
+     * чтобы step читалась только по нужным секциям. Номера клиентов в филиале повторяются, поэтому шаг относится
+     * к визиту, только если он раньше следующего визита с тем же номером.
+     */
+    private static final String STEPS = "select c.service_prefix, c.number, s.service_id, s.employee_id, s.stand_time, s.start_time, s.finish_time, "
+            + "s.waiting, s.working, s.start_state, s.finish_state "
+            + "from customer c join step s on s.branch_id = c.branch_id and s.customer_id = c.customer_id and s.stand_time >= c.visit_time "
+            + "where c.branch_id = ? and c.visit_time >= ? and c.visit_time < ? and s.stand_time < ? "
+            + "and not exists (select 1 from customer n where n.branch_id = c.branch_id and n.customer_id = c.customer_id "
+            + "and n.visit_time > c.visit_time and n.visit_time <= s.stand_time)";
+
+    @EJB(name = "qskyapi/HibernateEJB", mappedName = "ejb/qskyapi/hibernate_session_factory")
+    private IHibernateEJBLocal hib;
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        final HttpSession session = request.getSession(false);
+        final User user = session == null ? null : (User) session.getAttribute("USER");
+        final long branchId;
+        final LocalDate from;
+        final LocalDate to;
+        try {
+            branchId = Long.parseLong(request.getParameter("branch"));
+            from = LocalDate.parse(request.getParameter("from"));
+            to = LocalDate.parse(request.getParameter("to")).plusDays(1);
+        } catch (NumberFormatException | NullPointerException | DateTimeParseException ex) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Parameters branch, from and to are expected.");
+            return;
+        }
+        if (user == null || !user.permition(branchId)) {
+            response.sendError(HttpServletResponse.SC_FORBIDDEN);
+            return;
+        }
+        final Object preferred = session.getAttribute(Attributes.PREFERRED_LOCALE);
+        final Locale locale = preferred instanceof Locale ? (Locale) preferred : request.getLocale();
+        final Locale old = Locales.setThreadLocal(locale);
+        try {
+            export(request, response, branchId, from, to, locale);
+        } finally {
+            Locales.setThreadLocal(old);
+        }
+    }
+
+    private void export(HttpServletRequest request, HttpServletResponse response, long branchId, LocalDate from, LocalDate to, Locale locale)
+            throws IOException {
+        final boolean gzip = !"false".equalsIgnoreCase(System.getProperty("QSKY_EXPORT_GZIP"))
+                && request.getHeader("Accept-Encoding") != null && request.getHeader("Accept-Encoding").contains("gzip");
+        response.setContentType("text/csv;charset=UTF-8");
+        response.setHeader("Content-Disposition", "attachment; filename=\"qstat_" + from + "-" + to.minusDays(1) + ".csv\"");
+        if (gzip) {
+            response.setHeader("Content-Encoding", "gzip");
+        }
+        final OutputStream out = gzip ? new GZIPOutputStream(response.getOutputStream(), 64 * 1024) : response.getOutputStream();
+        final DateFormat format = DateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.SHORT, locale);
+        final HashMap<Long, String> services = new HashMap<>();
+        final HashMap<Long, String> employees = new HashMap<>();
+        final long start = System.currentTimeMillis();
+        final int[] rows = new int[1];
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"), 64 * 1024);
+             Session ses = hib.openSession()) {
+            ses.beginTransaction();
+            final String branchName = (String) ses.createQuery("select b.name from Branch b where b.branchId = :branchId")
+                    .setParameter("branchId", branchId).uniqueResult();
+            writer.write(Labels.getLabel("captions_csv"));
+            writer.write('\n');
+            ses.doWork(con -> {
+                try (PreparedStatement ps = con.prepareStatement(STEPS, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+                    // MySQL отдает строки потоком только при таком размере выборки
+                    ps.setFetchSize(Uses.getProperty("QSKY_EXPORT_FETCH_SIZE", Integer.MIN_VALUE));
+                    ps.setLong(1, branchId);
+                    ps.setTimestamp(2, Timestamp.valueOf(from.atStartOfDay()));
+                    ps.setTimestamp(3, Timestamp.valueOf(to.atStartOfDay()));
+                    ps.setTimestamp(4, Timestamp.valueOf(to.plusDays(1).atStartOfDay()));
+                    try (ResultSet rs = ps.executeQuery()) {
+                        while (rs.next()) {
+                            final long serviceId = rs.getLong(3);
+                            final long employeeId = rs.getLong(4);
+                            final int finishState = rs.getInt(11);
+                            final String finishText = rs.wasNull() ? "" : Integer.toString(finishState);
+                            // удаленный по неявке и незавершенный шаг идут без времени начала, конца, ожидания и работы
+                            final boolean finished = !finishText.isEmpty() && finishState != 0;
+                            writer.write(Integer.toString(++rows[0]));
+                            writer.write(';');
+                            writer.write(branchName == null ? "" : branchName);
+                            writer.write(';');
+                            writer.write(services.computeIfAbsent(serviceId, id -> Dicts.getInstance().getServiceName(branchId, id)));
+                            writer.write(';');
+                            writer.write(employees.computeIfAbsent(employeeId, id -> Dicts.getInstance().getEmployeeName(branchId, id)));
+                            writer.write(';');
+                            writer.write(rs.getString(1) == null ? "" : rs.getString(1));
+                            writer.write(rs.getString(2) == null ? "" : rs.getString(2));
+                            writer.write(';');
+                            writer.write(format.format(rs.getTimestamp(5)));
+                            writer.write(';');
+                            if (finished) {
+                                writer.write(rs.getTimestamp(6) == null ? "" : format.format(rs.getTimestamp(6)));
+                                writer.write(';');
+                                writer.write(format.format(rs.getTimestamp(7)));
+                                writer.write(';');
+                                writer.write(Long.toString(rs.getLong(8) / 1000 / 60));
+                                writer.write(';');
+                                writer.write(Long.toString(rs.getLong(9) / 1000 / 60));
+                                writer.write(';');
+                            } else {
+                                writer.write(";;;;");
+                            }
+                            writer.write(rs.getString(10) == null ? "" : rs.getString(10));
+                            writer.write(';');
+                            writer.write(finishText);
+                            writer.write(";\n");
+                        }
+                    }
+                } catch (IOException ex) {
+                    throw new ExportAborted(ex);
+                }
+            });
+            ses.getTransaction().rollback();
+        } catch (ExportAborted ex) {
+            // клиент закрыл соединение, дописывать некуда
+            log.warn("Statistic export of branch {} was aborted after {} rows. {}", branchId, rows[0], ex.getCause().toString());
+            return;
+        }
+        log.info("Statistic export of branch {} from {} to {}: {} rows in {} ms.", branchId, from, to, rows[0], System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Ошибка записи в ответ изнутри работы с соединением, где IOException не пропускается.
+     */
+    private static final class ExportAborted extends RuntimeException {
+
+        private ExportAborted(IOException cause) {
+            super(cause);
+        }
+    }
+
+    @Override
+    public String getServletInfo() {
+        return "Streaming CSV export of branch statistics";
+    }
+}
@@ -7,22 +7,17 @@ package ru.apertum.qsky.web;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
+import java.time.ZoneId;
 import java.util.ArrayList;
 import java.util.Date;
-import java.util.GregorianCalendar;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
-import java.util.Optional;
+import java.util.Map;
 import java.util.Properties;
-import java.util.function.Predicate;
-import java.util.stream.Stream;
 import javax.naming.NamingException;
 
 import org.hibernate.Session;
-import org.hibernate.criterion.Restrictions;
+import org.zkoss.bind.BindUtils;
 import org.zkoss.bind.annotation.AfterCompose;
 import org.zkoss.bind.annotation.Command;
 import org.zkoss.bind.annotation.ContextParam;
@@ -39,7 +34,6 @@ import org.zkoss.zk.ui.event.Events;
 import org.zkoss.zk.ui.select.Selectors;
 import org.zkoss.zk.ui.select.annotation.Listen;
 import org.zkoss.zk.ui.select.annotation.Wire;
-import org.zkoss.zul.Filedownload;
 import org.zkoss.zul.Footer;
 import org.zkoss.zul.Grid;
 import org.zkoss.zul.GroupsModelArray;
@@ -59,16 +53,16 @@ import org.zkoss.zul.TreeitemRenderer;
 import org.zkoss.zul.Treerow;
 import org.zkoss.zul.Window;
 import org.zkoss.zul.event.TreeDataEvent;
+import ru.apertum.qsky.api.ICustomerEvents;
+import ru.apertum.qsky.api.SituationSnapshot;
 import ru.apertum.qsky.common.Multilingual;
 import ru.apertum.qsky.controller.branch_tree.AdvancedTreeModel;
 import ru.apertum.qsky.controller.branch_tree.BranchTreeNode;
 import ru.apertum.qsky.ejb.IHibernateEJBLocal;
 import ru.apertum.qsky.model.Branch;
 import ru.apertum.qsky.model.BranchTreeModel;
-import ru.apertum.qsky.model.Customer;
 import ru.apertum.qsky.model.Dicts;
 import ru.apertum.qsky.model.StatisticViewModel;
-import ru.apertum.qsky.model.Step;
 
 /**
  * @author Evgeniy Egorov
@@ -179,6 +173,35 @@ public class Dashboard {
         return hib;
     }
 
+    private ICustomerEvents events;
+
+    /**
+     * Прием событий, он же держит живую ситуацию в филиалах.
+     * Ссылка qskyapi/CustomerEventsEJB объявлена на сервлете {@link ru.apertum.qsky.servlets.IngestEvents}.
+     */
+    public ICustomerEvents getEvents() {
+        try {
+            if (events == null) {
+                events = (ICustomerEvents) ((new javax.naming.InitialContext()).lookup("java:comp/env/" + "qskyapi/CustomerEventsEJB"));
+            }
+        } catch (NamingException ex) {
+            throw new RuntimeException("No EJB of customer events! " + ex);
+        }
+        return events;
+    }
+
+    /**
+     * Дочерние филиалы кешируются коллекцией родителя. Родителя при переносе, добавлении и удалении ветки
+     * не сохраняем, поэтому его закешированную коллекцию надо выкинуть, иначе дерево покажет старых детей.
+     *
+     * @param parent родитель, у которого поменялись дети, может быть null.
+     */
+    private void evictChildren(Branch parent) {
+        if (parent != null && parent.getId() != null) {
+            getHib().getSessionFactory().getCache().evictCollectionData(Branch.class.getName() + ".children", parent.getId());
+        }
+    }
+
     /**
      * The structure of tree
      *
@@ -247,6 +270,7 @@ public class Dashboard {
                         contactTreeModel.remove(draggedValue);
                         contactTreeModel.add((BranchTreeNode) treeItem.getValue(), new BranchTreeNode[]{draggedValue});
 
+                        final Branch oldParent = draggedValue.getData().getParent();
                         final boolean remove = draggedValue.getData().getParent() == null ? true : draggedValue.getData().getParent().getChildren().remove(draggedValue.getData());
                         if (!remove) {
                             //System.out.println("--------------- "+draggedValue.getData().getParent() + " -- " + draggedValue.getData() + " - " + draggedValue.getData().getParent()..getChildren().);
@@ -261,6 +285,7 @@ public class Dashboard {
                             ses.saveOrUpdate(((BranchTreeNode) treeItem.getValue()).getData());
                             ses.saveOrUpdate(draggedValue.getData());
                             ses.getTransaction().commit();
+                            evictChildren(oldParent);
                         } catch (Exception ex) {
                             ses.getTransaction().rollback();
                             throw new RuntimeException("Not updated the tree ");
@@ -300,6 +325,7 @@ public class Dashboard {
             ses.beginTransaction();
             ses.save(br);
             ses.getTransaction().commit();
+            evictChildren(br.getParent());
         } catch (Exception ex) {
             ses.getTransaction().rollback();
             throw new RuntimeException("Not created the new branch " + ex);
@@ -331,6 +357,7 @@ public class Dashboard {
                         ses.beginTransaction();
                         ses.delete(br);
                         ses.getTransaction().commit();
+                        evictChildren(br.getParent());
                     } catch (Exception ex) {
                         ses.getTransaction().rollback();
                         throw new RuntimeException("Not deleted the branch " + ex);
@@ -390,6 +417,16 @@ public class Dashboard {
         selectedBranch = selectedNode.getData();
         branchName.setValue(selectedNode.getData().getName());
         statPapamPanel.setTitle(selectedNode.getData().getName());
+        final Long branchId = selectedBranch.getBranchId();
+        SituationPublisher.getInstance().subscribe(tree.getDesktop(), getEvents(), branchId, situation -> {
+            // снимок прежнего филиала мог быть уже отправлен до смены подписки
+            if (selectedBranch != null && branchId.equals(selectedBranch.getBranchId())) {
+                showSituation(situation);
+                BindUtils.postNotifyChange(null, null, this, "pieChart");
+                BindUtils.postNotifyChange(null, null, this, "dialChart");
+                BindUtils.postNotifyChange(null, null, this, "servicesCustList");
+            }
+        });
     }
 
     public static class Pair implements Comparable<Pair> {
@@ -445,58 +482,16 @@ public class Dashboard {
         if (selectedBranch == null) {
             return;
         }
-        final Session ses = getHib().openSession();
-        final List<Customer> custs;
-        try {
-            ses.beginTransaction();
-            final GregorianCalendar day = new GregorianCalendar();
-            day.set(GregorianCalendar.HOUR_OF_DAY, 0);
-            day.set(GregorianCalendar.MINUTE, 0);
-            final Date today_m = day.getTime();
-            day.set(GregorianCalendar.HOUR_OF_DAY, 23);
-            day.set(GregorianCalendar.MINUTE, 59);
-
-            custs = ses.createCriteria(Customer.class)
-                    .add(Restrictions.eq("branchId", selectedBranch.getBranchId()))
-                    .add(Restrictions.between("visitTime", today_m, day.getTime())).list();
-        } catch (Exception ex) {
-            throw new RuntimeException("Not loaded a list of customers. " + ex);
-        } finally {
-            ses.getTransaction().rollback();
-            ses.close();
-        }
-
-        final Predicate<? super Customer> filter = (cust) -> {
-            return cust.getState() != 0 && cust.getState() != 10;
-        };
-
-        final HashMap<Long, Integer> cnt = new HashMap<>();
-        Stream<Customer> scu = custs.stream().filter(filter);
-
-        final long clntsCnt = custs.stream().filter(filter).count();
-        scu.forEach((cust) -> {
-            Integer serv = cnt.get(cust.getServiceId());
-            if (serv != null) {
-                cnt.put(cust.getServiceId(), ++serv);
-            } else {
-                cnt.put(cust.getServiceId(), 1);
-            }
-        });
-        scu = custs.stream().filter(filter);
+        showSituation(getEvents().getSituation(selectedBranch.getBranchId()));
+    }
 
-        final Optional<Customer> mw = scu.max((cust1, cust2) -> {
-            return (cust1.getWaiting() == 0 ? (new Long(new Date().getTime() - cust1.getVisitTime().getTime())) : cust1.getWaiting()).compareTo(cust2.getWaiting() == 0 ? (new Date().getTime() - cust2.getVisitTime().getTime()) : cust2.getWaiting());
-        });
-        long maxWaiting = mw.isPresent() ? (mw.get().getWaiting() == 0 ? (new Date().getTime() - mw.get().getVisitTime().getTime()) : mw.get().getWaiting()) : 0;
-
-        int i = 0;
-        long avg = 0;
-        for (Customer cust : custs) {
-            if (cust.getState() != 0 && cust.getWaiting() != null) {
-                avg = avg + (cust.getWaiting() == 0 ? (new Date().getTime() - cust.getVisitTime().getTime()) : cust.getWaiting());
-                i++;
-            }
-        }
+    /**
+     * Отрисовать ситуацию в выбранном филиале. Вызывается по кнопке и по снимкам от {@link SituationPublisher}.
+     */
+    private void showSituation(SituationSnapshot situation) {
+        final Map<Long, Integer> cnt = situation.getWaitingByService();
+        final long clntsCnt = situation.getWaiting();
+        final long maxWaiting = situation.getMaxWaiting();
 
         final List<Pair> ls = new ArrayList<>();
         cnt.keySet().stream().forEach((l) -> {
@@ -517,7 +512,7 @@ public class Dashboard {
         });
         pieChart.setModel(model);
 
-        dialChart.averageModel.setValue(0, i == 0 ? 0 : avg / i / 1000 / 60);
+        dialChart.averageModel.setValue(0, situation.getAverageWaiting() / 1000 / 60);
         dialChart.customersModel.setValue(0, clntsCnt);
         dialChart.waitingModel.setValue(0, maxWaiting < 1000 * 60 ? (clntsCnt == 0 ? 0 : 1) : maxWaiting / 1000 / 60);
     }
@@ -558,18 +553,10 @@ public class Dashboard {
         if (selectedBranch == null) {
             return;
         }
-        final List<Step> stst;
-        final Session ses = getHib().openSession();
-        try {
-            stst = statVM.loadStats(selectedBranch.getBranchId(), ses);
-        } catch (Exception ex) {
-            throw new RuntimeException(ex);
-        } finally {
-            ses.close();
-        }
+        final List<StatisticViewModel.Record> recs = statVM.loadStats(selectedBranch.getBranchId(), getHib());
         GroupsModelArray mo = statVM.getRegim() == 0
-                ? new StatisticViewModel.StaticticGroupingEmplsModel(statVM.prepareDataByUser(stst), new StatisticViewModel.RecordEmployeeComparator())
-                : new StatisticViewModel.StaticticGroupingServsModel(statVM.prepareDataByUser(stst), new StatisticViewModel.RecordServiceComparator());
+                ? new StatisticViewModel.StaticticGroupingEmplsModel(recs, new StatisticViewModel.RecordEmployeeComparator())
+                : new StatisticViewModel.StaticticGroupingServsModel(recs, new StatisticViewModel.RecordServiceComparator());
         statVM.setStatisticModel(mo);
         statisticGrid.setModel(mo);
         footer_category.setLabel((statVM.getRegim() == 0 ? l("amount_users") + " : " : l("amount_services") + " : ") + mo.getGroupCount());
@@ -580,56 +567,10 @@ public class Dashboard {
         if (selectedBranch == null) {
             return;
         }
-        final Session ses = getHib().openSession();
-        final List<Customer> custs;
-        try {
-            ses.beginTransaction();
-            final GregorianCalendar day = new GregorianCalendar();
-            day.setTime(statVM.getStart());
-            day.set(GregorianCalendar.HOUR_OF_DAY, 0);
-            day.set(GregorianCalendar.MINUTE, 0);
-            final Date today_m = day.getTime();
-            day.setTime(statVM.getFinish());
-            day.set(GregorianCalendar.HOUR_OF_DAY, 23);
-            day.set(GregorianCalendar.MINUTE, 59);
-
-            custs = ses.createCriteria(Customer.class)
-                    .add(Restrictions.eq("branchId", selectedBranch.getBranchId()))
-                    .add(Restrictions.between("visitTime", today_m, day.getTime())).list();
-        } catch (Exception ex) {
-            throw new RuntimeException("Not loaded a list of customers. " + ex);
-        } finally {
-            ses.getTransaction().rollback();
-            ses.close();
-        }
-        final StringBuffer sb;
-        sb = new StringBuffer(l("captions_csv") + "\n");
-        int nom = 0;
-        for (Customer cust : custs) {
-            Step step = cust.getFirstStep();
-            while (step != null) {
-                sb.append(++nom).append(";");
-                sb.append(selectedBranch.getName()).append(";");
-                sb.append(Dicts.getInstance().getServiceName(selectedBranch.getBranchId(), step.getServiceId())).append(";");
-                sb.append(Dicts.getInstance().getEmployeeName(selectedBranch.getBranchId(), step.getEmployeeId())).append(";");
-                sb.append(cust.getPrefix()).append(cust.getNumber()).append(";");
-                sb.append(SimpleDateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.SHORT).format(step.getStandTime())).append(";");
-                if (step.getFinishState() == null || step.getFinishState() == 0) {
-                    sb.append(";;;;");
-                } else {
-                    sb.append(SimpleDateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.SHORT).format(step.getStartTime())).append(";");
-                    sb.append(SimpleDateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.SHORT).format(step.getFinishTime())).append(";");
-                    sb.append(step.getWaiting() / 1000 / 60).append(";");
-                    sb.append(step.getWorking() / 1000 / 60).append(";");
-                }
-                sb.append(step.getStartState()).append(";");
-                sb.append(step.getFinishState() == null ? "" : step.getFinishState()).append(";");
-                step = step.getAfter();
-                sb.append("\n");
-            }
-        }
-        Filedownload.save(sb.toString().getBytes(), "text/csv", "qstat_" + SimpleDateFormat.getDateInstance().format(statVM.getStart()) + "-" + SimpleDateFormat.getDateInstance().format(statVM.getFinish()) + ".csv");
-        sb.setLength(0);
+        // файл отдает потоком сервлет выгрузки, рабочий стол остается на месте, т.к. ответ - вложение
+        Executions.sendRedirect("/statistic.csv?branch=" + selectedBranch.getBranchId()
+                + "&from=" + statVM.getStart().toInstant().atZone(ZoneId.systemDefault()).toLocalDate()
+                + "&to=" + statVM.getFinish().toInstant().atZone(ZoneId.systemDefault()).toLocalDate());
     }
 
 }
@@ -0,0 +1,167 @@
+/*
+ *  Copyright (C) 2010 {Apertum}Projects. web: www.apertum.ru email: info@apertum.ru
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ru.apertum.qsky.web;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.zkoss.zk.ui.Desktop;
+import org.zkoss.zk.ui.DesktopUnavailableException;
+import org.zkoss.zk.ui.Executions;
+import org.zkoss.zk.ui.event.Event;
+import ru.apertum.qsky.api.ICustomerEvents;
+import ru.apertum.qsky.api.SituationSnapshot;
+import ru.apertum.qsky.common.Uses;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Рассылка живой ситуации в филиале открытым дашбордам через server push.
+ * Раз в QSKY_SITUATION_PUSH_PERIOD мс снимок каждого филиала, на который кто-то подписан, берется один раз
+ * и уходит всем его подписчикам, поэтому сотня открытых дашбордов стоит одного снимка на филиал за тик.
+ * Подписчику снимок отправляется, только если видимое на графиках изменилось.
+ * <p>
+ * Один рабочий стол подписан на один филиал, новая подписка заменяет прежнюю.
+ * Поток рассылки создается при первом обращении и останавливается {@link #shutdown()}.
+ *
+ * @author Evgeniy Egorov
+ */
+public class SituationPublisher {
+
+    private static final Logger log = LogManager.getLogger(SituationPublisher.class);
+
+    public static final String ON_SITUATION = "onSituation";
+
+    private static final class Subscription {
+
+        private final Long branchId;
+        private final Consumer<SituationSnapshot> consumer;
+        /**
+         * Что подписчик видит сейчас, null - еще ничего не отправлено.
+         */
+        private Object pushed;
+
+        private Subscription(Long branchId, Consumer<SituationSnapshot> consumer) {
+            this.branchId = branchId;
+            this.consumer = consumer;
+        }
+    }
+
+    private final ConcurrentHashMap<Desktop, Subscription> subscriptions = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService ticker;
+    private volatile ICustomerEvents source;
+
+    private SituationPublisher() {
+        final long period = Uses.getProperty("QSKY_SITUATION_PUSH_PERIOD", 3000L);
+        ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, "qsky-situation-push");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ticker.scheduleWithFixedDelay(this::tick, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    private static SituationPublisher instance;
+
+    public static synchronized SituationPublisher getInstance() {
+        if (instance == null) {
+            instance = new SituationPublisher();
+        }
+        return instance;
+    }
+
+    /**
+     * Остановить рассылку при остановке приложения, иначе поток рассылки держит загрузчик классов после передеплоя.
+     * Вызывается из {@link SituationPublisherListener}.
+     */
+    public static synchronized void shutdown() {
+        if (instance != null) {
+            instance.ticker.shutdownNow();
+            instance.subscriptions.clear();
+            instance.source = null;
+            instance = null;
+        }
+    }
+
+    /**
+     * Подписать рабочий стол на филиал. Вызывать в потоке обработки событий этого рабочего стола.
+     *
+     * @param desktop  рабочий стол дашборда.
+     * @param source   откуда брать ситуацию, EJB ищется в потоке запроса, в потоке рассылки JNDI недоступен.
+     * @param branchId филиал.
+     * @param consumer что делать со снимком, вызывается в потоке обработки событий рабочего стола.
+     */
+    public void subscribe(Desktop desktop, ICustomerEvents source, Long branchId, Consumer<SituationSnapshot> consumer) {
+        this.source = source;
+        if (!desktop.isServerPushEnabled()) {
+            desktop.enableServerPush(true);
+        }
+        subscriptions.put(desktop, new Subscription(branchId, consumer));
+    }
+
+    public void unsubscribe(Desktop desktop) {
+        subscriptions.remove(desktop);
+    }
+
+    private void tick() {
+        try {
+            if (subscriptions.isEmpty()) {
+                return;
+            }
+            final HashMap<Long, SituationSnapshot> snapshots = new HashMap<>();
+            final Iterator<Map.Entry<Desktop, Subscription>> it = subscriptions.entrySet().iterator();
+            while (it.hasNext()) {
+                final Map.Entry<Desktop, Subscription> entry = it.next();
+                final Desktop desktop = entry.getKey();
+                final Subscription subscription = entry.getValue();
+                if (!desktop.isAlive()) {
+                    it.remove();
+                    continue;
+                }
+                final SituationSnapshot snapshot = snapshots.computeIfAbsent(subscription.branchId, source::getSituation);
+                final Object view = view(snapshot);
+                if (view.equals(subscription.pushed)) {
+                    continue;
+                }
+                try {
+                    Executions.schedule(desktop, event -> subscription.consumer.accept((SituationSnapshot) event.getData()),
+                            new Event(ON_SITUATION, null, snapshot));
+                    subscription.pushed = view;
+                } catch (DesktopUnavailableException | IllegalStateException ex) {
+                    subscriptions.remove(desktop, subscription);
+                }
+            }
+        } catch (RuntimeException ex) {
+            log.warn("Branch situation was not pushed. {}", ex.toString());
+        }
+    }
+
+    /**
+     * То, что видно на графиках: очереди к услугам, количество клиентов и ожидания в минутах.
+     */
+    private static Object view(SituationSnapshot snapshot) {
+        return Arrays.asList(snapshot.getWaitingByService(), snapshot.getWaiting(), snapshot.getMaxWaiting() / 60000,
+                snapshot.getAverageWaiting() / 60000);
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ *  Copyright (C) 2010 {Apertum}Projects. web: www.apertum.ru email: info@apertum.ru
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ru.apertum.qsky.ws;
+
+import ru.apertum.qsky.api.CustomerEvent;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlType;
+
+/**
+ * Одно событие в пакетном вызове {@link CustomerEventsWS#sendEvents}.
+ * Поля как у параметров одиночных методов, какие заполнены - зависит от type.
+ *
+ * @author Evgeniy Egorov
+ */
+@XmlType(name = "customerEvent")
+@XmlAccessorType(XmlAccessType.FIELD)
+public class CustomerEventItem {
+
+    private CustomerEvent.Type type;
+    private Long branchId;
+    private Long serviceId;
+    private Long employeeId;
+    private Long customerId;
+    private Integer status;
+    private Integer number;
+    private String prefix;
+    private Long beforeCustId;
+    private Long afterCustId;
+    private String name;
+    private Long seq;
+    private Long eventTime;
+
+    public CustomerEvent toEvent() {
+        if (type == null) {
+            throw new IllegalArgumentException("Event type is not set.");
+        }
+        final CustomerEvent event;
+        switch (type) {
+            case STATUS:
+                event = CustomerEvent.status(branchId, serviceId, employeeId, customerId, status, number, prefix);
+                break;
+            case INSERT:
+                event = CustomerEvent.insert(branchId, serviceId, customerId, beforeCustId, afterCustId);
+                break;
+            case REMOVE:
+                event = CustomerEvent.remove(branchId, serviceId, customerId);
+                break;
+            case SERVICE_NAME:
+                event = CustomerEvent.serviceName(branchId, serviceId, name);
+                break;
+            case USER_NAME:
+                event = CustomerEvent.userName(branchId, employeeId, name);
+                break;
+            default:
+                throw new AssertionError();
+        }
+        return event.withSeq(seq).withEventTime(eventTime);
+    }
+
+    public CustomerEvent.Type getType() {
+        return type;
+    }
+
+    public void setType(CustomerEvent.Type type) {
+        this.type = type;
+    }
+
+    public Long getBranchId() {
+        return branchId;
+    }
+
+    public void setBranchId(Long branchId) {
+        this.branchId = branchId;
+    }
+
+    public Long getServiceId() {
+        return serviceId;
+    }
+
+    public void setServiceId(Long serviceId) {
+        this.serviceId = serviceId;
+    }
+
+    public Long getEmployeeId() {
+        return employeeId;
+    }
+
+    public void setEmployeeId(Long employeeId) {
+        this.employeeId = employeeId;
+    }
+
+    public Long getCustomerId() {
+        return customerId;
+    }
+
+    public void setCustomerId(Long customerId) {
+        this.customerId = customerId;
+    }
+
+    public Integer getStatus() {
+        return status;
+    }
+
+    public void setStatus(Integer status) {
+        this.status = status;
+    }
+
+    public Integer getNumber() {
+        return number;
+    }
+
+    public void setNumber(Integer number) {
+        this.number = number;
+    }
+
+    public String getPrefix() {
+        return prefix;
+    }
+
+    public void setPrefix(String prefix) {
+        this.prefix = prefix;
+    }
+
+    public Long getBeforeCustId() {
+        return beforeCustId;
+    }
+
+    public void setBeforeCustId(Long beforeCustId) {
+        this.beforeCustId = beforeCustId;
+    }
+
+    public Long getAfterCustId() {
+        return afterCustId;
+    }
+
+    public void setAfterCustId(Long afterCustId) {
+        this.afterCustId = afterCustId;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @return номер события в филиале для отсева повторов, необязательный.
+     */
+    public Long getSeq() {
+        return seq;
+    }
+
+    public void setSeq(Long seq) {
+        this.seq = seq;
+    }
+
+    /**
+     * @return когда событие произошло по часам филиала, мс, необязательное.
+     */
+    public Long getEventTime() {
+        return eventTime;
+    }
+
+    public void setEventTime(Long eventTime) {
+        this.eventTime = eventTime;
+    }
+}
@@ -5,13 +5,24 @@
  */
 package ru.apertum.qsky.ws;
 
+import javax.annotation.Resource;
 import javax.ejb.EJB;
 import javax.jws.Oneway;
 import javax.jws.WebMethod;
 import javax.jws.WebParam;
 import javax.jws.WebService;
+import javax.xml.ws.WebServiceContext;
+import javax.xml.ws.handler.MessageContext;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import ru.apertum.qsky.api.CustomerEvent;
 import ru.apertum.qsky.api.ICustomerEvents;
+import ru.apertum.qsky.common.Uses;
 
 /**
  * @author Evgeniy Egorov
@@ -21,42 +32,112 @@ import ru.apertum.qsky.api.ICustomerEvents;
 public class CustomerEventsWS {
 
     @EJB
-    private ICustomerEvents ejbRef;// Add business logic below. (Right-click in editor and choose
+    private ICustomerEvents ejbRef;
+    @Resource
+    private WebServiceContext context;// Add business logic below. (Right-click in editor and choose
     // "Insert Code > Add Web Service Operation")
 
     @WebMethod(operationName = "changeCustomerStatus")
     @Oneway
-    public void changeCustomerStatus(@WebParam(name = "branchId") Long branchId, @WebParam(name = "serviceId") Long serviceId, @WebParam(name = "employeeId") Long employeeId, @WebParam(name = "customerId") Long customerId, @WebParam(name = "status") Integer status, @WebParam(name = "number") Integer number, @WebParam(name = "prefix") String prefix) {
-        ejbRef.changeCustomerStatus(branchId, serviceId, employeeId, customerId, status, number, prefix);
+    public void changeCustomerStatus(@WebParam(name = "branchId") Long branchId, @WebParam(name = "serviceId") Long serviceId, @WebParam(name = "employeeId") Long employeeId, @WebParam(name = "customerId") Long customerId, @WebParam(name = "status") Integer status, @WebParam(name = "number") Integer number, @WebParam(name = "prefix") String prefix, @WebParam(name = "seq") Long seq, @WebParam(name = "eventTime") Long eventTime) {
+        if (seq == null && eventTime == null) {
+            ejbRef.changeCustomerStatus(branchId, serviceId, employeeId, customerId, status, number, prefix);
+        } else {
+            send(CustomerEvent.status(branchId, serviceId, employeeId, customerId, status, number, prefix).withSeq(seq).withEventTime(eventTime));
+        }
     }
 
     @WebMethod(operationName = "insertCustomer")
     @Oneway
-    public void insertCustomer(@WebParam(name = "branchId") Long branchId, @WebParam(name = "serviceId") Long serviceId, @WebParam(name = "customerId") Long customerId, @WebParam(name = "beforeCustId") Long beforeCustId, @WebParam(name = "afterCustId") Long afterCustId) {
-        ejbRef.insertCustomer(branchId, serviceId, customerId, beforeCustId, afterCustId);
+    public void insertCustomer(@WebParam(name = "branchId") Long branchId, @WebParam(name = "serviceId") Long serviceId, @WebParam(name = "customerId") Long customerId, @WebParam(name = "beforeCustId") Long beforeCustId, @WebParam(name = "afterCustId") Long afterCustId, @WebParam(name = "seq") Long seq, @WebParam(name = "eventTime") Long eventTime) {
+        if (seq == null && eventTime == null) {
+            ejbRef.insertCustomer(branchId, serviceId, customerId, beforeCustId, afterCustId);
+        } else {
+            send(CustomerEvent.insert(branchId, serviceId, customerId, beforeCustId, afterCustId).withSeq(seq).withEventTime(eventTime));
+        }
     }
 
     @WebMethod(operationName = "removeCustomer")
     @Oneway
-    public void removeCustomer(@WebParam(name = "branchId") Long branchId, @WebParam(name = "serviceId") Long serviceId, @WebParam(name = "customerId") Long customerId) {
-        ejbRef.removeCustomer(branchId, serviceId, customerId);
+    public void removeCustomer(@WebParam(name = "branchId") Long branchId, @WebParam(name = "serviceId") Long serviceId, @WebParam(name = "customerId") Long customerId, @WebParam(name = "seq") Long seq, @WebParam(name = "eventTime") Long eventTime) {
+        if (seq == null && eventTime == null) {
+            ejbRef.removeCustomer(branchId, serviceId, customerId);
+        } else {
+            send(CustomerEvent.remove(branchId, serviceId, customerId).withSeq(seq).withEventTime(eventTime));
+        }
+    }
+
+    /**
+     * Пачка событий одним конвертом. События одного клиента применяются в порядке следования в массиве.
+     * Если сервер перегружен, ответ приходит с HTTP 503 и Retry-After, а остаток пачки надо прислать позже.
+     *
+     * @param events события любых видов вперемешку.
+     * @return сколько событий с начала массива принято.
+     */
+    @WebMethod(operationName = "sendEvents")
+    public Integer sendEvents(@WebParam(name = "events") CustomerEventItem[] events) {
+        if (events == null || events.length == 0) {
+            return 0;
+        }
+        final List<CustomerEvent> list = new ArrayList<>(events.length);
+        for (CustomerEventItem item : events) {
+            list.add(item.toEvent());
+        }
+        final int accepted = ejbRef.sendEvents(list);
+        if (accepted < events.length) {
+            overloaded();
+        }
+        return accepted;
     }
 
+    /**
+     * Ответить 503 с Retry-After, чтобы плагин притормозил и прислал остаток позже.
+     */
+    private void overloaded() {
+        final MessageContext message = context.getMessageContext();
+        Map<String, List<String>> headers = (Map<String, List<String>>) message.get(MessageContext.HTTP_RESPONSE_HEADERS);
+        if (headers == null) {
+            headers = new HashMap<>();
+            message.put(MessageContext.HTTP_RESPONSE_HEADERS, headers);
+        }
+        headers.put("Retry-After", Collections.singletonList(String.valueOf(Uses.getProperty("QSKY_INGEST_RETRY_AFTER", 5))));
+        message.put(MessageContext.HTTP_RESPONSE_CODE, 503);
+    }
+
+    /**
+     * @param branchId необязательный, вместе со временем филиала.
+     * @param time     необязательное время по часам филиала, мс. По нему учится расхождение часов для eventTime.
+     */
     @WebMethod(operationName = "ping")
-    public Integer ping(@WebParam(name = "version") String version) {
-        return ejbRef.ping(version);
+    public Integer ping(@WebParam(name = "version") String version, @WebParam(name = "branchId") Long branchId, @WebParam(name = "time") Long time) {
+        return branchId == null || time == null ? ejbRef.ping(version) : ejbRef.ping(version, branchId, time);
     }
 
     @WebMethod(operationName = "sendServiceName")
     @Oneway
-    public void sendServiceName(@WebParam(name = "branchId") Long branchId, @WebParam(name = "serviceId") Long serviceId, @WebParam(name = "name") String name) {
-        ejbRef.sendServiceName(branchId, serviceId, name);
+    public void sendServiceName(@WebParam(name = "branchId") Long branchId, @WebParam(name = "serviceId") Long serviceId, @WebParam(name = "name") String name, @WebParam(name = "seq") Long seq, @WebParam(name = "eventTime") Long eventTime) {
+        if (seq == null && eventTime == null) {
+            ejbRef.sendServiceName(branchId, serviceId, name);
+        } else {
+            send(CustomerEvent.serviceName(branchId, serviceId, name).withSeq(seq).withEventTime(eventTime));
+        }
     }
 
     @WebMethod(operationName = "sendUserName")
     @Oneway
-    public void sendUserName(@WebParam(name = "branchId") Long branchId, @WebParam(name = "employeeId") Long employeeId, @WebParam(name = "name") String name) {
-        ejbRef.sendUserName(branchId, employeeId, name);
+    public void sendUserName(@WebParam(name = "branchId") Long branchId, @WebParam(name = "employeeId") Long employeeId, @WebParam(name = "name") String name, @WebParam(name = "seq") Long seq, @WebParam(name = "eventTime") Long eventTime) {
+        if (seq == null && eventTime == null) {
+            ejbRef.sendUserName(branchId, employeeId, name);
+        } else {
+            send(CustomerEvent.userName(branchId, employeeId, name).withSeq(seq).withEventTime(eventTime));
+        }
+    }
+
+    /**
+     * Событие с номером или временем от филиала идет через пакетный вход, т.к. одиночные методы EJB их не знают.
+     */
+    private void send(CustomerEvent event) {
+        ejbRef.sendEvents(Collections.singletonList(event));
     }
 
 }
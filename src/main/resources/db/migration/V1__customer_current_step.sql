@@ -0,0 +1,15 @@
+-- Текущий шаг, количество шагов и суммы времени прямо у клиента
+ALTER TABLE `customer`
+  ADD `current_step_id` BIGINT NULL COMMENT 'Текущий (последний) шаг в обработке' AFTER `first_step_id`,
+  ADD `steps_count` INT NOT NULL DEFAULT 0 COMMENT 'Количество шагов в обработке' AFTER `current_step_id`,
+  ADD `waiting_sum` BIGINT NOT NULL DEFAULT 0 COMMENT 'Суммарное время ожидания на всех шагах в милисекундах' AFTER `steps_count`,
+  ADD `working_sum` BIGINT NOT NULL DEFAULT 0 COMMENT 'Суммарное время работы за все шаги в милисекундах' AFTER `waiting_sum`;
+
+ALTER TABLE `customer`
+  ADD CONSTRAINT `fk_customer_current_step_id`
+    FOREIGN KEY (`current_step_id`)
+    REFERENCES `step` (`id`)
+    ON DELETE SET NULL
+    ON UPDATE CASCADE;
+
+CREATE INDEX `idx_customer_current_step_id` ON `customer` (`current_step_id` ASC);
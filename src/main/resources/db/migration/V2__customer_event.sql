@@ -0,0 +1,23 @@
+-- Журнал событий от филиалов, customer и step - его проекции
+CREATE TABLE IF NOT EXISTS `customer_event` (
+  `id` BIGINT NOT NULL AUTO_INCREMENT,
+  `branch_id` BIGINT NOT NULL,
+  `event_type` INT NOT NULL COMMENT 'Вид события: 0-статус, 1-вставка в очередь, 2-удаление из очереди, 3-наименование услуги, 4-имя сотрудника',
+  `service_id` BIGINT NULL,
+  `employee_id` BIGINT NULL,
+  `customer_id` BIGINT NULL,
+  `status` INT NULL COMMENT 'Новое состояние клиента',
+  `number` INT NULL,
+  `prefix` VARCHAR(45) NULL,
+  `before_customer_id` BIGINT NULL,
+  `after_customer_id` BIGINT NULL,
+  `name` VARCHAR(500) NULL,
+  `seq` BIGINT NULL COMMENT 'Номер события в филиале от плагина',
+  `received` DATETIME(3) NOT NULL COMMENT 'Когда событие принято сервером',
+  PRIMARY KEY (`id`))
+ENGINE = InnoDB
+COMMENT = 'Журнал событий от филиалов, только вставка. customer и step - его проекции.';
+
+CREATE INDEX `idx_customer_event_branch` ON `customer_event` (`branch_id` ASC, `id` ASC);
+
+CREATE INDEX `idx_customer_event_branch_customer` ON `customer_event` (`branch_id` ASC, `event_type` ASC, `customer_id` ASC);
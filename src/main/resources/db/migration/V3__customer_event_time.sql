@@ -0,0 +1,3 @@
+-- Время события по часам филиала, приведенное к часам сервера
+ALTER TABLE `customer_event`
+  ADD `event_time` DATETIME(3) NULL COMMENT 'Когда событие произошло, по часам сервера' AFTER `seq`;
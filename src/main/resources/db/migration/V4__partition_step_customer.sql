@@ -0,0 +1,34 @@
+-- Помесячные секции step и customer. ALTER ... PARTITION BY перестраивает таблицу целиком,
+-- на больших таблицах лучше выполнить этот скрипт вручную в окно обслуживания при QSKY_MIGRATE=false.
+-- Историю по месяцам разложит PartitionManagerEJB: пока есть только секция pmax,
+-- он режет ее начиная с месяца самой ранней записи. Это тоже полное копирование, один раз.
+
+-- Секционированная таблица не может иметь внешних ключей ни в одну сторону
+ALTER TABLE `customer`
+  DROP FOREIGN KEY `fk_customer_before_customer_id`,
+  DROP FOREIGN KEY `fk_customer_after_customer_id`,
+  DROP FOREIGN KEY `fk_customer_first_step_id`,
+  DROP FOREIGN KEY `fk_customer_current_step_id`;
+
+ALTER TABLE `step`
+  DROP FOREIGN KEY `fk_step_before_step_id`,
+  DROP FOREIGN KEY `fk_step_after_step_id`;
+
+-- Ключ секционирования обязан входить в первичный ключ и не может быть NULL
+UPDATE `step` SET `stand_time` = COALESCE(`start_time`, `finish_time`, '1970-01-01') WHERE `stand_time` IS NULL;
+
+ALTER TABLE `step`
+  MODIFY `stand_time` DATETIME NOT NULL COMMENT 'Клиент начал ожидать вызова. Ключ секционирования',
+  DROP PRIMARY KEY,
+  ADD PRIMARY KEY (`id`, `stand_time`);
+
+ALTER TABLE `customer`
+  MODIFY `visit_time` DATETIME NOT NULL COMMENT 'Время прихода клиента. Ключ секционирования',
+  DROP PRIMARY KEY,
+  ADD PRIMARY KEY (`id`, `visit_time`);
+
+ALTER TABLE `step` PARTITION BY RANGE COLUMNS(`stand_time`) (
+  PARTITION `pmax` VALUES LESS THAN (MAXVALUE));
+
+ALTER TABLE `customer` PARTITION BY RANGE COLUMNS(`visit_time`) (
+  PARTITION `pmax` VALUES LESS THAN (MAXVALUE));
@@ -0,0 +1,14 @@
+-- Составные индексы горячих выборок. Ключ секционирования последним, чтобы по нему шел диапазон.
+-- Скрипт без обратных кавычек и опций MySQL, его же проверяет тест на встроенной H2.
+
+-- поиск визита на каждое событие: getCustomer
+CREATE INDEX idx_customer_branch_customer ON customer (branch_id ASC, customer_id ASC, visit_time ASC);
+
+-- клиенты филиала за период: showBranchSituation, downloadBranchStatistic
+CREATE INDEX idx_customer_branch_visit ON customer (branch_id ASC, visit_time ASC);
+
+-- шаги филиала за период: loadStats
+CREATE INDEX idx_step_branch_stand ON step (branch_id ASC, stand_time ASC);
+
+-- шаги визита: currentStep. Первичный ключ (id, stand_time) входит во вторичный индекс, поэтому он покрывающий для max(id), count(id)
+CREATE INDEX idx_step_branch_customer ON step (branch_id ASC, customer_id ASC, stand_time ASC);
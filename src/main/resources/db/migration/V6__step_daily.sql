@@ -0,0 +1,16 @@
+-- Дневные итоги шагов для отчетов за длинный период, их сворачивает StepRollupEJB.
+-- Скрипт без обратных кавычек и опций MySQL, его же применяет тест на встроенной H2.
+CREATE TABLE IF NOT EXISTS step_daily (
+  branch_id BIGINT NOT NULL,
+  service_id BIGINT NOT NULL,
+  employee_id BIGINT NOT NULL,
+  stat_day DATE NOT NULL,
+  served INT NOT NULL DEFAULT 0,
+  removed INT NOT NULL DEFAULT 0,
+  wait_sum BIGINT NOT NULL DEFAULT 0,
+  work_sum BIGINT NOT NULL DEFAULT 0,
+  wait_max BIGINT NOT NULL DEFAULT 0,
+  work_max BIGINT NOT NULL DEFAULT 0,
+  PRIMARY KEY (branch_id, stat_day, service_id, employee_id));
+
+CREATE INDEX idx_step_daily_day ON step_daily (stat_day ASC);
@@ -0,0 +1,10 @@
+-- Дневные итоги за всю историю одним запросом. Дальше их ведет прием событий, а StepRollupEJB ночью сверяет последние дни.
+-- Итоги, свернутые раньше ночным заданием, строятся заново, поэтому скрипт можно применять на любой базе после V6.
+DELETE FROM step_daily;
+
+INSERT INTO step_daily (branch_id, service_id, employee_id, stat_day, served, removed, wait_sum, work_sum, wait_max, work_max)
+  SELECT branch_id, coalesce(service_id, 0), coalesce(employee_id, 0), cast(stand_time as date),
+    sum(case when finish_state = 0 then 0 else 1 end), sum(case when finish_state = 0 then 1 else 0 end),
+    sum(waiting), sum(working), max(waiting), max(working)
+  FROM step WHERE finish_time IS NOT NULL
+  GROUP BY branch_id, coalesce(service_id, 0), coalesce(employee_id, 0), cast(stand_time as date);
@@ -0,0 +1,6 @@
+-- Номера записей файлового журнала событий, уже записанных в БД. Пишутся в той же транзакции, что и проекции,
+-- чтобы после падения проигрывание журнала не применило их второй раз. Чистятся до контрольной точки журнала.
+-- Скрипт без обратных кавычек и опций MySQL, его же применяет тест на встроенной H2.
+CREATE TABLE IF NOT EXISTS journal_applied (
+  id BIGINT NOT NULL,
+  PRIMARY KEY (id));
@@ -0,0 +1,177 @@
+/*
+ *  Copyright (C) 2010 {Apertum}Projects. web: www.apertum.ru email: info@apertum.ru
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ru.apertum.qsky.common;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+
+import static org.junit.Assert.*;
+
+/**
+ * Миграции на встроенной H2 и планы горячих выборок: каждая должна идти по своему составному индексу, а не перебором таблицы.
+ * Таблицы создаются в состоянии после V4, применяются V5 с индексами, V6 с дневными итогами, V7, сворачивающая в них историю,
+ * и V8 с отметками журнала событий.
+ *
+ * @author Evgeniy Egorov
+ */
+public class SchemaMigratorTest {
+
+    private static final long DAY = 86400000L;
+    private static final long START = Timestamp.valueOf("2019-11-01 00:00:00").getTime();
+
+    private static Connection con;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        con = DriverManager.getConnection("jdbc:h2:mem:qsky;MODE=MySQL;DB_CLOSE_DELAY=-1");
+        try (Statement st = con.createStatement()) {
+            st.execute("create table customer (id bigint not null auto_increment, branch_id bigint not null, service_id bigint, "
+                    + "employee_id bigint, number int, service_prefix varchar(45), visit_time datetime not null, customer_id bigint not null, "
+                    + "before_customer_id bigint, after_customer_id bigint, first_step_id bigint, current_step_id bigint, "
+                    + "steps_count int not null default 0, waiting_sum bigint not null default 0, working_sum bigint not null default 0, "
+                    + "waiting bigint not null default 0, working bigint not null default 0, present_state int, primary key (id, visit_time))");
+            st.execute("create table step (id bigint not null auto_increment, branch_id bigint not null, customer_id bigint not null, "
+                    + "service_id bigint, employee_id bigint, before_step_id bigint, after_step_id bigint, stand_time datetime not null, "
+                    + "start_time datetime, finish_time datetime, waiting bigint not null default 0, working bigint not null default 0, "
+                    + "start_state int, finish_state int, primary key (id, stand_time))");
+        }
+        // 20 филиалов по 300 визитов за 60 дней, у каждого визита два шага
+        try (PreparedStatement cust = con.prepareStatement("insert into customer (branch_id, customer_id, visit_time) values (?, ?, ?)");
+             PreparedStatement step = con.prepareStatement("insert into step (branch_id, customer_id, stand_time, finish_time) values (?, ?, ?, ?)")) {
+            for (long branch = 1; branch <= 20; branch++) {
+                for (long customer = 1; customer <= 300; customer++) {
+                    final Timestamp visit = new Timestamp(START + (customer % 60) * DAY + customer * 1000);
+                    cust.setLong(1, branch);
+                    cust.setLong(2, customer);
+                    cust.setTimestamp(3, visit);
+                    cust.addBatch();
+                    for (int i = 0; i < 2; i++) {
+                        step.setLong(1, branch);
+                        step.setLong(2, customer);
+                        step.setTimestamp(3, new Timestamp(visit.getTime() + i * 60000));
+                        step.setTimestamp(4, new Timestamp(visit.getTime() + i * 60000 + 30000));
+                        step.addBatch();
+                    }
+                }
+                cust.executeBatch();
+                step.executeBatch();
+            }
+        }
+        assertEquals(4, new SchemaMigrator().migrate(con, 4));
+        try (Statement st = con.createStatement()) {
+            st.execute("analyze");
+        }
+    }
+
+    @AfterClass
+    public static void tearDownClass() throws Exception {
+        con.close();
+    }
+
+    @Test
+    public void testMigrationsListed() {
+        int version = 0;
+        for (SchemaMigrator.Migration migration : new SchemaMigrator().getMigrations()) {
+            assertTrue(migration.getScript(), migration.getVersion() > version);
+            assertFalse(migration.getScript(), migration.getStatements().isEmpty());
+            version = migration.getVersion();
+        }
+        assertEquals(8, version);
+    }
+
+    @Test
+    public void testHistoryRolledUp() throws Exception {
+        try (Statement st = con.createStatement();
+             ResultSet rs = st.executeQuery("select count(*), sum(served), sum(removed), count(distinct stat_day) from step_daily")) {
+            rs.next();
+            // на филиал один сотрудник 0 и одна услуга 0, строка на день
+            assertEquals(20 * 60, rs.getInt(1));
+            assertEquals(20 * 300 * 2, rs.getInt(2));
+            assertEquals(0, rs.getInt(3));
+            assertEquals(60, rs.getInt(4));
+        }
+    }
+
+    @Test
+    public void testVersionRecorded() throws Exception {
+        try (Statement st = con.createStatement(); ResultSet rs = st.executeQuery("select max(version) from schema_version")) {
+            rs.next();
+            assertEquals(8, rs.getInt(1));
+        }
+        assertEquals(0, new SchemaMigrator().migrate(con, 0));
+    }
+
+    @Test
+    public void testStatements() {
+        assertEquals(2, SchemaMigrator.statements("-- comment\ncreate index a\n  on t (x);\n\ncreate index b on t (y);\n").size());
+        assertEquals("create index a\non t (x)", SchemaMigrator.statements("create index a\n  on t (x);").get(0));
+    }
+
+    /**
+     * getCustomer на каждое событие.
+     */
+    @Test
+    public void testCustomerLookup() throws Exception {
+        assertIndex("IDX_CUSTOMER_BRANCH_CUSTOMER", "select * from customer where branch_id = 3 and customer_id = 15 "
+                + "and visit_time >= '2019-12-01 00:00:00' order by visit_time desc");
+    }
+
+    /**
+     * showBranchSituation и downloadBranchStatistic.
+     */
+    @Test
+    public void testCustomersOfDay() throws Exception {
+        assertIndex("IDX_CUSTOMER_BRANCH_VISIT", "select * from customer where branch_id = 3 "
+                + "and visit_time between '2019-11-10 00:00:00' and '2019-11-10 23:59:00'");
+    }
+
+    /**
+     * loadStats.
+     */
+    @Test
+    public void testStepsOfPeriod() throws Exception {
+        assertIndex("IDX_STEP_BRANCH_STAND", "select * from step where branch_id = 3 and finish_time is not null "
+                + "and stand_time between '2019-11-10 00:00:00' and '2019-11-12 23:59:00'");
+    }
+
+    /**
+     * Текущий шаг клиента, записанного до current_step_id.
+     */
+    @Test
+    public void testStepsOfCustomer() throws Exception {
+        assertIndex("IDX_STEP_BRANCH_CUSTOMER", "select max(id), count(id) from step where branch_id = 3 and customer_id = 15 "
+                + "and stand_time >= '2019-11-15 00:00:00'");
+    }
+
+    private static void assertIndex(String index, String sql) throws SQLException {
+        try (Statement st = con.createStatement(); ResultSet rs = st.executeQuery("explain " + sql)) {
+            assertTrue(rs.next());
+            final String plan = rs.getString(1).toUpperCase();
+            assertFalse(plan, plan.contains("TABLESCAN"));
+            assertTrue(plan, plan.contains(index));
+        }
+    }
+}
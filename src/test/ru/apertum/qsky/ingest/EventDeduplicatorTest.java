@@ -0,0 +1,85 @@
+/*
+ *  Copyright (C) 2010 {Apertum}Projects. web: www.apertum.ru email: info@apertum.ru
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ru.apertum.qsky.ingest;
+
+import org.junit.Test;
+import ru.apertum.qsky.api.CustomerEvent;
+
+import static org.junit.Assert.*;
+
+/**
+ * Повтор отсеивается только в окне по времени и по количеству ключей, и только в своем филиале.
+ *
+ * @author Evgeniy Egorov
+ */
+public class EventDeduplicatorTest {
+
+    @Test
+    public void testSeqWindow() {
+        final EventDeduplicator dedup = new EventDeduplicator(1000, 0, 100);
+        assertFalse(dedup.isDuplicate(event(1L, 10L, 5L, 0)));
+        assertTrue(dedup.isDuplicate(event(1L, 10L, 5L, 500)));
+        assertFalse(dedup.isDuplicate(event(2L, 10L, 5L, 500)));
+        assertFalse(dedup.isDuplicate(event(1L, 10L, 6L, 600)));
+        // окно считается от первого приема, повтор его не продлевает
+        assertFalse(dedup.isDuplicate(event(1L, 10L, 5L, 1000)));
+        assertTrue(dedup.isDuplicate(event(1L, 10L, 6L, 1000)));
+        assertEquals(2, dedup.getDuplicates());
+    }
+
+    @Test
+    public void testMaxKeys() {
+        final EventDeduplicator dedup = new EventDeduplicator(60000, 0, 2);
+        assertFalse(dedup.isDuplicate(event(1L, 10L, 1L, 0)));
+        assertFalse(dedup.isDuplicate(event(1L, 10L, 2L, 1)));
+        assertFalse(dedup.isDuplicate(event(1L, 10L, 3L, 2)));
+        assertFalse(dedup.isDuplicate(event(1L, 10L, 1L, 3)));
+        assertTrue(dedup.isDuplicate(event(1L, 10L, 1L, 4)));
+    }
+
+    @Test
+    public void testFingerprint() {
+        final EventDeduplicator off = new EventDeduplicator(1000, 0, 100);
+        assertFalse(off.isDuplicate(event(1L, 10L, null, 0)));
+        assertFalse(off.isDuplicate(event(1L, 10L, null, 1)));
+
+        final EventDeduplicator on = new EventDeduplicator(1000, 100, 100);
+        assertFalse(on.isDuplicate(event(1L, 10L, null, 0)));
+        assertTrue(on.isDuplicate(event(1L, 10L, null, 50)));
+        assertFalse(on.isDuplicate(event(1L, 11L, null, 50)));
+        assertFalse(on.isDuplicate(event(1L, 10L, null, 100)));
+    }
+
+    @Test
+    public void testForget() {
+        final EventDeduplicator dedup = new EventDeduplicator(1000, 100, 100);
+        final CustomerEvent withSeq = event(1L, 10L, 5L, 0);
+        final CustomerEvent withoutSeq = event(1L, 10L, null, 0);
+        assertFalse(dedup.isDuplicate(withSeq));
+        assertFalse(dedup.isDuplicate(withoutSeq));
+        dedup.forget(withSeq);
+        dedup.forget(withoutSeq);
+        assertFalse(dedup.isDuplicate(withSeq));
+        assertFalse(dedup.isDuplicate(withoutSeq));
+        assertTrue(dedup.isDuplicate(withSeq));
+        assertTrue(dedup.isDuplicate(withoutSeq));
+    }
+
+    private static CustomerEvent event(Long branchId, Long customerId, Long seq, long received) {
+        return CustomerEvent.restore(CustomerEvent.Type.STATUS, branchId, 2L, 3L, customerId, 2, 1, "A", null, null, null, seq, null, received);
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ *  Copyright (C) 2010 {Apertum}Projects. web: www.apertum.ru email: info@apertum.ru
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ru.apertum.qsky.ingest;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import ru.apertum.qsky.api.CustomerEvent;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Порядок событий клиента в полосах и поведение при переполнении очереди и квоты филиала.
+ *
+ * @author Evgeniy Egorov
+ */
+public class EventDispatcherTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final ThreadFactory DAEMONS = r -> {
+        final Thread thread = new Thread(r);
+        thread.setDaemon(true);
+        return thread;
+    };
+
+    /**
+     * Что получил обработчик и в каком потоке.
+     */
+    private static final class Collector implements Consumer<List<CustomerEvent>> {
+
+        private final ArrayList<CustomerEvent> events = new ArrayList<>();
+        private final HashMap<Long, String> threads = new HashMap<>();
+        private volatile CountDownLatch gate;
+
+        @Override
+        public void accept(List<CustomerEvent> batch) {
+            if (batch.isEmpty()) {
+                return;
+            }
+            final CountDownLatch latch = gate;
+            if (latch != null) {
+                try {
+                    latch.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            synchronized (this) {
+                for (CustomerEvent event : batch) {
+                    events.add(event);
+                    final String old = threads.put(event.getBranchId() * 1000 + event.getCustomerId(), Thread.currentThread().getName());
+                    assertTrue(old == null || old.equals(Thread.currentThread().getName()));
+                }
+                notifyAll();
+            }
+        }
+
+        private synchronized List<CustomerEvent> await(int count) throws InterruptedException {
+            final long deadline = System.currentTimeMillis() + 10000;
+            while (events.size() < count && System.currentTimeMillis() < deadline) {
+                wait(100);
+            }
+            assertEquals(count, events.size());
+            return new ArrayList<>(events);
+        }
+    }
+
+    @Test
+    public void testLaneOrder() throws Exception {
+        final Collector collector = new Collector();
+        final EventDispatcher dispatcher = new EventDispatcher("test", DAEMONS, 4, 16, 5, 10000, 0, EventDispatcher.OverloadPolicy.BLOCK, 1000,
+                folder.newFolder(), collector);
+        dispatcher.start(false);
+        for (int number = 0; number < 20; number++) {
+            for (long branchId = 1; branchId <= 3; branchId++) {
+                for (long customerId = 1; customerId <= 20; customerId++) {
+                    assertTrue(dispatcher.submit(status(branchId, customerId, number)));
+                }
+            }
+        }
+        assertNumbersInOrder(collector.await(1200));
+        dispatcher.shutdown(1000);
+        assertEquals(1200, dispatcher.getAccepted());
+        assertEquals(0, dispatcher.getRejected());
+    }
+
+    @Test
+    public void testShedByQuotaAndCapacity() throws Exception {
+        // не запущен, поэтому очередь только копится: 8 мест в полосе, по 2 на филиал
+        final EventDispatcher dispatcher = new EventDispatcher("test", DAEMONS, 1, 1, 0, 8, 0, EventDispatcher.OverloadPolicy.SHED, 0,
+                folder.newFolder(), new Collector());
+        assertTrue(dispatcher.submit(status(1L, 1L, 0)));
+        assertTrue(dispatcher.submit(status(1L, 1L, 1)));
+        assertFalse(dispatcher.submit(status(1L, 2L, 0)));
+        for (long branchId = 2; branchId <= 4; branchId++) {
+            assertTrue(dispatcher.submit(status(branchId, 1L, 0)));
+            assertTrue(dispatcher.submit(status(branchId, 1L, 1)));
+        }
+        assertFalse(dispatcher.submit(status(5L, 1L, 0)));
+        assertEquals(8, dispatcher.getAccepted());
+        assertEquals(2, dispatcher.getRejected());
+        assertEquals(8, dispatcher.getQueueDepth());
+        // журналированное событие не отбрасывается, а сливается в файл
+        assertTrue(dispatcher.submit(status(5L, 1L, 0), true));
+        assertEquals(1, dispatcher.getSpilled());
+        assertEquals(9, dispatcher.getQueueDepth());
+    }
+
+    @Test
+    public void testBlockTimeout() throws Exception {
+        final EventDispatcher dispatcher = new EventDispatcher("test", DAEMONS, 1, 1, 0, 1, 0, EventDispatcher.OverloadPolicy.BLOCK, 50,
+                folder.newFolder(), new Collector());
+        assertTrue(dispatcher.submit(status(1L, 1L, 0)));
+        final long start = System.nanoTime();
+        assertFalse(dispatcher.submit(status(1L, 1L, 1)));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(40));
+        assertEquals(1, dispatcher.getRejected());
+    }
+
+    @Test
+    public void testSpillKeepsOrder() throws Exception {
+        final Collector collector = new Collector();
+        collector.gate = new CountDownLatch(1);
+        final EventDispatcher dispatcher = new EventDispatcher("test", DAEMONS, 1, 4, 0, 8, 0, EventDispatcher.OverloadPolicy.SPILL, 0,
+                folder.newFolder(), collector);
+        dispatcher.start(false);
+        for (int number = 0; number < 100; number++) {
+            assertTrue(dispatcher.submit(status(1L, 1L + number % 3, number)));
+        }
+        assertTrue(dispatcher.getSpilled() > 0);
+        assertEquals(0, dispatcher.getRejected());
+        collector.gate.countDown();
+        assertNumbersInOrder(collector.await(100));
+        dispatcher.shutdown(1000);
+    }
+
+    @Test
+    public void testShutdownKeepsUnprocessed() throws Exception {
+        final File dir = folder.newFolder();
+        final EventDispatcher stopped = new EventDispatcher("test", DAEMONS, 1, 4, 0, 100, 100, EventDispatcher.OverloadPolicy.SHED, 0, dir, new Collector());
+        for (int number = 0; number < 10; number++) {
+            assertTrue(stopped.submit(status(1L + number % 2, 1L, number)));
+        }
+        stopped.shutdown(100);
+        assertEquals(0, stopped.getQueueDepth());
+
+        final Collector collector = new Collector();
+        final EventDispatcher restarted = new EventDispatcher("test", DAEMONS, 1, 4, 0, 100, 100, EventDispatcher.OverloadPolicy.SHED, 0, dir, collector);
+        restarted.start(true);
+        final List<CustomerEvent> events = collector.await(10);
+        assertNumbersInOrder(events);
+        restarted.shutdown(1000);
+        final File[] left = dir.listFiles();
+        assertNotNull(left);
+        assertEquals(0, left.length);
+    }
+
+    private static CustomerEvent status(Long branchId, Long customerId, int number) {
+        return CustomerEvent.status(branchId, 2L, 3L, customerId, 2, number, "A");
+    }
+
+    /**
+     * Номера событий каждого клиента идут по возрастанию.
+     */
+    private static void assertNumbersInOrder(List<CustomerEvent> events) {
+        final HashMap<Long, Integer> last = new HashMap<>();
+        for (CustomerEvent event : events) {
+            final Integer prev = last.put(event.getBranchId() * 1000 + event.getCustomerId(), event.getNumber());
+            assertTrue(event.toString(), prev == null || prev < event.getNumber());
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ *  Copyright (C) 2010 {Apertum}Projects. web: www.apertum.ru email: info@apertum.ru
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ru.apertum.qsky.ingest;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import ru.apertum.qsky.api.CustomerEvent;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.*;
+
+/**
+ * Журнал событий: запись и чтение после переоткрытия, смена сегментов и проигрывание от контрольной точки.
+ *
+ * @author Evgeniy Egorov
+ */
+public class EventJournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testAppendAndReplay() throws Exception {
+        final File dir = folder.newFolder();
+        final EventJournal journal = new EventJournal(dir, 4096, 60000);
+        assertTrue(journal.replay().isEmpty());
+        final CustomerEvent status = journal.append(CustomerEvent.status(1L, 2L, 3L, 4L, 1, 15, "А").withSeq(77L).withEventTime(1000L));
+        final CustomerEvent insert = journal.append(CustomerEvent.insert(1L, 2L, 5L, 4L, null));
+        final CustomerEvent name = journal.append(CustomerEvent.serviceName(1L, 2L, "Кассы"));
+        assertEquals(asList(1L, 2L, 3L), asList(status.getJournalId(), insert.getJournalId(), name.getJournalId()));
+        assertEquals(3, journal.getUnappliedCount());
+        journal.close();
+
+        final EventJournal reopened = new EventJournal(dir, 4096, 60000);
+        final List<CustomerEvent> replayed = reopened.replay();
+        assertEquals(3, replayed.size());
+        assertEvent(status, replayed.get(0));
+        assertEvent(insert, replayed.get(1));
+        assertEvent(name, replayed.get(2));
+        assertEquals(4L, reopened.append(CustomerEvent.remove(1L, 2L, 5L)).getJournalId());
+        reopened.close();
+    }
+
+    @Test
+    public void testSegmentRollover() throws Exception {
+        final File dir = folder.newFolder();
+        final EventJournal journal = new EventJournal(dir, 256, 60000);
+        journal.replay();
+        final ArrayList<CustomerEvent> events = new ArrayList<>();
+        for (long i = 0; i < 50; i++) {
+            events.add(journal.append(CustomerEvent.status(1L, 2L, 3L, i, 1, (int) i, "A")));
+        }
+        // запись больше сегмента получает свой сегмент
+        final StringBuilder big = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            big.append("0123456789");
+        }
+        events.add(journal.append(CustomerEvent.serviceName(1L, 2L, big.toString())));
+        events.add(journal.append(CustomerEvent.status(1L, 2L, 3L, 50L, 1, 50, "A")));
+        journal.close();
+        assertTrue(segments(dir) > 2);
+
+        final EventJournal reopened = new EventJournal(dir, 256, 60000);
+        final List<CustomerEvent> replayed = reopened.replay();
+        assertEquals(events.size(), replayed.size());
+        for (int i = 0; i < events.size(); i++) {
+            assertEvent(events.get(i), replayed.get(i));
+        }
+        reopened.applied(replayed);
+        assertEquals(events.size(), reopened.getCheckpoint());
+        reopened.force();
+        assertEquals(1, segments(dir));
+        reopened.close();
+    }
+
+    @Test
+    public void testCheckpointReplay() throws Exception {
+        final File dir = folder.newFolder();
+        final EventJournal journal = new EventJournal(dir, 4096, 60000);
+        journal.replay();
+        final ArrayList<CustomerEvent> events = new ArrayList<>();
+        for (long i = 1; i <= 10; i++) {
+            events.add(journal.append(CustomerEvent.status(1L, 2L, 3L, i, 1, (int) i, "A")));
+        }
+        // седьмое применено раньше пятого и шестого, точка встает перед самым старым непримененным
+        journal.applied(asList(events.get(0), events.get(1), events.get(2), events.get(3), events.get(6)));
+        assertEquals(4, journal.getCheckpoint());
+        assertEquals(5, journal.getUnappliedCount());
+        journal.close();
+
+        final EventJournal reopened = new EventJournal(dir, 4096, 60000);
+        assertEquals(4, reopened.getCheckpoint());
+        final List<CustomerEvent> replayed = reopened.replay();
+        final ArrayList<Long> ids = new ArrayList<>();
+        for (CustomerEvent event : replayed) {
+            ids.add(event.getJournalId());
+            assertEquals(Long.valueOf(event.getJournalId()), event.getCustomerId());
+        }
+        assertEquals(asList(5L, 6L, 7L, 8L, 9L, 10L), ids);
+        assertEquals(6, reopened.getUnappliedCount());
+        assertEquals(11L, reopened.append(CustomerEvent.remove(1L, 2L, 11L)).getJournalId());
+        reopened.close();
+    }
+
+    private static void assertEvent(CustomerEvent expected, CustomerEvent actual) {
+        assertEquals(asList(expected.getType(), expected.getBranchId(), expected.getServiceId(), expected.getEmployeeId(), expected.getCustomerId(),
+                expected.getStatus(), expected.getNumber(), expected.getPrefix(), expected.getBeforeCustId(), expected.getAfterCustId(), expected.getName(),
+                expected.getSeq(), expected.getEventTime(), expected.getReceived(), expected.getJournalId()),
+                asList(actual.getType(), actual.getBranchId(), actual.getServiceId(), actual.getEmployeeId(), actual.getCustomerId(),
+                        actual.getStatus(), actual.getNumber(), actual.getPrefix(), actual.getBeforeCustId(), actual.getAfterCustId(), actual.getName(),
+                        actual.getSeq(), actual.getEventTime(), actual.getReceived(), actual.getJournalId()));
+    }
+
+    private static int segments(File dir) {
+        final File[] files = dir.listFiles((d, name) -> name.endsWith(".jrn"));
+        return files == null ? 0 : files.length;
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ *  Copyright (C) 2010 {Apertum}Projects. web: www.apertum.ru email: info@apertum.ru
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ru.apertum.qsky.ingest;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.*;
+
+/**
+ * Итоги по группам сверяются с тем же счетом на HashMap, в том числе после роста таблицы и слияния частей.
+ *
+ * @author Evgeniy Egorov
+ */
+public class GroupTotalsTest {
+
+    @Test
+    public void testAddGrowAndMerge() {
+        final GroupTotals first = new GroupTotals(4);
+        final GroupTotals second = new GroupTotals();
+        final Map<List<Long>, long[]> expected = new HashMap<>();
+        for (int i = 0; i < 10000; i++) {
+            final long serviceId = i % 37;
+            final long employeeId = (i * 7L) % 53;
+            final long wait = i % 1000;
+            (i % 2 == 0 ? first : second).add(serviceId, employeeId, 1, i % 3 == 0 ? 1 : 0, wait, 2 * wait, wait, 2 * wait);
+            final long[] exp = expected.computeIfAbsent(asList(serviceId, employeeId), k -> new long[4]);
+            exp[0]++;
+            exp[1] += i % 3 == 0 ? 1 : 0;
+            exp[2] += wait;
+            exp[3] = Math.max(exp[3], wait);
+        }
+        first.merge(second);
+        assertEquals(expected.size(), first.size());
+        final int[] seen = new int[1];
+        first.forEach((serviceId, employeeId, served, removed, waitSum, workSum, waitMax, workMax) -> {
+            final long[] exp = expected.get(asList(serviceId, employeeId));
+            assertNotNull(serviceId + "/" + employeeId, exp);
+            assertEquals(exp[0], served);
+            assertEquals(exp[1], removed);
+            assertEquals(exp[2], waitSum);
+            assertEquals(2 * exp[2], workSum);
+            assertEquals(exp[3], waitMax);
+            assertEquals(2 * exp[3], workMax);
+            seen[0]++;
+        });
+        assertEquals(expected.size(), seen[0]);
+    }
+
+    @Test
+    public void testNegativeAndLargeIds() {
+        final GroupTotals totals = new GroupTotals();
+        totals.add(Long.MAX_VALUE, 0, 1, 0, 10, 0, 10, 0);
+        totals.add(0, Long.MAX_VALUE, 1, 0, 20, 0, 20, 0);
+        totals.add(-1, -1, 1, 0, 30, 0, 30, 0);
+        totals.add(Long.MAX_VALUE, 0, 1, 0, 5, 0, 5, 0);
+        assertEquals(3, totals.size());
+        totals.forEach((serviceId, employeeId, served, removed, waitSum, workSum, waitMax, workMax) -> {
+            if (serviceId == Long.MAX_VALUE) {
+                assertEquals(2, served);
+                assertEquals(15, waitSum);
+                assertEquals(10, waitMax);
+            }
+        });
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ *  Copyright (C) 2010 {Apertum}Projects. web: www.apertum.ru email: info@apertum.ru
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ru.apertum.qsky.ingest;
+
+import org.junit.Test;
+import ru.apertum.qsky.api.CustomerEvent;
+
+import java.util.List;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static org.junit.Assert.*;
+
+/**
+ * Придержанные события клиента отпускаются в порядке поступления: по приходу предшествующего или по таймауту.
+ *
+ * @author Evgeniy Egorov
+ */
+public class ResequenceBufferTest {
+
+    @Test
+    public void testReleaseOrder() {
+        final ResequenceBuffer buffer = new ResequenceBuffer(1000, 100);
+        final CustomerEvent first = CustomerEvent.status(1L, 2L, 3L, 10L, 2, 1, "A");
+        final CustomerEvent second = CustomerEvent.status(1L, 2L, 3L, 10L, 3, 1, "A");
+        final CustomerEvent third = CustomerEvent.remove(1L, 2L, 10L);
+        final CustomerEvent other = CustomerEvent.status(1L, 2L, 3L, 11L, 2, 2, "A");
+        assertTrue(buffer.park(first, 0));
+        assertTrue(buffer.park(second, 10));
+        assertTrue(buffer.park(other, 20));
+        assertTrue(buffer.park(third, 30));
+        assertEquals(4, buffer.size());
+        assertTrue(buffer.isWaiting(1L, 10L));
+        assertFalse(buffer.isWaiting(2L, 10L));
+
+        final List<CustomerEvent> released = buffer.release(1L, 10L);
+        assertEquals(3, released.size());
+        assertSame(first, released.get(0));
+        assertSame(second, released.get(1));
+        assertSame(third, released.get(2));
+        assertFalse(buffer.isWaiting(1L, 10L));
+        assertTrue(buffer.release(1L, 10L).isEmpty());
+        assertEquals(1, buffer.size());
+        assertEquals(singletonList(other), buffer.release(1L, 11L));
+        assertEquals(0, buffer.size());
+    }
+
+    @Test
+    public void testExpired() {
+        final ResequenceBuffer buffer = new ResequenceBuffer(100, 100);
+        final CustomerEvent first = CustomerEvent.status(1L, 2L, 3L, 10L, 2, 1, "A");
+        final CustomerEvent second = CustomerEvent.status(1L, 2L, 3L, 10L, 3, 1, "A");
+        final CustomerEvent late = CustomerEvent.status(1L, 2L, 3L, 11L, 2, 2, "A");
+        buffer.park(first, 0);
+        buffer.park(second, 90);
+        buffer.park(late, 50);
+        assertTrue(buffer.expired(99, event -> true).isEmpty());
+        // таймаут считается от первого события клиента, чужие события полоса не забирает
+        assertTrue(buffer.expired(100, event -> false).isEmpty());
+        assertEquals(asList(first, second), buffer.expired(100, event -> true));
+        assertEquals(1, buffer.size());
+        assertEquals(singletonList(late), buffer.expired(150, event -> true));
+        assertEquals(0, buffer.size());
+    }
+
+    @Test
+    public void testFullAndCancel() {
+        final ResequenceBuffer buffer = new ResequenceBuffer(1000, 2);
+        final CustomerEvent first = CustomerEvent.status(1L, 2L, 3L, 10L, 2, 1, "A");
+        final CustomerEvent second = CustomerEvent.status(1L, 2L, 3L, 10L, 3, 1, "A");
+        final CustomerEvent third = CustomerEvent.remove(1L, 2L, 10L);
+        assertTrue(buffer.park(first, 0));
+        assertTrue(buffer.park(second, 0));
+        assertFalse(buffer.park(third, 0));
+        assertEquals(2, buffer.size());
+
+        // откат транзакции: придержанное в ней убирается, отпущенное в ней возвращается сверх предела
+        buffer.cancel(singletonList(second));
+        assertEquals(1, buffer.size());
+        buffer.restore(second, 0);
+        buffer.restore(third, 0);
+        assertEquals(3, buffer.size());
+        assertEquals(asList(first, second, third), buffer.release(1L, 10L));
+        buffer.cancel(singletonList(first));
+        assertEquals(0, buffer.size());
+    }
+}
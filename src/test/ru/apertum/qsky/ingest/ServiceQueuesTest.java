@@ -0,0 +1,104 @@
+/*
+ *  Copyright (C) 2010 {Apertum}Projects. web: www.apertum.ru email: info@apertum.ru
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ru.apertum.qsky.ingest;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.*;
+
+/**
+ * Вставка и удаление клиентов в очередях, в том числе одновременно из нескольких полос.
+ *
+ * @author Evgeniy Egorov
+ */
+public class ServiceQueuesTest {
+
+    @Test
+    public void testInsertAndRemove() {
+        final ServiceQueues queues = new ServiceQueues(60000, 60000, links -> Collections.emptyList());
+        queues.insert(1L, 1L, 1L, null, null);
+        queues.insert(1L, 1L, 2L, null, null);
+        queues.insert(1L, 1L, 3L, 1L, null);
+        queues.insert(1L, 1L, 4L, null, 1L);
+        assertEquals(asList(4L, 1L, 3L, 2L), queues.getQueue(1L, 1L));
+        queues.remove(1L, 3L);
+        assertEquals(asList(4L, 1L, 2L), queues.getQueue(1L, 1L));
+        // недавно удаленный сосед не в счет, встаем в конец
+        queues.insert(1L, 1L, 5L, 3L, null);
+        assertEquals(asList(4L, 1L, 2L, 5L), queues.getQueue(1L, 1L));
+        // переход к другой услуге
+        queues.insert(1L, 2L, 1L, null, null);
+        assertEquals(asList(4L, 2L, 5L), queues.getQueue(1L, 1L));
+        assertEquals(asList(1L), queues.getQueue(1L, 2L));
+        // перестановка внутри очереди
+        queues.insert(1L, 1L, 5L, null, 4L);
+        assertEquals(asList(5L, 4L, 2L), queues.getQueue(1L, 1L));
+        assertEquals(4, queues.size());
+        assertTrue(queues.getQueue(2L, 1L).isEmpty());
+        queues.close();
+    }
+
+    @Test(timeout = 60000)
+    public void testConcurrentInsertRemove() throws Exception {
+        for (int round = 0; round < 50; round++) {
+            final ServiceQueues queues = new ServiceQueues(60000, 60000, links -> Collections.emptyList());
+            final ExecutorService lanes = Executors.newFixedThreadPool(4);
+            final ArrayList<Future<?>> futures = new ArrayList<>();
+            for (int lane = 0; lane < 4; lane++) {
+                final int own = lane;
+                futures.add(lanes.submit(() -> {
+                    final Random random = new Random(own * 1000L + 7);
+                    for (int i = 0; i < 2000; i++) {
+                        // клиент всегда в своей полосе, соседи - в любых
+                        final long customerId = random.nextInt(40) * 4L + own;
+                        if (random.nextInt(4) == 0) {
+                            queues.remove(1L, customerId);
+                        } else {
+                            queues.insert(1L, (long) random.nextInt(2), customerId,
+                                    random.nextBoolean() ? (long) random.nextInt(160) : null, random.nextBoolean() ? (long) random.nextInt(160) : null);
+                        }
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get(20, TimeUnit.SECONDS);
+            }
+            lanes.shutdown();
+            // каждый клиент ровно в одной очереди и ровно один раз, списки без циклов
+            final HashSet<Long> seen = new HashSet<>();
+            for (long serviceId = 0; serviceId < 2; serviceId++) {
+                final List<Long> queue = queues.getQueue(1L, serviceId);
+                for (Long customerId : queue) {
+                    assertTrue("round " + round + ", customer " + customerId, seen.add(customerId));
+                }
+            }
+            assertEquals(seen.size(), queues.size());
+            queues.close();
+        }
+    }
+}